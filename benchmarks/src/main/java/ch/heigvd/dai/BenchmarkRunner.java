@@ -0,0 +1,25 @@
+package ch.heigvd.dai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON to jmh-result.json unless another
+ * result format or file is given. Every argument is passed on to JMH.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.addAll(List.of("-rf", "json"));
+        }
+        if (!arguments.contains("-rff")) {
+            arguments.addAll(List.of("-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,64 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the search of one move of the AI to a fixed depth, after X played the center, for every grid size.
+ *
+ * search: the moves searched per second, with the positions searched per second as the nodes counter.
+ * The threads parameter is the size of the pool of the AI, the moves of the first ply being split among them.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AiPlayerBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+    private static final int DEPTH = 4;
+
+    @Param({"3", "5", "7", "9"})
+    public int gridSize;
+
+    @Param({"1", "2"})
+    public int threads;
+
+    private AiPlayer ai;
+    private GameHandler game;
+    private AiPlayer.Level level;
+
+    /**
+     * The positions searched, reported per second next to the moves.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Nodes {
+        public long nodes;
+    }
+
+    @Setup
+    public void setup() {
+        ai = new AiPlayer(threads, 60_000);
+        level = new AiPlayer.Level(DEPTH, 0);
+        game = new GameHandler(gridSize, PLAYER1);
+        game.joinGame(PLAYER2);
+        game.placePiece('A' + gridSize / 2, gridSize / 2 + 1, PLAYER1);
+    }
+
+    @Benchmark
+    public int search(Nodes counters) {
+        CompletableFuture<AiPlayer.Move> found = new CompletableFuture<>();
+        ai.play(game, level, System.nanoTime(), found::complete);
+        AiPlayer.Move move = found.join();
+        counters.nodes += move.nodes;
+        return move.cell;
+    }
+}
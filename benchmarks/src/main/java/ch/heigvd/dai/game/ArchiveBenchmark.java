@@ -0,0 +1,103 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the archive of the finished games, filled with one million games of every grid size.
+ *
+ * find: reads a random game by its ID, as REPLAY does.
+ * history: reads the last ten games of a random player, as HISTORY does.
+ * append: archives a finished game.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    private static final int GAMES = 1_000_000;
+    private static final int PLAYERS = 100_000;
+
+    private Path directory;
+    private GameArchive archive;
+    private GameHandler finished;
+    private int nextGameId = GAMES + 1;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("archive-benchmark");
+        archive = GameArchive.open(directory);
+
+        Random random = new Random(42);
+        for (int gameId = 1; gameId <= GAMES; gameId++) {
+            archive.append(gameId, play(random), GameArchive.DRAW);
+        }
+        finished = play(random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        archive.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Plays a game between two random players until it ends.
+     *
+     * @param random the source of the players and the moves
+     * @return the finished game
+     */
+    private static GameHandler play(Random random) {
+        int gridSize = 3 + 2 * random.nextInt(4);
+        int player1 = 1 + random.nextInt(PLAYERS);
+        int player2 = player1 % PLAYERS + 1;
+        GameHandler game = new GameHandler(gridSize, player1);
+        game.joinGame(player2);
+        int turn = player1;
+        while (!game.gameStatus()) {
+            // A cell already taken is refused, and the same player tries again
+            if (game.placePiece('A' + random.nextInt(gridSize), 1 + random.nextInt(gridSize), turn) >= 0) {
+                turn = turn == player1 ? player2 : player1;
+            }
+        }
+        return game;
+    }
+
+    @Benchmark
+    public GameArchive.Record find() throws IOException {
+        return archive.find(1 + ThreadLocalRandom.current().nextInt(GAMES));
+    }
+
+    @Benchmark
+    public int history() throws IOException {
+        int playerId = 1 + ThreadLocalRandom.current().nextInt(PLAYERS);
+        int listed = 0;
+        for (GameArchive.Record record = archive.lastGameOf(playerId); record != null && listed < 10;
+             record = archive.previousGameOf(record, playerId)) {
+            listed++;
+        }
+        return listed;
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        archive.append(nextGameId++, finished, GameArchive.X_WINS);
+    }
+}
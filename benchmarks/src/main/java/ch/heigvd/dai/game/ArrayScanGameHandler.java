@@ -0,0 +1,116 @@
+package ch.heigvd.dai.game;
+
+/**
+ * The former int[][] implementation of the game rules, kept as the baseline of the bitboard benchmarks.
+ * After every move it scans the full row, column and both diagonals of the grid.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class ArrayScanGameHandler {
+    private final int gridSize;
+    private final int[][] table;
+    private final int player1ID;
+    private final int player2ID;
+    private int tilePlayed;
+    private boolean turnOf;
+    private boolean isFinished;
+
+    /**
+     * Instantiates a new game with both players already present.
+     *
+     * @param gridSize  The size of the grid.
+     * @param player1ID The ID of the player1.
+     * @param player2ID The ID of the player2.
+     */
+    ArrayScanGameHandler(int gridSize, int player1ID, int player2ID) {
+        this.gridSize = gridSize;
+        this.table = new int[gridSize][gridSize];
+        this.player1ID = player1ID;
+        this.player2ID = player2ID;
+    }
+
+    /**
+     * Places a piece, with the same return codes as {@link GameHandler#placePiece(int, int, int)}.
+     *
+     * @param row      The row where to place the piece.
+     * @param col      The column where to place the piece.
+     * @param playerID The ID of the player placing the piece.
+     * @return The result of the action.
+     */
+    int placePiece(int row, int col, int playerID) {
+        if (isFinished) {
+            return -5;
+        }
+
+        if ((playerID == player1ID && turnOf) || (playerID == player2ID && !turnOf)) {
+            return -1;
+        }
+
+        int realRow = row - 65;
+        int realCol = col - 1;
+
+        if (realRow < 0 || realRow > gridSize - 1 || realCol < 0 || realCol > gridSize - 1) {
+            return -2;
+        }
+
+        if (table[realRow][realCol] != 0) {
+            return -3;
+        }
+
+        if (playerID == player1ID) {
+            table[realRow][realCol] = 1;
+            turnOf = true;
+        } else {
+            table[realRow][realCol] = 2;
+            turnOf = false;
+        }
+
+        tilePlayed++;
+
+        boolean winningRow = true;
+        boolean winningCol = true;
+        boolean winningRightDiagonal = true;
+        boolean winningLeftDiagonal = true;
+
+        for (int c = 1; c < gridSize; c++) {
+            if (table[realRow][c] != table[realRow][c - 1]) {
+                winningRow = false;
+                break;
+            }
+        }
+
+        for (int r = 1; r < gridSize; r++) {
+            if (table[r][realCol] != table[r - 1][realCol]) {
+                winningCol = false;
+                break;
+            }
+        }
+
+        for (int i = 1; i < gridSize; i++) {
+            if (table[i][i] != table[i - 1][i - 1] || table[i][i] == 0) {
+                winningRightDiagonal = false;
+                break;
+            }
+        }
+
+        for (int r = 1, c = gridSize - 2; r < gridSize; r++, c--) {
+            if (table[r][c] != table[r - 1][c + 1] || table[r][c] == 0) {
+                winningLeftDiagonal = false;
+                break;
+            }
+        }
+
+        if (winningRow || winningCol || winningRightDiagonal || winningLeftDiagonal) {
+            isFinished = true;
+            return 1;
+        }
+
+        if (tilePlayed >= gridSize * gridSize) {
+            isFinished = true;
+            return 2;
+        }
+
+        return 0;
+    }
+}
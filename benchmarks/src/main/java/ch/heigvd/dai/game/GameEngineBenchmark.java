@@ -0,0 +1,94 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the two operations of the game engine on the request path, for every grid size.
+ *
+ * placePiece: plays one move, following shuffled sequences of cells, and starts a new game once one ends.
+ * getTable: renders the text board of a game, up to half of its cells played.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameEngineBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+    private static final int GAMES = 64;
+
+    @Param({"3", "5", "7", "9"})
+    public int gridSize;
+
+    // Shuffled cells of each game, encoded as row * gridSize + col
+    private int[][] games;
+    private int next;
+    private GameHandler game;
+    private int[] cells;
+    private int move;
+
+    private GameHandler halfPlayed;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        games = new int[GAMES][];
+
+        for (int g = 0; g < GAMES; g++) {
+            int[] shuffled = new int[gridSize * gridSize];
+            for (int i = 0; i < shuffled.length; i++) {
+                shuffled[i] = i;
+            }
+            for (int i = shuffled.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = tmp;
+            }
+            games[g] = shuffled;
+        }
+        newGame();
+
+        // Plays up to half of the cells, the board rendered does not depend on the game being over
+        halfPlayed = new GameHandler(gridSize, PLAYER1);
+        halfPlayed.joinGame(PLAYER2);
+        int[] order = games[GAMES - 1];
+        for (int i = 0; i < order.length / 2 && !halfPlayed.gameStatus(); i++) {
+            halfPlayed.placePiece('A' + order[i] / gridSize, order[i] % gridSize + 1, (i & 1) == 0 ? PLAYER1 : PLAYER2);
+        }
+    }
+
+    @Benchmark
+    public int placePiece() {
+        int cell = cells[move];
+        int result = game.placePiece('A' + cell / gridSize, cell % gridSize + 1, (move & 1) == 0 ? PLAYER1 : PLAYER2);
+        move++;
+        if (result != 0) {
+            newGame();
+        }
+        return result;
+    }
+
+    @Benchmark
+    public String getTable() {
+        return halfPlayed.getTable();
+    }
+
+    /**
+     * Starts the next game, both players present.
+     */
+    private void newGame() {
+        cells = games[next++ & (GAMES - 1)];
+        game = new GameHandler(gridSize, PLAYER1);
+        game.joinGame(PLAYER2);
+        move = 0;
+    }
+}
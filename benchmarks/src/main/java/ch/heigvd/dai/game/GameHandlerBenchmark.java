@@ -0,0 +1,83 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bitboard GameHandler with the former array scan when playing whole games.
+ * Both implementations play the same pseudo-random sequences of moves, which fill the grid
+ * until a player wins or the game ends on a draw.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameHandlerBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+    private static final int GAMES = 64;
+
+    @Param({"3", "5", "7", "9"})
+    public int gridSize;
+
+    // Shuffled cells of each game, encoded as row * gridSize + col
+    private int[][] games;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        games = new int[GAMES][];
+
+        for (int g = 0; g < GAMES; g++) {
+            int[] cells = new int[gridSize * gridSize];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = i;
+            }
+            for (int i = cells.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = cells[i];
+                cells[i] = cells[j];
+                cells[j] = tmp;
+            }
+            games[g] = cells;
+        }
+    }
+
+    @Benchmark
+    public void bitboard(Blackhole blackhole) {
+        int[] cells = games[next++ & (GAMES - 1)];
+        GameHandler game = new GameHandler(gridSize, PLAYER1);
+        game.joinGame(PLAYER2);
+
+        for (int i = 0; i < cells.length; i++) {
+            int result = game.placePiece('A' + cells[i] / gridSize, cells[i] % gridSize + 1, (i & 1) == 0 ? PLAYER1 : PLAYER2);
+            if (result != 0) {
+                blackhole.consume(result);
+                break;
+            }
+        }
+    }
+
+    @Benchmark
+    public void arrayScan(Blackhole blackhole) {
+        int[] cells = games[next++ & (GAMES - 1)];
+        ArrayScanGameHandler game = new ArrayScanGameHandler(gridSize, PLAYER1, PLAYER2);
+
+        for (int i = 0; i < cells.length; i++) {
+            int result = game.placePiece('A' + cells[i] / gridSize, cells[i] % gridSize + 1, (i & 1) == 0 ? PLAYER1 : PLAYER2);
+            if (result != 0) {
+                blackhole.consume(result);
+                break;
+            }
+        }
+    }
+}
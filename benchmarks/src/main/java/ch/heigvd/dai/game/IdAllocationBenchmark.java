@@ -0,0 +1,81 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of registering a new game while one million games are live.
+ * Each operation registers a game and removes the oldest one, so the number of live games stays constant.
+ *
+ * sequence: the ID comes from the IdSequence of the server.
+ * randomRetry: the ID is drawn at random until a free one is found, as before the sequence,
+ * over a range only 25% larger than the number of live games.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class IdAllocationBenchmark {
+    private static final int LIVE_GAMES = 1_000_000;
+    private static final int RANDOM_RANGE = LIVE_GAMES + LIVE_GAMES / 4;
+
+    private final GameHandler game = new GameHandler(3, 1);
+
+    private ConcurrentHashMap<Integer, GameHandler> gamesMap;
+    private IdSequence gameIds;
+    private int[] liveIds;
+    private int oldest;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        gamesMap = new ConcurrentHashMap<>(LIVE_GAMES * 2);
+        gameIds = new IdSequence();
+        liveIds = new int[LIVE_GAMES];
+        for (int i = 0; i < LIVE_GAMES; i++) {
+            int gameId = gameIds.next();
+            gamesMap.put(gameId, game);
+            liveIds[i] = gameId;
+        }
+    }
+
+    @Benchmark
+    public int sequence() {
+        int gameId;
+        do {
+            gameId = gameIds.next();
+        } while (gamesMap.putIfAbsent(gameId, game) != null);
+        return replaceOldest(gameId);
+    }
+
+    @Benchmark
+    public int randomRetry() {
+        int gameId;
+        do {
+            gameId = 1 + ThreadLocalRandom.current().nextInt(RANDOM_RANGE);
+        } while (gamesMap.containsKey(gameId));
+        gamesMap.put(gameId, game);
+        return replaceOldest(gameId);
+    }
+
+    /**
+     * Removes the oldest live game and keeps the new one in its place.
+     *
+     * @param gameId the ID of the new game
+     * @return the ID of the removed game
+     */
+    private int replaceOldest(int gameId) {
+        int removed = liveIds[oldest];
+        gamesMap.remove(removed);
+        liveIds[oldest] = gameId;
+        oldest = (oldest + 1) % LIVE_GAMES;
+        return removed;
+    }
+}
@@ -0,0 +1,70 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a LIST while 100000 games are in progress and 40 games wait for an opponent.
+ *
+ * scan: every registered game is checked and the reply is formatted again, as before the lobby index.
+ * cachedPage: the page of the lobby did not change since the previous LIST.
+ * rebuiltPage: a game was created just before the LIST, so the page is rendered again from the index.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LobbyBenchmark {
+    private static final int GAMES_IN_PROGRESS = 100_000;
+    private static final int JOINABLE_GAMES = 40;
+
+    private final IntRegistry<GameHandler> gamesMap = new IntRegistry<>();
+    private final Lobby lobby = new Lobby();
+    private int nextGameId = 1;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < GAMES_IN_PROGRESS; i++) {
+            GameHandler game = new GameHandler(3, 1);
+            game.joinGame(2);
+            gamesMap.putIfAbsent(nextGameId++, game);
+        }
+        for (int i = 0; i < JOINABLE_GAMES; i++) {
+            int gridSize = 3 + 2 * (i % 4);
+            gamesMap.putIfAbsent(nextGameId, new GameHandler(gridSize, 1));
+            lobby.add(nextGameId++, gridSize);
+        }
+    }
+
+    @Benchmark
+    public byte[] scan() {
+        StringBuilder gameList = new StringBuilder();
+        gameList.append(GameServer.ServerCommand.GAME_LIST).append(" Game id    Grid Size ¦");
+
+        gamesMap.forEach((game, key) -> {
+            if (game.gameIsJoinable()) {
+                gameList.append(String.format("%7d    %d ¦", key, game.getGridSize()));
+            }
+        });
+        return (gameList + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] cachedPage() {
+        return lobby.page(0, 0, Lobby.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] rebuiltPage() {
+        lobby.add(nextGameId, 3);
+        lobby.remove(nextGameId++, 3);
+        return lobby.page(0, 0, Lobby.DEFAULT_PAGE_SIZE);
+    }
+}
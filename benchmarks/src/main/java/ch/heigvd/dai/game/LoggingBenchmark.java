@@ -0,0 +1,85 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of PLACE moves with one log line each, as several request threads play at the same time.
+ *
+ * place: the move alone.
+ * placeWithPrintln: the former log, a colored line built and printed synchronously under the lock of the stream.
+ * placeWithLog: the asynchronous server log, with its level enabled (DEBUG) or disabled (INFO).
+ * The lines are written to a stream that discards them, so only the cost for the server is measured.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class LoggingBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+    private static final int GRID_SIZE = 9;
+
+    @Param({"DEBUG", "INFO"})
+    public ServerConfig.LogLevel level;
+
+    private GameHandler game;
+    private int move;
+
+    @State(Scope.Benchmark)
+    public static class Output {
+        final PrintStream stream = new PrintStream(OutputStream.nullOutputStream(), true);
+    }
+
+    @Setup
+    public void setup(Output output) {
+        ServerLog.configure(level, ServerConfig.LogFormat.TEXT, output.stream, false);
+    }
+
+    /**
+     * Plays the next move, starting a new game when the grid is full.
+     *
+     * @return the cell played
+     */
+    private int play() {
+        if (game == null || move == GRID_SIZE * GRID_SIZE) {
+            // A game that never ends: every cell is played without checking the result
+            game = new GameHandler(GRID_SIZE, PLAYER1);
+            game.joinGame(PLAYER2);
+            move = 0;
+        }
+        int cell = (move * 7) % (GRID_SIZE * GRID_SIZE);
+        game.placePiece('A' + cell / GRID_SIZE, cell % GRID_SIZE + 1, (move & 1) == 0 ? PLAYER1 : PLAYER2);
+        move++;
+        return cell;
+    }
+
+    @Benchmark
+    public int place() {
+        return play();
+    }
+
+    @Benchmark
+    public int placeWithPrintln(Output output) {
+        int cell = play();
+        output.stream.println(GameServer.ANSI_CYAN + "[Server " + GameServer.SERVER_ID + "] \n"
+                + "       [Client " + PLAYER1 + "] placed at cell " + cell + " in [Game " + 1 + "]" + GameServer.ANSI_RESET);
+        return cell;
+    }
+
+    @Benchmark
+    public int placeWithLog() {
+        int cell = play();
+        ServerLog.log(ServerLog.Event.MOVE, PLAYER1, cell, 1);
+        return cell;
+    }
+}
@@ -0,0 +1,78 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the metrics on PLACE: a move played alone, then with the same instrumentation
+ * as the request handler, which counts the bytes received and records the latency of the command.
+ * Several threads play at the same time, so the shared counters and histograms are contended.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+    private static final int GRID_SIZE = 9;
+
+    // Shuffled cells of the game, encoded as row * gridSize + col
+    private int[] cells;
+    private GameHandler game;
+    private int move;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        cells = new int[GRID_SIZE * GRID_SIZE];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+        }
+        for (int i = cells.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = cells[i];
+            cells[i] = cells[j];
+            cells[j] = tmp;
+        }
+    }
+
+    /**
+     * Plays the next move, starting a new game when the previous one is over.
+     *
+     * @return the result of the move
+     */
+    private int play() {
+        if (game == null || game.gameStatus()) {
+            game = new GameHandler(GRID_SIZE, PLAYER1);
+            game.joinGame(PLAYER2);
+            move = 0;
+        }
+        int cell = cells[move];
+        int result = game.placePiece('A' + cell / GRID_SIZE, cell % GRID_SIZE + 1, (move & 1) == 0 ? PLAYER1 : PLAYER2);
+        move++;
+        return result;
+    }
+
+    @Benchmark
+    public int place() {
+        return play();
+    }
+
+    @Benchmark
+    public int placeInstrumented() {
+        long start = System.nanoTime();
+        ServerMetrics.recordRequest(12);
+        int result = play();
+        ServerMetrics.recordCommand(GameServer.ClientCommand.PLACE, System.nanoTime() - start);
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of the moves appended to the move log, for each durability mode.
+ * Several threads append at the same time, like the sessions of the server, so with PER_MOVE
+ * the moves appended while the writer forces the log share the next fsync.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class MoveLogBenchmark {
+    @Param({"PER_MOVE", "BATCHED", "ASYNC"})
+    public ServerConfig.Durability durability;
+
+    private Path directory;
+    private MoveLog moveLog;
+    private final AtomicInteger players = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("move-log-benchmark");
+        moveLog = MoveLog.open(directory, durability, 10, 0, (position, type, gameId, playerId, argument, token) -> { },
+                e -> { });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        moveLog.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Player {
+        int playerId;
+        int cell;
+
+        @Setup(Level.Trial)
+        public void setup(MoveLogBenchmark benchmark) {
+            playerId = benchmark.players.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    public void place(Player player) {
+        player.cell = (player.cell + 1) % 81;
+        moveLog.append(MoveLog.PLACE, player.playerId, player.playerId, player.cell, 0);
+    }
+}
@@ -0,0 +1,69 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups of a move in the registries while 100000 clients are connected.
+ * One move used to look up the game more than ten times and the opponent twice, it now looks up the opponent once.
+ * Run it with "-prof gc" to see the boxing of the IDs.
+ *
+ * boxedMap: the lookups of a move in a ConcurrentHashMap keyed by boxed IDs, as before the IntRegistry.
+ * intRegistry: the single lookup of a move in the IntRegistry.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    private static final int CLIENTS = 100_000;
+    private static final int GAME_LOOKUPS_PER_MOVE = 12;
+
+    private final ConcurrentHashMap<Integer, Object> boxedClients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Object> boxedGames = new ConcurrentHashMap<>();
+    private final IntRegistry<Object> clients = new IntRegistry<>();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 1;
+
+        int nextId() {
+            next = next % CLIENTS + 1;
+            return next;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int id = 1; id <= CLIENTS; id++) {
+            Object client = new Object();
+            boxedClients.put(id, client);
+            boxedGames.put(id, client);
+            clients.putIfAbsent(id, client);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int boxedMap(Cursor cursor) {
+        int id = cursor.nextId();
+        int found = 0;
+        for (int i = 0; i < GAME_LOOKUPS_PER_MOVE; i++) {
+            found += boxedGames.get(id).hashCode();
+        }
+        return found + boxedClients.get(id).hashCode() + boxedClients.get(id).hashCode();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int intRegistry(Cursor cursor) {
+        return clients.get(cursor.nextId()).hashCode();
+    }
+}
@@ -0,0 +1,71 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of a request line.
+ *
+ * split: as the ClientHandler did before the byte parser, the line is split on spaces, the command is looked up
+ * with ClientCommand.valueOf and every parameter is checked with isNumeric. The malformed requests show the cost
+ * of the exceptions thrown by valueOf and Integer.parseInt.
+ * parseBytes: the Request parser used by both engines, on the bytes of the line as they are received.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+    @Param({"PLACE B 2", "LIST 3 0 20", "JOIN 12345", "PLACE B x", "HELLO", "%$#@! 12ab ~~~~ 99999999999"})
+    public String request;
+
+    private byte[] bytes;
+    private final Request parsed = new Request();
+
+    @Setup
+    public void setup() {
+        bytes = request.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int split() {
+        String[] parts = request.split(" ", 4);
+        GameServer.ClientCommand command;
+        try {
+            command = GameServer.ClientCommand.valueOf(parts[0]);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+
+        int numeric = command.ordinal();
+        for (int i = 1; i < parts.length; i++) {
+            if (GameServer.isNumeric(parts[i])) {
+                numeric++;
+            }
+        }
+        return numeric;
+    }
+
+    @Benchmark
+    public int parseBytes() {
+        Request request = parsed.parse(bytes, 0, bytes.length);
+        if (request.command() == null) {
+            return -1;
+        }
+
+        int numeric = request.command().ordinal();
+        for (int i = 0; i < request.argumentCount(); i++) {
+            if (request.number(i) != Request.NOT_A_NUMBER) {
+                numeric++;
+            }
+        }
+        return numeric;
+    }
+}
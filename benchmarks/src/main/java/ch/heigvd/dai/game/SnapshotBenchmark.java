@@ -0,0 +1,90 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the snapshots of one million live games, of every grid size, with a few moves each.
+ *
+ * load: restores the games from the snapshot into a new registry and lobby, as the server does when it starts.
+ * The budget is 1.5 seconds for one million games, measured by the server itself when it starts cold, JIT included;
+ * the warm load measured here must stay well below it.
+ * write: writes the snapshot of the games, copied by their shards while the server keeps playing them.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    private static final int GAMES = 1_000_000;
+
+    private Path directory;
+    private SnapshotStore store;
+    private IntRegistry<GameHandler> games;
+    private GameShards shards;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("snapshot-benchmark");
+        store = new SnapshotStore(directory);
+        games = new IntRegistry<>();
+        shards = new GameShards(Runtime.getRuntime().availableProcessors(), null);
+
+        Random random = new Random(42);
+        for (int gameId = 1; gameId <= GAMES; gameId++) {
+            int gridSize = 3 + 2 * random.nextInt(4);
+            GameHandler game = new GameHandler(gridSize, 2 * gameId);
+            if (gameId % 10 != 0) {
+                // One game in ten waits for an opponent
+                game.joinGame(2 * gameId + 1);
+                int moves = random.nextInt(gridSize * gridSize / 2);
+                for (int move = 0; move < moves; move++) {
+                    int playerId = move % 2 == 0 ? 2 * gameId : 2 * gameId + 1;
+                    game.placePiece('A' + random.nextInt(gridSize), 1 + random.nextInt(gridSize), playerId);
+                }
+            }
+            game.setLogPosition(gameId);
+            games.putIfAbsent(gameId, game);
+        }
+        store.write(GAMES, games, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public IntRegistry<GameHandler> load() throws IOException {
+        IntRegistry<GameHandler> restored = new IntRegistry<>();
+        Lobby lobby = new Lobby();
+        store.load((game, gameId) -> {
+            restored.putIfAbsent(gameId, game);
+            if (game.gameIsJoinable()) {
+                lobby.add(gameId, game.getGridSize());
+            }
+        });
+        return restored;
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        return store.write(GAMES, games, shards);
+    }
+}
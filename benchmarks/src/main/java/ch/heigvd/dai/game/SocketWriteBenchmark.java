@@ -0,0 +1,110 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the path of the response to a PLACE sent to the opponent, from the encoding of its chain
+ * to the flush on a loopback socket, whose other end is read by a thread as fast as possible.
+ *
+ * encode: builds the chain FIRSTOFCHAIN, STANDARD_MESSAGE, GAME_TABLE, LASTOFCHAIN in one MessageBatch.
+ * writeBatch: encodes the chain and writes it with a single flush, as the writer of a connection does.
+ * writeLines: writes and flushes each line of the chain on its own, as the server did before the batches.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SocketWriteBenchmark {
+    @Param({"3", "9"})
+    public int gridSize;
+
+    private GameHandler game;
+    private ServerSocket serverSocket;
+    private Socket sender;
+    private Socket receiver;
+    private OutputStream out;
+    private Thread reader;
+
+    @Setup
+    public void setup() throws IOException {
+        game = new GameHandler(gridSize, 1);
+        game.joinGame(2);
+        game.placePiece('B', 2, 1);
+
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        sender.setTcpNoDelay(true);
+        receiver = serverSocket.accept();
+        out = new BufferedOutputStream(sender.getOutputStream());
+
+        reader = Thread.ofPlatform().daemon().start(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = receiver.getInputStream()) {
+                while (in.read(buffer) >= 0) {
+                    // Discards everything, only the sender is measured
+                }
+            } catch (IOException e) {
+                // The socket is closed by the tear down
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        sender.close();
+        receiver.close();
+        serverSocket.close();
+        reader.join();
+    }
+
+    @Benchmark
+    public MessageBatch encode() {
+        return chain();
+    }
+
+    @Benchmark
+    public void writeBatch() throws IOException {
+        MessageBatch batch = chain();
+        out.write(batch.array(), 0, batch.length());
+        out.flush();
+    }
+
+    @Benchmark
+    public void writeLines() throws IOException {
+        for (byte[] line : new byte[][]{
+                MessageBatch.encode(GameServer.ServerCommand.FIRSTOFCHAIN.name()),
+                MessageBatch.encode(GameServer.ServerCommand.STANDARD_MESSAGE + " Opponent placed at B 2"),
+                game.getTableFrame(),
+                MessageBatch.encode(GameServer.ServerCommand.LASTOFCHAIN.name())}) {
+            out.write(line);
+            out.flush();
+        }
+    }
+
+    /**
+     * Builds the chain sent to the opponent after a move.
+     *
+     * @return the encoded chain
+     */
+    private MessageBatch chain() {
+        return new MessageBatch()
+                .add(GameServer.ServerCommand.FIRSTOFCHAIN.name())
+                .add(GameServer.ServerCommand.STANDARD_MESSAGE + " Opponent placed at B 2")
+                .add(game.getTableFrame())
+                .add(GameServer.ServerCommand.LASTOFCHAIN.name());
+    }
+}
@@ -0,0 +1,75 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of producing the GAME_TABLE lines of one PLACE, which reaches the mover once
+ * and the opponent once. Run it with "-prof gc" to see the allocation per move.
+ *
+ * rendered: the board is rendered and encoded again for every recipient, as before the cache.
+ * cached: the board is rendered once after the move and the encoded line is shared.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TableFrameBenchmark {
+    private static final int PLAYER1 = 1;
+    private static final int PLAYER2 = 2;
+
+    @Param({"3", "5", "7", "9"})
+    public int gridSize;
+
+    private GameHandler game;
+    private int move;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        newGame();
+    }
+
+    @Benchmark
+    public void rendered(Blackhole blackhole) {
+        playNextMove();
+        for (int recipient = 0; recipient < 2; recipient++) {
+            blackhole.consume((GameServer.ServerCommand.GAME_TABLE + " " + game.getTable() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) {
+        playNextMove();
+        for (int recipient = 0; recipient < 2; recipient++) {
+            blackhole.consume(game.getTableFrame());
+        }
+    }
+
+    /**
+     * Plays the next cell in order, starting a new game once the previous one ended.
+     */
+    private void playNextMove() {
+        int result = game.placePiece('A' + move / gridSize, move % gridSize + 1, (move & 1) == 0 ? PLAYER1 : PLAYER2);
+        move++;
+        if (result != 0) {
+            newGame();
+        }
+    }
+
+    /**
+     * Starts a new game with both players present.
+     */
+    private void newGame() {
+        game = new GameHandler(gridSize, PLAYER1);
+        game.joinGame(PLAYER2);
+        move = 0;
+    }
+}
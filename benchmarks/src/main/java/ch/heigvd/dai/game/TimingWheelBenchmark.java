@@ -0,0 +1,83 @@
+package ch.heigvd.dai.game;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of arming the clock of a game again after a move, while 100k clocks are running.
+ *
+ * timingWheel: the clock is a timer of the TimingWheel of the server, moved to its new deadline.
+ * scheduledExecutor: the clock is a task of a ScheduledThreadPoolExecutor, cancelled and scheduled again,
+ * as with one scheduled task per game.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimingWheelBenchmark {
+    private static final int CLOCKS = 100_000;
+    private static final long MOVE_TIME = TimeUnit.SECONDS.toNanos(30);
+
+    private TimingWheel.Timer[] timers;
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[] futures;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TimingWheel wheel = new TimingWheel("benchmark-clocks", 100, TimeUnit.MILLISECONDS, 1024);
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+
+        timers = new TimingWheel.Timer[CLOCKS];
+        futures = new ScheduledFuture<?>[CLOCKS];
+        for (int i = 0; i < CLOCKS; i++) {
+            timers[i] = new TimingWheel.Timer(wheel) {
+                @Override
+                void expire() {
+                }
+            };
+            timers[i].schedule(System.nanoTime() + MOVE_TIME);
+            futures[i] = executor.schedule(() -> { }, MOVE_TIME, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int timingWheel() {
+        int clock = nextClock();
+        timers[clock].schedule(System.nanoTime() + MOVE_TIME);
+        return clock;
+    }
+
+    @Benchmark
+    public int scheduledExecutor() {
+        int clock = nextClock();
+        futures[clock].cancel(false);
+        futures[clock] = executor.schedule(() -> { }, MOVE_TIME, TimeUnit.NANOSECONDS);
+        return clock;
+    }
+
+    /**
+     * Returns the clock of the next move, going through every clock in turn.
+     *
+     * @return the index of the clock
+     */
+    private int nextClock() {
+        int clock = next;
+        next = (next + 1) % CLOCKS;
+        return clock;
+    }
+}
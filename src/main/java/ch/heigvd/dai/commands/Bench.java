@@ -0,0 +1,107 @@
+package ch.heigvd.dai.commands;
+
+import java.util.concurrent.Callable;
+
+import ch.heigvd.dai.game.BenchConfig;
+import ch.heigvd.dai.game.LoadGenerator;
+import picocli.CommandLine;
+
+/**
+ * This class is the Bench sub command
+ * It implements the standard command and definition of its options, parameters and subcommands.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@CommandLine.Command(name = "bench", description = "Play many games against a server with bots and measure it.")
+public class Bench implements Callable<Integer> {
+
+    @CommandLine.Spec
+    protected CommandLine.Model.CommandSpec spec;
+
+    // Definition of the option for the host
+    @CommandLine.Option(
+            names = {"-H", "--host"},
+            description = "Host to connect to (default: ${DEFAULT-VALUE}).",
+            defaultValue = "localhost")
+    protected String host;
+
+    // Definition of the option for the port
+    @CommandLine.Option(
+            names = {"-p", "--port"},
+            description = "Port to use (default: ${DEFAULT-VALUE}).",
+            defaultValue = "6433")
+    protected int port;
+
+    // Definition of the option for the number of connections
+    @CommandLine.Option(
+            names = {"-c", "--connections"},
+            description = "Number of connections, two per pair of bots playing together (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int connections;
+
+    // Definition of the option for the ramp-up
+    @CommandLine.Option(
+            names = {"--ramp-up"},
+            description = "Seconds over which the connections are opened, the rates are measured after it (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10")
+    protected int rampUp;
+
+    // Definition of the option for the duration
+    @CommandLine.Option(
+            names = {"-d", "--duration"},
+            description = "Seconds of measure once every connection is open (default: ${DEFAULT-VALUE}).",
+            defaultValue = "60")
+    protected int duration;
+
+    // Definition of the option for the mix of grid sizes
+    @CommandLine.Option(
+            names = {"--grid-sizes"},
+            description = "Grid sizes of the games with an optional weight, for example 3:4,9:1 (default: ${DEFAULT-VALUE}).",
+            defaultValue = "3,5,7,9")
+    protected String gridSizes;
+
+    // Definition of the option for the think time
+    @CommandLine.Option(
+            names = {"--think-time"},
+            description = "Milliseconds a bot waits before each move (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected long thinkTime;
+
+    // Definition of the option for the forfeits
+    @CommandLine.Option(
+            names = {"--forfeit-percent"},
+            description = "Percentage of games left by a player before the end (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int forfeitPercent;
+
+    // Definition of the option for the progress lines
+    @CommandLine.Option(
+            names = {"--report-interval"},
+            description = "Seconds between two progress lines, 0 to print only the final report (default: ${DEFAULT-VALUE}).",
+            defaultValue = "5")
+    protected int reportInterval;
+
+    // Function to launch the bots with the values obtained from the options
+    @Override
+    public Integer call() throws InterruptedException {
+        BenchConfig config;
+        try {
+            config = new BenchConfig()
+                    .setHost(host)
+                    .setPort(port)
+                    .setConnections(connections)
+                    .setRampUp(rampUp)
+                    .setDuration(duration)
+                    .setGridSizeMix(gridSizes)
+                    .setThinkTime(thinkTime)
+                    .setForfeitPercent(forfeitPercent)
+                    .setReportInterval(reportInterval);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+        }
+
+        LoadGenerator generator = new LoadGenerator(config);
+        return generator.run() ? 0 : 1;
+    }
+}
@@ -15,6 +15,8 @@ import picocli.CommandLine;
         subcommands = {
                 Client.class,
                 Server.class,
+                Bench.class,
+                Router.class,
         },
         scope = CommandLine.ScopeType.INHERIT,
         mixinStandardHelpOptions = true)
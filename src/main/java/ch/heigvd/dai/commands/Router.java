@@ -0,0 +1,60 @@
+package ch.heigvd.dai.commands;
+
+import java.util.concurrent.Callable;
+
+import ch.heigvd.dai.game.GameRouter;
+import ch.heigvd.dai.game.RouterConfig;
+import picocli.CommandLine;
+
+/**
+ * This class is the Router sub command
+ * It implements the standard command and definition of its options, parameters and subcommands.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+@CommandLine.Command(name = "router", description = "Start the router spreading the clients over a cluster of servers.")
+public class Router implements Callable<Integer> {
+
+    @CommandLine.Spec
+    protected CommandLine.Model.CommandSpec spec;
+
+    // Definition of the option for the port
+    @CommandLine.Option(
+            names = {"-p", "--port"},
+            description = "Port on which the clients connect (default: ${DEFAULT-VALUE}).",
+            defaultValue = "6433")
+    protected int port;
+
+    // Definition of the option for the nodes of the cluster
+    @CommandLine.Option(
+            names = {"-n", "--nodes"},
+            description = "Nodes of the cluster as host:port, in the order of their --node-index (default: ${DEFAULT-VALUE}).",
+            defaultValue = "localhost:6434")
+    protected String nodes;
+
+    // Definition of the option for the connect timeout
+    @CommandLine.Option(
+            names = {"--connect-timeout"},
+            description = "Milliseconds to wait for a node to accept a connection (default: ${DEFAULT-VALUE}).",
+            defaultValue = "2000")
+    protected int connectTimeout;
+
+    // Function to launch the router with the values obtained from the options
+    @Override
+    public Integer call() {
+        RouterConfig config;
+        try {
+            config = new RouterConfig()
+                    .setPort(port)
+                    .setNodes(nodes)
+                    .setConnectTimeout(connectTimeout);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+        }
+
+        GameRouter router = new GameRouter(config);
+        router.launchRouter();
+        return 0; // Success
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.concurrent.Callable;
 
 import ch.heigvd.dai.game.GameServer;
+import ch.heigvd.dai.game.ServerConfig;
 import picocli.CommandLine;
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.*;
@@ -21,6 +22,9 @@ import java.util.concurrent.Executors;
 @CommandLine.Command(name = "server", description = "Start the server part of the network game.")
 public class Server implements Callable<Integer> {
 
+    @CommandLine.Spec
+    protected CommandSpec spec;
+
     // Definition of the option for the port
     @CommandLine.Option(
             names = {"-p", "--port"},
@@ -28,10 +32,231 @@ public class Server implements Callable<Integer> {
             defaultValue = "6433")
     protected int port;
 
-    // Function to launch the server with the value obtained from the option
+    // Definition of the option for the connection engine
+    @CommandLine.Option(
+            names = {"-e", "--engine"},
+            description = "Connection engine to use: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "BLOCKING")
+    protected ServerConfig.Engine engine;
+
+    // Definition of the option for the number of event loops of the NIO engine
+    @CommandLine.Option(
+            names = {"--event-loops"},
+            description = "Number of event loops of the NIO engine (default: one per processor).",
+            defaultValue = "0")
+    protected int eventLoops;
+
+    // Definition of the option for the number of game shards
+    @CommandLine.Option(
+            names = {"--shards"},
+            description = "Number of shards owning the games, each one a thread playing its games (default: one per processor).",
+            defaultValue = "0")
+    protected int shards;
+
+    // Definition of the option for the statistics reports
+    @CommandLine.Option(
+            names = {"--stats-interval"},
+            description = "Seconds between two statistics reports, 0 to disable them (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int statsInterval;
+
+    // Definition of the option for the metrics scrape endpoint
+    @CommandLine.Option(
+            names = {"--metrics-port"},
+            description = "Port of the plain-text metrics endpoint on the loopback interface, 0 to disable it (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int metricsPort;
+
+    // Definition of the option for the capacity of the outbound queues
+    @CommandLine.Option(
+            names = {"--outbound-queue-size"},
+            description = "Maximum number of messages waiting to be sent to one client (default: ${DEFAULT-VALUE}).",
+            defaultValue = "256")
+    protected int outboundQueueSize;
+
+    // Definition of the option for the slow consumer policy
+    @CommandLine.Option(
+            names = {"--overflow-policy"},
+            description = "What to do when a client does not read fast enough: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "DISCONNECT")
+    protected ServerConfig.OverflowPolicy overflowPolicy;
+
+    // Definition of the option for the timeout of the BLOCK policy
+    @CommandLine.Option(
+            names = {"--overflow-timeout"},
+            description = "Milliseconds a sender waits for a full queue with the BLOCK policy (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected long overflowTimeout;
+
+    // Definition of the option for the directory of the move log
+    @CommandLine.Option(
+            names = {"--log-dir"},
+            description = "Directory of the move log used to restore the games after a restart (default: no log).")
+    protected String logDirectory;
+
+    // Definition of the option for the durability of the move log
+    @CommandLine.Option(
+            names = {"--durability"},
+            description = "When the move log is forced to disk: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "BATCHED")
+    protected ServerConfig.Durability durability;
+
+    // Definition of the option for the fsync interval of the BATCHED durability
+    @CommandLine.Option(
+            names = {"--fsync-interval"},
+            description = "Maximum milliseconds between two forces of the move log with the BATCHED durability (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10")
+    protected long fsyncInterval;
+
+    // Definition of the option for the snapshots of the games
+    @CommandLine.Option(
+            names = {"--snapshot-interval"},
+            description = "Seconds between two snapshots of the games written next to the move log, 0 to disable them (default: ${DEFAULT-VALUE}).",
+            defaultValue = "60")
+    protected int snapshotInterval;
+
+    // Definition of the option for the archive of the finished games
+    @CommandLine.Option(
+            names = {"--archive-dir"},
+            description = "Directory of the archive of the finished games, replayed with REPLAY and HISTORY (default: no archive).")
+    protected String archiveDirectory;
+
+    // Definition of the option for the level of the server log
+    @CommandLine.Option(
+            names = {"--log-level"},
+            description = "Most detailed level of the server log: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "INFO")
+    protected ServerConfig.LogLevel logLevel;
+
+    // Definition of the option for the format of the server log
+    @CommandLine.Option(
+            names = {"--log-format"},
+            description = "Format of the server log: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE}).",
+            defaultValue = "TEXT")
+    protected ServerConfig.LogFormat logFormat;
+
+    // Definition of the option for the heartbeats
+    @CommandLine.Option(
+            names = {"--heartbeat-interval"},
+            description = "Seconds without any request before the server sends a PING to a client, 0 to disable the heartbeats (default: ${DEFAULT-VALUE}).",
+            defaultValue = "30")
+    protected int heartbeatInterval;
+
+    // Definition of the option for the idle timeout
+    @CommandLine.Option(
+            names = {"--idle-timeout"},
+            description = "Seconds without any request, PONG included, before a client is disconnected, 0 to keep the idle clients (default: ${DEFAULT-VALUE}).",
+            defaultValue = "90")
+    protected int idleTimeout;
+
+    // Definition of the option for the read timeout
+    @CommandLine.Option(
+            names = {"--read-timeout"},
+            description = "Seconds a request line may stay incomplete before the client is disconnected, 0 to disable it (default: ${DEFAULT-VALUE}).",
+            defaultValue = "30")
+    protected int readTimeout;
+
+    // Definition of the option for the resume timeout
+    @CommandLine.Option(
+            names = {"--resume-timeout"},
+            description = "Seconds a disconnected player has to resume a game kept by the move log before losing it by forfeit, 0 to wait forever (default: ${DEFAULT-VALUE}).",
+            defaultValue = "300")
+    protected int resumeTimeout;
+
+    // Definition of the option for the maximum number of connections
+    @CommandLine.Option(
+            names = {"--max-connections"},
+            description = "Largest number of connections open at the same time, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10000")
+    protected int maxConnections;
+
+    // Definition of the option for the lobby rate
+    @CommandLine.Option(
+            names = {"--lobby-rate"},
+            description = "Lobby requests (LIST, HISTORY, REPLAY, STATS...) a client may send per second, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    protected int lobbyRate;
+
+    // Definition of the option for the move rate
+    @CommandLine.Option(
+            names = {"--move-rate"},
+            description = "Game requests (PLACE, SYNC, QUITGAME) a client may send per second, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    protected int moveRate;
+
+    // Definition of the option for the games per minute
+    @CommandLine.Option(
+            names = {"--games-per-minute"},
+            description = "Games a client may create, join or watch per minute, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10")
+    protected int gamesPerMinute;
+
+    // Definition of the option for the index of the node in its cluster
+    @CommandLine.Option(
+            names = {"--node-index"},
+            description = "Index of this server among the nodes of its cluster, from 0 (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int nodeIndex;
+
+    // Definition of the option for the number of nodes of the cluster
+    @CommandLine.Option(
+            names = {"--node-count"},
+            description = "Number of nodes of the cluster, each one owning a range of the game IDs, 1 for a server alone (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1")
+    protected int nodeCount;
+
+    // Definition of the option for the number of AI threads
+    @CommandLine.Option(
+            names = {"--ai-threads"},
+            description = "Number of threads searching the moves of the AI, shared by all the games against it (default: one per two processors).",
+            defaultValue = "0")
+    protected int aiThreads;
+
+    // Definition of the option for the time budget of the AI
+    @CommandLine.Option(
+            names = {"--ai-move-time"},
+            description = "Milliseconds the AI takes at most to play a move, also its time when the game gives none (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int aiMoveTime;
+
+    // Function to launch the server with the values obtained from the options
     @Override
     public Integer call() throws IOException {
-        GameServer server = new GameServer(port);
+        ServerConfig config;
+        try {
+            config = new ServerConfig()
+                    .setPort(port)
+                    .setEngine(engine)
+                    .setEventLoops(eventLoops)
+                    .setShards(shards)
+                    .setStatsInterval(statsInterval)
+                    .setMetricsPort(metricsPort)
+                    .setOutboundQueueSize(outboundQueueSize)
+                    .setOverflowPolicy(overflowPolicy)
+                    .setOverflowTimeout(overflowTimeout)
+                    .setLogDirectory(logDirectory)
+                    .setDurability(durability)
+                    .setFsyncInterval(fsyncInterval)
+                    .setSnapshotInterval(snapshotInterval)
+                    .setArchiveDirectory(archiveDirectory)
+                    .setLogLevel(logLevel)
+                    .setLogFormat(logFormat)
+                    .setHeartbeatInterval(heartbeatInterval)
+                    .setIdleTimeout(idleTimeout)
+                    .setReadTimeout(readTimeout)
+                    .setResumeTimeout(resumeTimeout)
+                    .setMaxConnections(maxConnections)
+                    .setLobbyRate(lobbyRate)
+                    .setMoveRate(moveRate)
+                    .setGamesPerMinute(gamesPerMinute)
+                    .setNode(nodeIndex, nodeCount)
+                    .setAiThreads(aiThreads)
+                    .setAiMoveTime(aiMoveTime);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+        }
+
+        GameServer server = new GameServer(config);
         server.launchServer();
         return 0; // Success
     }
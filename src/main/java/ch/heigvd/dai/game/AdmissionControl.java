@@ -0,0 +1,151 @@
+package ch.heigvd.dai.game;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The limits protecting the server from the clients asking too much.
+ *
+ * The number of open connections is checked once, when a connection is accepted, and a connection above the limit
+ * is refused before any buffer or session is created for it. The requests of each session are then limited by
+ * a token bucket per class of command. The buckets of a session are only used by the thread handling its requests,
+ * so they are plain fields, without any lock or atomic operation.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class AdmissionControl {
+    /**
+     * The classes of commands, each one with its own bucket.
+     * LOBBY covers the requests outside a game, GAMES the requests entering a game, MOVES the requests inside one.
+     */
+    enum Limit {
+        LOBBY("lobby requests"),
+        GAMES("games entered"),
+        MOVES("game requests");
+
+        final String description;
+
+        Limit(String description) {
+            this.description = description;
+        }
+    }
+
+    // The class of each command, by ordinal, null for the commands never limited
+    private static final Limit[] LIMITS = new Limit[GameServer.ClientCommand.values().length];
+
+    static {
+        for (GameServer.ClientCommand command : GameServer.ClientCommand.values()) {
+            LIMITS[command.ordinal()] = switch (command) {
+                case CREATE, JOIN, QUICKMATCH, WATCH, RESUME -> Limit.GAMES;
+                case PLACE, SYNC, QUITGAME -> Limit.MOVES;
+                // The answer to a heartbeat of the server
+                case PONG -> null;
+                default -> Limit.LOBBY;
+            };
+        }
+    }
+
+    /**
+     * The line sent to a connection refused because the server is full.
+     */
+    static final byte[] SERVER_FULL = (GameServer.ServerCommand.INVALID + " The server is full. Please try again later.\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final int maxConnections;
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    // The time between two tokens of each class and the time a full bucket lasts, 0 for the classes not limited
+    private final long[] intervals = new long[Limit.values().length];
+    private final long[] periods = new long[Limit.values().length];
+
+    /**
+     * Instantiates a new Admission control.
+     *
+     * @param config the configuration of the server
+     */
+    AdmissionControl(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        setRate(Limit.LOBBY, config.getLobbyRate(), TimeUnit.SECONDS);
+        setRate(Limit.GAMES, config.getGamesPerMinute(), TimeUnit.MINUTES);
+        setRate(Limit.MOVES, config.getMoveRate(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets the rate of a class of commands. A full bucket holds the tokens of one period.
+     *
+     * @param limit the class of commands
+     * @param count the number of requests per period, 0 for no limit
+     * @param unit  the period
+     */
+    private void setRate(Limit limit, int count, TimeUnit unit) {
+        if (count > 0) {
+            periods[limit.ordinal()] = unit.toNanos(1);
+            intervals[limit.ordinal()] = unit.toNanos(1) / count;
+        }
+    }
+
+    /**
+     * Counts a newly accepted connection, unless the server is full.
+     *
+     * @return false if the connection must be refused
+     */
+    boolean tryAdmit() {
+        if (openConnections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            openConnections.decrementAndGet();
+            ServerMetrics.recordRefusedConnection();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the place of a closed connection.
+     */
+    void release() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * Creates the buckets of a new session, full.
+     *
+     * @return the buckets
+     */
+    Buckets newBuckets() {
+        return new Buckets();
+    }
+
+    /**
+     * The token buckets of one session, used only by the thread handling its requests.
+     *
+     * Each bucket is kept as the time at which it would be full again, which is the same as counting its tokens:
+     * a request takes a token if the bucket is at most one period from full, and pushes that time by one interval.
+     */
+    class Buckets {
+        private final long[] fullAt = new long[Limit.values().length];
+
+        /**
+         * Takes a token for a request.
+         *
+         * @param command the command of the request, null for an invalid request
+         * @param now     the current System.nanoTime
+         * @return the class whose bucket is empty, null if the request can be handled
+         */
+        Limit tryAcquire(GameServer.ClientCommand command, long now) {
+            Limit limit = command == null ? Limit.LOBBY : LIMITS[command.ordinal()];
+            if (limit == null || intervals[limit.ordinal()] == 0) {
+                return null;
+            }
+
+            int index = limit.ordinal();
+            long full = fullAt[index] - now > 0 ? fullAt[index] : now;
+            if (full + intervals[index] - now > periods[index]) {
+                ServerMetrics.recordRateLimited(limit);
+                return limit;
+            }
+            fullAt[index] = full + intervals[index];
+            return null;
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package ch.heigvd.dai.game;
+
+import java.io.Serial;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * The opponent played by the server in the games created with CREATE &lt;grid size&gt; AI.
+ *
+ * A move is searched with negamax and alpha-beta pruning, one ply deeper at a time until the time budget runs out,
+ * so the AI always plays the best move of the last depth searched to the end. The positions already searched are
+ * kept in a transposition table indexed by their Zobrist hash, the XOR of one random key per mark and occupied cell,
+ * updated with one XOR per move. The threads of a search share the table without lock: an entry is stored with its
+ * key XORed with its data, so an entry torn by two threads is never mistaken for the position.
+ *
+ * The searches run on a fork-join pool of their own, smaller than the number of processors, so the shards and the
+ * connections always keep processors for themselves. A search splits the moves of the root among the threads of
+ * the pool only while no other game waits for it: under load, each game searches on one thread and the games are
+ * served in turn, a search leaving its share of the time budget to the games queued behind it. The time budget
+ * counts from the move of the player, the time waiting for the pool included.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+final class AiPlayer {
+    /**
+     * The score of a won game, minus the number of plies before the win so a quicker win is preferred.
+     */
+    private static final int WIN = 100_000_000;
+    private static final int INFINITY = WIN + 1;
+
+    // Returned by the evaluation when no line can be completed anymore, the game being a draw whatever is played
+    private static final int DEAD = Integer.MIN_VALUE;
+
+    // The time is checked once every 1024 nodes
+    private static final int CHECK_INTERVAL = 1023;
+
+    // Each search has a table of 32768 entries, 512 KB
+    private static final int TABLE_BITS = 15;
+
+    private static final Lines[] LINES = new Lines[10];
+
+    static {
+        for (int size = 3; size <= 9; size += 2) {
+            LINES[size] = new Lines(size);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int threads;
+    private final int maxMillis;
+
+    /**
+     * Instantiates the AI with its own threads.
+     *
+     * @param threads   the number of threads searching the moves of all the games
+     * @param maxMillis the longest time given to a move, in milliseconds
+     */
+    AiPlayer(int threads, int maxMillis) {
+        this.threads = threads;
+        this.maxMillis = maxMillis;
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("ai-" + thread.getPoolIndex());
+            // A hint only, the pool being smaller than the number of processors is what leaves room to the shards
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Gets the number of threads searching the moves of all the games.
+     *
+     * @return the number of threads
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets the longest time given to a move, in milliseconds.
+     *
+     * @return the time budget of a move
+     */
+    int getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Searches the move of the AI in a game, on the threads of the AI.
+     * Must be called on the shard of the game, which is only read before this method returns.
+     *
+     * @param game      the game, the AI playing the next move
+     * @param level     the level of the AI in the game, null for the strongest one
+     * @param requested when the move was requested, from which the time budget counts
+     * @param done      receives the move once found, on a thread of the AI
+     */
+    void play(GameHandler game, Level level, long requested, Consumer<Move> done) {
+        int depth = level == null ? Level.MAX_DEPTH : level.depth;
+        int millis = level == null || level.millis == 0 ? maxMillis : Math.min(level.millis, maxMillis);
+        Search search = new Search(LINES[game.getGridSize()], game.getMoves(), depth,
+                requested + TimeUnit.MILLISECONDS.toNanos(millis));
+
+        pool.execute(() -> {
+            try {
+                done.accept(search.run());
+            } catch (Exception e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            }
+        });
+    }
+
+    /**
+     * The level of the AI in one game: how deep it searches and for how long.
+     */
+    static final class Level {
+        /**
+         * The deepest search, enough to play every cell of a 9x9 board.
+         */
+        static final int MAX_DEPTH = 81;
+
+        final int depth;
+        final int millis;
+
+        /**
+         * Instantiates a new Level.
+         *
+         * @param depth  the number of plies searched, at most MAX_DEPTH
+         * @param millis the time given to a move in milliseconds, 0 for the longest time of the server
+         */
+        Level(int depth, int millis) {
+            this.depth = depth;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * The move found by a search, with how much it searched.
+     */
+    static final class Move {
+        final int cell;
+        final int depth;
+        final long nodes;
+        final long nanos;
+
+        private Move(int cell, int depth, long nodes, long nanos) {
+            this.cell = cell;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The lines of one grid size and everything the search precomputes from them.
+     */
+    private static final class Lines {
+        private final int cells;
+
+        // The rows, the columns and both diagonals, as bitboards split in a low and a high word like the games
+        private final long[] lineLow;
+        private final long[] lineHigh;
+
+        private final long[] cellLow;
+        private final long[] cellHigh;
+
+        // The lines going through each cell
+        private final int[][] through;
+
+        // The cells in the order they are tried: on the most lines first, then the closest to the center
+        private final int[] order;
+
+        // The Zobrist keys of each mark on each cell, X then O
+        private final long[][] keys;
+
+        // The score of a line holding the given number of marks of a single player
+        private final int[] weights;
+
+        /**
+         * Computes the lines of a grid size.
+         *
+         * @param gridSize the size of the grid
+         */
+        Lines(int gridSize) {
+            cells = gridSize * gridSize;
+            lineLow = new long[2 * gridSize + 2];
+            lineHigh = new long[2 * gridSize + 2];
+            cellLow = new long[cells];
+            cellHigh = new long[cells];
+            int[][] lines = new int[cells][];
+
+            for (int cell = 0; cell < cells; cell++) {
+                int row = cell / gridSize;
+                int col = cell % gridSize;
+                cellLow[cell] = cell < 64 ? 1L << cell : 0L;
+                cellHigh[cell] = cell < 64 ? 0L : 1L << (cell - 64);
+
+                int[] indexes = {row, gridSize + col, row == col ? 2 * gridSize : -1, row + col == gridSize - 1 ? 2 * gridSize + 1 : -1};
+                lines[cell] = Arrays.stream(indexes).filter(line -> line >= 0).toArray();
+                for (int line : lines[cell]) {
+                    lineLow[line] |= cellLow[cell];
+                    lineHigh[line] |= cellHigh[cell];
+                }
+            }
+            through = lines;
+
+            int center = gridSize / 2;
+            order = IntStream.range(0, cells).boxed()
+                    .sorted((a, b) -> lines[a].length != lines[b].length ? lines[b].length - lines[a].length
+                            : distance(a, gridSize, center) - distance(b, gridSize, center))
+                    .mapToInt(Integer::intValue).toArray();
+
+            SplittableRandom random = new SplittableRandom(gridSize);
+            keys = new long[2][cells];
+            for (int cell = 0; cell < cells; cell++) {
+                keys[0][cell] = random.nextLong();
+                keys[1][cell] = random.nextLong();
+            }
+
+            weights = new int[gridSize];
+            for (int marks = 1; marks < gridSize; marks++) {
+                weights[marks] = 1 << (2 * marks);
+            }
+        }
+
+        private static int distance(int cell, int gridSize, int center) {
+            return Math.abs(cell / gridSize - center) + Math.abs(cell % gridSize - center);
+        }
+    }
+
+    /**
+     * The transposition table of one search. Each entry is two longs: the key XORed with the data, then the data
+     * packing the score, the depth, the bound and the best move.
+     */
+    private static final class Table {
+        private static final int EXACT = 0;
+        private static final int LOWER = 1;
+        private static final int UPPER = 2;
+
+        private final AtomicLongArray entries = new AtomicLongArray(2 << TABLE_BITS);
+
+        /**
+         * Finds the entry of a position.
+         *
+         * @param hash the Zobrist hash of the position
+         * @return the data of the entry, 0 if the position is not in the table
+         */
+        long probe(long hash) {
+            int index = (int) (hash & ((1 << TABLE_BITS) - 1)) << 1;
+            long data = entries.getPlain(index + 1);
+            return (entries.getPlain(index) ^ data) == hash ? data : 0;
+        }
+
+        /**
+         * Stores the entry of a position, replacing the one in its slot.
+         *
+         * @param hash  the Zobrist hash of the position
+         * @param score the score of the position
+         * @param depth the depth searched below the position
+         * @param bound EXACT, or LOWER or UPPER if the score is only a bound
+         * @param move  the best cell found, -1 if none
+         */
+        void store(long hash, int score, int depth, int bound, int move) {
+            int index = (int) (hash & ((1 << TABLE_BITS) - 1)) << 1;
+            long data = (long) score << 32 | (long) depth << 16 | (long) bound << 8 | (move + 1);
+            entries.setPlain(index, hash ^ data);
+            entries.setPlain(index + 1, data);
+        }
+
+        static int score(long data) {
+            return (int) (data >> 32);
+        }
+
+        static int depth(long data) {
+            return (int) (data >>> 16) & 0xFF;
+        }
+
+        static int bound(long data) {
+            return (int) (data >>> 8) & 0xFF;
+        }
+
+        static int move(long data) {
+            return (int) (data & 0xFF) - 1;
+        }
+    }
+
+    /**
+     * The search of one move, deepened one ply at a time until it reaches its depth or its deadline.
+     */
+    private final class Search {
+        private final Lines lines;
+        private final byte[] moves;
+        private final int maxDepth;
+        private long deadline;
+        private final Table table = new Table();
+
+        // Only the first depth is searched to the end whatever the time, so there is always a move to play
+        private volatile boolean stoppable;
+        private volatile boolean stopped;
+
+        // The best move of the root for the depth being searched, alpha being its score
+        private volatile int alpha;
+        private int bestCell;
+        private long nodes;
+
+        Search(Lines lines, byte[] moves, int maxDepth, long deadline) {
+            this.lines = lines;
+            this.moves = moves;
+            this.maxDepth = maxDepth;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Searches the move, on a thread of the pool.
+         *
+         * @return the move to play
+         */
+        Move run() {
+            long start = System.nanoTime();
+            // The games waiting for the pool share what is left of the budget with this one, each in its turn
+            int turns = 1 + pool.getQueuedSubmissionCount() / threads;
+            deadline = start + (deadline - start) / turns;
+
+            Searcher main = new Searcher(this);
+            int[] rootMoves = main.legalMoves();
+            int played = rootMoves[0];
+            int reached = 0;
+
+            for (int depth = 1; depth <= Math.min(maxDepth, rootMoves.length) && rootMoves.length > 1; depth++) {
+                if (depth > 1 && System.nanoTime() - deadline > 0) {
+                    break;
+                }
+                stoppable = depth > 1;
+                alpha = -INFINITY;
+                bestCell = -1;
+
+                // The best move of the previous depth first, it gives the bound cutting the other moves
+                main.searchRoot(rootMoves, 0, 1, 1, depth);
+                int rest = rootMoves.length - 1;
+                int tasks = Math.min(threads, rest);
+                if (tasks > 1 && !stopped && pool.getQueuedSubmissionCount() == 0) {
+                    RootTask[] split = new RootTask[tasks];
+                    for (int i = 0; i < tasks; i++) {
+                        split[i] = new RootTask(this, main, rootMoves, 1 + i, tasks, depth);
+                    }
+                    ForkJoinTask.invokeAll(split);
+                } else {
+                    main.searchRoot(rootMoves, 1, rootMoves.length, 1, depth);
+                }
+
+                if (stopped) {
+                    break;
+                }
+                played = bestCell;
+                reached = depth;
+                for (int i = 0; i < rootMoves.length; i++) {
+                    if (rootMoves[i] == played) {
+                        System.arraycopy(rootMoves, 0, rootMoves, 1, i);
+                        rootMoves[0] = played;
+                        break;
+                    }
+                }
+                if (Math.abs(alpha) > WIN - lines.cells) {
+                    // A forced win or loss was found, searching deeper cannot change it
+                    break;
+                }
+            }
+
+            synchronized (this) {
+                nodes += main.nodes;
+            }
+            return new Move(played, reached, nodes, System.nanoTime() - start);
+        }
+
+        /**
+         * Keeps a move of the root if it is better than the best one found so far.
+         *
+         * @param cell  the move
+         * @param score its score
+         */
+        synchronized void offer(int cell, int score) {
+            if (score > alpha) {
+                alpha = score;
+                bestCell = cell;
+            }
+        }
+
+        /**
+         * Adds the nodes searched by a thread of the root.
+         *
+         * @param searched the number of nodes
+         */
+        synchronized void addNodes(long searched) {
+            nodes += searched;
+        }
+
+        /**
+         * Stops the search once its deadline passed, if the depth being searched may be given up.
+         */
+        void checkTime() {
+            if (stoppable && System.nanoTime() - deadline > 0) {
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Searches some moves of the root on another thread of the pool, with its own copy of the board.
+     */
+    private static final class RootTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        // Never serialized, a task only lives during its search
+        private final transient Search search;
+        private final transient Searcher board;
+        private final int[] rootMoves;
+        private final int from;
+        private final int step;
+        private final int depth;
+
+        RootTask(Search search, Searcher board, int[] rootMoves, int from, int step, int depth) {
+            this.search = search;
+            this.board = board;
+            this.rootMoves = rootMoves;
+            this.from = from;
+            this.step = step;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            Searcher searcher = new Searcher(board);
+            searcher.searchRoot(rootMoves, from, rootMoves.length, step, depth);
+            search.addNodes(searcher.nodes);
+        }
+    }
+
+    /**
+     * The board of one thread of a search, played and unplayed in place.
+     */
+    private static final class Searcher {
+        private final Search search;
+        private final Lines lines;
+        private final Table table;
+
+        // The bitboards of X and O
+        private final long[] low = new long[2];
+        private final long[] high = new long[2];
+        private long hash;
+        private int played;
+        private long nodes;
+
+        /**
+         * Sets up the board of the game searched.
+         *
+         * @param search the search
+         */
+        Searcher(Search search) {
+            this.search = search;
+            this.lines = search.lines;
+            this.table = search.table;
+            for (byte cell : search.moves) {
+                play(cell, played & 1);
+            }
+        }
+
+        /**
+         * Copies the board of another thread of the same search.
+         *
+         * @param other the board to copy
+         */
+        Searcher(Searcher other) {
+            this.search = other.search;
+            this.lines = other.lines;
+            this.table = other.table;
+            System.arraycopy(other.low, 0, low, 0, 2);
+            System.arraycopy(other.high, 0, high, 0, 2);
+            this.hash = other.hash;
+            this.played = other.played;
+        }
+
+        /**
+         * Lists the empty cells, in the order they are tried.
+         *
+         * @return the cells that can be played
+         */
+        int[] legalMoves() {
+            return Arrays.stream(lines.order).filter(cell -> !isOccupied(cell)).toArray();
+        }
+
+        /**
+         * Searches some moves of the root, and offers their scores to the search.
+         *
+         * @param rootMoves the moves of the root
+         * @param from      the index of the first move searched
+         * @param end       the index after the last move searched
+         * @param step      the distance between two moves searched
+         * @param depth     the depth of the search
+         */
+        void searchRoot(int[] rootMoves, int from, int end, int step, int depth) {
+            int side = played & 1;
+            for (int i = from; i < end; i += step) {
+                int cell = rootMoves[i];
+                // The bound is read again for each move, so the moves already searched by the other threads cut this one
+                int alpha = search.alpha;
+                int score = play(cell, side) ? WIN : played == lines.cells ? 0 : -negamax(depth - 1, -INFINITY, -alpha, 1);
+                unplay(cell, side);
+                if (search.stopped) {
+                    return;
+                }
+                search.offer(cell, score);
+            }
+        }
+
+        /**
+         * Scores the position for the player to move.
+         *
+         * @param depth the number of plies left to search
+         * @param alpha the score the player to move is already sure to get
+         * @param beta  the score the opponent is already sure to keep the player below
+         * @param ply   the number of plies from the root
+         * @return the score, from WIN for a win to -WIN for a loss
+         */
+        private int negamax(int depth, int alpha, int beta, int ply) {
+            if ((++nodes & CHECK_INTERVAL) == 0) {
+                search.checkTime();
+            }
+            if (search.stopped) {
+                return 0;
+            }
+
+            int side = played & 1;
+            int evaluation = evaluate(side);
+            if (evaluation == DEAD) {
+                return 0;
+            }
+            if (depth == 0) {
+                return evaluation;
+            }
+
+            long entry = table.probe(hash);
+            int tableMove = -1;
+            if (entry != 0) {
+                tableMove = Table.move(entry);
+                if (Table.depth(entry) >= depth) {
+                    int score = fromTable(Table.score(entry), ply);
+                    switch (Table.bound(entry)) {
+                        case Table.EXACT -> {
+                            return score;
+                        }
+                        case Table.LOWER -> alpha = Math.max(alpha, score);
+                        default -> beta = Math.min(beta, score);
+                    }
+                    if (alpha >= beta) {
+                        return score;
+                    }
+                }
+            }
+
+            int originalAlpha = alpha;
+            int best = -INFINITY;
+            int bestCell = -1;
+            // The best move stored in the table first, then every cell in the static order
+            for (int i = -1; i < lines.order.length; i++) {
+                int cell = i < 0 ? tableMove : lines.order[i];
+                if (cell < 0 || (i >= 0 && cell == tableMove) || isOccupied(cell)) {
+                    continue;
+                }
+
+                int score = play(cell, side) ? WIN - ply : played == lines.cells ? 0 : -negamax(depth - 1, -beta, -alpha, ply + 1);
+                unplay(cell, side);
+                if (search.stopped) {
+                    return 0;
+                }
+
+                if (score > best) {
+                    best = score;
+                    bestCell = cell;
+                    if (score > alpha) {
+                        alpha = score;
+                        if (alpha >= beta) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            int bound = best <= originalAlpha ? Table.UPPER : best >= beta ? Table.LOWER : Table.EXACT;
+            table.store(hash, toTable(best, ply), depth, bound, bestCell);
+            return best;
+        }
+
+        /**
+         * Scores the board for a player: each line still open to a single player counts for that player,
+         * the more marks it holds the more it counts.
+         *
+         * @param side the player, 0 for X and 1 for O
+         * @return the score, DEAD if no line can be completed anymore
+         */
+        private int evaluate(int side) {
+            int score = 0;
+            boolean open = false;
+            for (int line = 0; line < lines.lineLow.length; line++) {
+                int x = Long.bitCount(low[0] & lines.lineLow[line]) + Long.bitCount(high[0] & lines.lineHigh[line]);
+                int o = Long.bitCount(low[1] & lines.lineLow[line]) + Long.bitCount(high[1] & lines.lineHigh[line]);
+                if (o == 0) {
+                    score += lines.weights[x];
+                    open = true;
+                } else if (x == 0) {
+                    score -= lines.weights[o];
+                    open = true;
+                }
+            }
+            if (!open) {
+                return DEAD;
+            }
+            return side == 0 ? score : -score;
+        }
+
+        /**
+         * Plays a cell.
+         *
+         * @param cell the cell
+         * @param side the player, 0 for X and 1 for O
+         * @return true if the move completes a line
+         */
+        private boolean play(int cell, int side) {
+            low[side] |= lines.cellLow[cell];
+            high[side] |= lines.cellHigh[cell];
+            hash ^= lines.keys[side][cell];
+            played++;
+            for (int line : lines.through[cell]) {
+                if ((low[side] & lines.lineLow[line]) == lines.lineLow[line] && (high[side] & lines.lineHigh[line]) == lines.lineHigh[line]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void unplay(int cell, int side) {
+            low[side] &= ~lines.cellLow[cell];
+            high[side] &= ~lines.cellHigh[cell];
+            hash ^= lines.keys[side][cell];
+            played--;
+        }
+
+        private boolean isOccupied(int cell) {
+            return ((low[0] | low[1]) & lines.cellLow[cell]) != 0 || ((high[0] | high[1]) & lines.cellHigh[cell]) != 0;
+        }
+
+        /**
+         * Converts a score to be stored in the table: a win is counted from the position instead of the root,
+         * so the entry is right wherever the position is found again.
+         */
+        private static int toTable(int score, int ply) {
+            return score > WIN - 100 ? score + ply : score < -WIN + 100 ? score - ply : score;
+        }
+
+        private static int fromTable(int score, int ply) {
+            return score > WIN - 100 ? score - ply : score < -WIN + 100 ? score + ply : score;
+        }
+    }
+}
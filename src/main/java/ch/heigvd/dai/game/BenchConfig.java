@@ -0,0 +1,220 @@
+package ch.heigvd.dai.game;
+
+import java.util.Arrays;
+
+/**
+ * The configuration of the load generator, built from the options of the bench command.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class BenchConfig {
+    private String host = "localhost";
+    private int port = 6433;
+    private int connections = 1000;
+    private int rampUp = 10;
+    private int duration = 60;
+    private int[] gridSizes = {3, 5, 7, 9};
+    private long thinkTime = 0;
+    private int forfeitPercent = 0;
+    private int reportInterval = 5;
+
+    /**
+     * Gets the host of the server.
+     *
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Sets the host of the server.
+     *
+     * @param host the host
+     * @return this configuration
+     */
+    public BenchConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    /**
+     * Gets the port of the server.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port of the server.
+     *
+     * @param port the port
+     * @return this configuration
+     */
+    public BenchConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Gets the number of connections opened to the server, two per pair of bots playing together.
+     *
+     * @return the number of connections
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets the number of connections opened to the server. An odd number is rounded up, every bot has an opponent.
+     *
+     * @param connections the number of connections
+     * @return this configuration
+     */
+    public BenchConfig setConnections(int connections) {
+        this.connections = Math.max(2, connections + (connections & 1));
+        return this;
+    }
+
+    /**
+     * Gets the time over which the connections are opened, in seconds.
+     *
+     * @return the ramp-up
+     */
+    public int getRampUp() {
+        return rampUp;
+    }
+
+    /**
+     * Sets the time over which the connections are opened, in seconds. The rates are measured after it.
+     *
+     * @param rampUp the ramp-up, 0 to open every connection at once
+     * @return this configuration
+     */
+    public BenchConfig setRampUp(int rampUp) {
+        this.rampUp = Math.max(0, rampUp);
+        return this;
+    }
+
+    /**
+     * Gets the time during which the games are measured once every connection is open, in seconds.
+     *
+     * @return the duration
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Sets the time during which the games are measured once every connection is open, in seconds.
+     *
+     * @param duration the duration
+     * @return this configuration
+     */
+    public BenchConfig setDuration(int duration) {
+        this.duration = Math.max(1, duration);
+        return this;
+    }
+
+    /**
+     * Gets the grid sizes of the games, each repeated as many times as its weight.
+     *
+     * @return the grid sizes to draw from
+     */
+    int[] getGridSizes() {
+        return gridSizes;
+    }
+
+    /**
+     * Sets the mix of grid sizes of the games, as a list of sizes with an optional weight, for example "3:4,9:1".
+     *
+     * @param mix the mix of grid sizes
+     * @return this configuration
+     * @throws IllegalArgumentException if a size or a weight is invalid
+     */
+    public BenchConfig setGridSizeMix(String mix) {
+        int[] sizes = new int[0];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":", 2);
+            if (!GameServer.isNumeric(parts[0]) || !Lobby.isGridSize(Integer.parseInt(parts[0]))) {
+                throw new IllegalArgumentException("Invalid grid size '" + parts[0] + "'. Available grid size : 3, 5, 7, 9");
+            }
+            int weight = parts.length == 2 && GameServer.isNumeric(parts[1]) ? Integer.parseInt(parts[1]) : parts.length == 2 ? -1 : 1;
+            if (weight < 0 || weight > 100) {
+                throw new IllegalArgumentException("Invalid weight in '" + entry.trim() + "', it must be between 0 and 100.");
+            }
+
+            int from = sizes.length;
+            sizes = Arrays.copyOf(sizes, from + weight);
+            Arrays.fill(sizes, from, sizes.length, Integer.parseInt(parts[0]));
+        }
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException("The grid size mix has no weight.");
+        }
+        this.gridSizes = sizes;
+        return this;
+    }
+
+    /**
+     * Gets the time a bot waits before each of its moves, in milliseconds.
+     *
+     * @return the think time
+     */
+    public long getThinkTime() {
+        return thinkTime;
+    }
+
+    /**
+     * Sets the time a bot waits before each of its moves, in milliseconds.
+     *
+     * @param thinkTime the think time, 0 to play as fast as the server answers
+     * @return this configuration
+     */
+    public BenchConfig setThinkTime(long thinkTime) {
+        this.thinkTime = Math.max(0, thinkTime);
+        return this;
+    }
+
+    /**
+     * Gets the percentage of games left by a player before the end.
+     *
+     * @return the percentage of forfeits
+     */
+    public int getForfeitPercent() {
+        return forfeitPercent;
+    }
+
+    /**
+     * Sets the percentage of games left by a player before the end, at a random move.
+     *
+     * @param forfeitPercent the percentage of forfeits
+     * @return this configuration
+     */
+    public BenchConfig setForfeitPercent(int forfeitPercent) {
+        this.forfeitPercent = Math.clamp(forfeitPercent, 0, 100);
+        return this;
+    }
+
+    /**
+     * Gets the time between two progress lines, in seconds.
+     *
+     * @return the report interval
+     */
+    public int getReportInterval() {
+        return reportInterval;
+    }
+
+    /**
+     * Sets the time between two progress lines, in seconds.
+     *
+     * @param reportInterval the report interval, 0 to print only the final report
+     * @return this configuration
+     */
+    public BenchConfig setReportInterval(int reportInterval) {
+        this.reportInterval = Math.max(0, reportInterval);
+        return this;
+    }
+}
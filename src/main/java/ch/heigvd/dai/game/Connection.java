@@ -0,0 +1,57 @@
+package ch.heigvd.dai.game;
+
+/**
+ * The transport used by a ClientHandler to talk to its client.
+ * Implementations exist for the blocking engine and for the NIO engine.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+interface Connection {
+    /**
+     * Sends a batch of message lines to the client with a single write and flush.
+     * This method can be called from any thread.
+     *
+     * @param batch the messages to send
+     */
+    void send(MessageBatch batch);
+
+    /**
+     * Returns the remote address of the client, formatted as host:port.
+     *
+     * @return the remote address
+     */
+    String remoteAddress();
+
+    /**
+     * Indicates whether the client is connected from the host of the server.
+     *
+     * @return true if the remote address is a loopback address
+     */
+    boolean isLoopback();
+
+    /**
+     * Returns when the oldest request line not yet terminated started to arrive.
+     * This method can be called from any thread.
+     *
+     * @return the System.nanoTime of its first bytes, 0 if no request line is incomplete
+     */
+    long partialSince();
+
+    /**
+     * Stops reading requests until {@link #resume} is called, because the request being handled was sent to
+     * the shard of its game. Called by the thread handling the request, before the request is sent.
+     */
+    void suspend();
+
+    /**
+     * Reads the next requests again once the shard handled the request. A session closed meanwhile is only
+     * cleaned up now. This method is called from the shard.
+     */
+    void resume();
+
+    /**
+     * Closes the connection with the client.
+     */
+    void close();
+}
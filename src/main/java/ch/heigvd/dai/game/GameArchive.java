@@ -0,0 +1,286 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The archive of the finished games, kept on disk so their moves can be replayed later.
+ *
+ * Each game is one record appended to a data file: its players, grid size and outcome, then one byte per move.
+ * Two index files give the offset of a record in constant time without keeping anything in memory: the game
+ * index holds 8 bytes per game ID, and the player index 8 bytes per player ID pointing to the last game of the
+ * player. Every record also points to the previous game of each of its players, so the history of a player is
+ * read one record at a time, newest first. The IDs are sequential, so both indexes stay dense.
+ *
+ * Record layout: game ID (4), grid size (1), outcome (1), number of moves (1), player1 ID (4), player2 ID (4),
+ * offset of the previous game of player1 (8) and of player2 (8), then the cells played, in order.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class GameArchive implements AutoCloseable {
+    static final int X_WINS = 1;
+    static final int O_WINS = 2;
+    static final int DRAW = 3;
+    static final int X_LEFT = 4;
+    static final int O_LEFT = 5;
+    static final int X_TIMEOUT = 6;
+    static final int O_TIMEOUT = 7;
+
+    private static final int MAGIC = 0x54545441;
+    private static final int HEADER_SIZE = 31;
+
+    private final FileChannel data;
+    private final FileChannel gameIndex;
+    private final FileChannel playerIndex;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(HEADER_SIZE + 81);
+
+    // Guarded by this
+    private long dataSize;
+
+    private GameArchive(FileChannel data, FileChannel gameIndex, FileChannel playerIndex) throws IOException {
+        this.data = data;
+        this.gameIndex = gameIndex;
+        this.playerIndex = playerIndex;
+        this.dataSize = data.size();
+    }
+
+    /**
+     * Opens the archive of the given directory, creating it if needed.
+     *
+     * @param directory the directory of the archive
+     * @return the archive
+     * @throws IOException if the archive cannot be opened
+     */
+    static GameArchive open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel data = FileChannel.open(directory.resolve("games.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (data.size() == 0) {
+            // The offset 0 means "no game" in the indexes, so the data starts after a header
+            data.write(ByteBuffer.allocate(8).putInt(MAGIC).putInt(0).flip(), 0);
+        }
+
+        return new GameArchive(data,
+                FileChannel.open(directory.resolve("games.idx"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                FileChannel.open(directory.resolve("players.idx"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Archives a finished game. The record is written before the indexes point to it,
+     * so a crash in between never leaves an index pointing to a partial record.
+     *
+     * @param gameId  the ID of the game
+     * @param game    the game, archived from its shard
+     * @param outcome how the game ended: X_WINS, O_WINS, DRAW, X_LEFT, O_LEFT, X_TIMEOUT or O_TIMEOUT
+     * @throws IOException if the archive cannot be written
+     */
+    synchronized void append(int gameId, GameHandler game, int outcome) throws IOException {
+        int player1 = game.getPlayer1ID();
+        int player2 = game.getPlayer2ID();
+        byte[] moves = game.getMoves();
+        long offset = dataSize;
+
+        writeBuffer.clear()
+                .putInt(gameId)
+                .put((byte) game.getGridSize())
+                .put((byte) outcome)
+                .put((byte) moves.length)
+                .putInt(player1)
+                .putInt(player2)
+                .putLong(readIndex(playerIndex, player1))
+                .putLong(readIndex(playerIndex, player2))
+                .put(moves)
+                .flip();
+        writeFully(data, writeBuffer, offset);
+        dataSize += writeBuffer.limit();
+
+        writeIndex(gameIndex, gameId, offset);
+        writeIndex(playerIndex, player1, offset);
+        writeIndex(playerIndex, player2, offset);
+    }
+
+    /**
+     * Finds an archived game by its ID.
+     *
+     * @param gameId the ID of the game
+     * @return the game, or null if it is not archived
+     * @throws IOException if the archive cannot be read
+     */
+    Record find(int gameId) throws IOException {
+        long offset = readIndex(gameIndex, gameId);
+        return offset == 0 ? null : readAt(offset);
+    }
+
+    /**
+     * Finds the last archived game of a player.
+     *
+     * @param playerId the ID of the player
+     * @return the game, or null if the player has no archived game
+     * @throws IOException if the archive cannot be read
+     */
+    Record lastGameOf(int playerId) throws IOException {
+        long offset = readIndex(playerIndex, playerId);
+        return offset == 0 ? null : readAt(offset);
+    }
+
+    /**
+     * Finds the archived game of a player played before the given one.
+     *
+     * @param record   a game of the player
+     * @param playerId the ID of the player
+     * @return the previous game, or null if it was the first
+     * @throws IOException if the archive cannot be read
+     */
+    Record previousGameOf(Record record, int playerId) throws IOException {
+        long offset = playerId == record.player1 ? record.previous1 : record.previous2;
+        return offset == 0 ? null : readAt(offset);
+    }
+
+    /**
+     * Gets the highest game ID in the archive, so the server never gives it again.
+     *
+     * @return the highest archived game ID, 0 if the archive is empty
+     * @throws IOException if the archive cannot be read
+     */
+    int highestGameId() throws IOException {
+        return (int) Math.max(0, gameIndex.size() / 8 - 1);
+    }
+
+    /**
+     * Gets the highest player ID in the archive, so the server never gives it again.
+     *
+     * @return the highest archived player ID, 0 if the archive is empty
+     * @throws IOException if the archive cannot be read
+     */
+    int highestPlayerId() throws IOException {
+        return (int) Math.max(0, playerIndex.size() / 8 - 1);
+    }
+
+    /**
+     * Forces the archive to disk and closes it.
+     */
+    @Override
+    public synchronized void close() {
+        try (data; gameIndex; playerIndex) {
+            data.force(false);
+            gameIndex.force(false);
+            playerIndex.force(false);
+        } catch (IOException e) {
+            ServerLog.log(ServerLog.Event.SERVER_ERROR, "cannot close the archive: " + e);
+        }
+    }
+
+    /**
+     * Reads the record at the given offset of the data file.
+     *
+     * @param offset the offset of the record
+     * @return the record
+     * @throws IOException if the archive cannot be read
+     */
+    private Record readAt(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 81);
+        while (buffer.hasRemaining() && data.read(buffer, offset + buffer.position()) > 0) {
+            // Reads until the largest record is read or the end of the file is reached
+        }
+        buffer.flip();
+
+        int gameId = buffer.getInt();
+        int gridSize = buffer.get();
+        int outcome = buffer.get();
+        byte[] moves = new byte[buffer.get()];
+        int player1 = buffer.getInt();
+        int player2 = buffer.getInt();
+        long previous1 = buffer.getLong();
+        long previous2 = buffer.getLong();
+        buffer.get(moves);
+
+        return new Record(gameId, gridSize, outcome, moves, player1, player2, previous1, previous2);
+    }
+
+    private static long readIndex(FileChannel index, int id) throws IOException {
+        if (id <= 0) {
+            return 0;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        while (entry.hasRemaining() && index.read(entry, (long) id * 8 + entry.position()) > 0) {
+            // An entry beyond the end of the index is a player or a game never archived
+        }
+        return entry.position() == 8 ? entry.getLong(0) : 0;
+    }
+
+    private static void writeIndex(FileChannel index, int id, long offset) throws IOException {
+        if (id > 0) {
+            writeFully(index, ByteBuffer.allocate(8).putLong(0, offset), (long) id * 8);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * One archived game.
+     */
+    static final class Record {
+        final int gameId;
+        final int gridSize;
+        final int outcome;
+        final byte[] moves;
+        final int player1;
+        final int player2;
+        private final long previous1;
+        private final long previous2;
+
+        private Record(int gameId, int gridSize, int outcome, byte[] moves,
+                       int player1, int player2, long previous1, long previous2) {
+            this.gameId = gameId;
+            this.gridSize = gridSize;
+            this.outcome = outcome;
+            this.moves = moves;
+            this.player1 = player1;
+            this.player2 = player2;
+            this.previous1 = previous1;
+            this.previous2 = previous2;
+        }
+
+        /**
+         * Describes how the game ended.
+         *
+         * @return the description of the outcome
+         */
+        String describeOutcome() {
+            return switch (outcome) {
+                case X_WINS -> "[X] won";
+                case O_WINS -> "[O] won";
+                case DRAW -> "draw";
+                case X_LEFT -> "[X] left";
+                case X_TIMEOUT -> "[X] ran out of time";
+                case O_TIMEOUT -> "[O] ran out of time";
+                default -> "[O] left";
+            };
+        }
+
+        /**
+         * Plays the moves again on a new board.
+         *
+         * @return the game after the last move
+         */
+        GameHandler replay() {
+            GameHandler game = new GameHandler(gridSize, 1);
+            game.joinGame(2);
+            for (int i = 0; i < moves.length; i++) {
+                game.placePiece('A' + moves[i] / gridSize, moves[i] % gridSize + 1, i % 2 == 0 ? 1 : 2);
+            }
+            return game;
+        }
+    }
+}
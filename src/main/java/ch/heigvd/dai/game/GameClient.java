@@ -17,6 +17,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Commands are processed asynchronously, and the client is designed to handle multiple states
  * such as waiting for a response or playing a game.
  *
+ * When the server supports it, the client negotiates the delta protocol: it keeps its own copy of the board,
+ * applies the MOVE updates sent by the server and draws the board locally.
+ *
  * @author Alex Berberat
  * @author Lisa Gorgerat
  */
@@ -41,6 +44,11 @@ public class GameClient {
 
     private static boolean inGame = false;
 
+    // Local board for the delta protocol, null until the server sends a snapshot
+    private static char[] board;
+    private static int boardSize;
+    private static int boardSequence;
+
     private static final AtomicBoolean expectingResponse = new AtomicBoolean(false);
 
     // Synchronizer Object
@@ -55,7 +63,16 @@ public class GameClient {
         QUIT,
         HELP,
         QUITGAME,
-        PLACE
+        PLACE,
+        PROTOCOL,
+        SYNC,
+        QUICKMATCH,
+        WATCH,
+        RESUME,
+        REPLAY,
+        HISTORY,
+        STATS,
+        PONG
     }
 
     private enum ServerCommand {
@@ -68,7 +85,11 @@ public class GameClient {
         INVALID,
         FIRSTOFCHAIN,
         LASTOFCHAIN,
-        ENDGAME_MESSAGE
+        ENDGAME_MESSAGE,
+        PROTOCOL_OK,
+        GAME_SNAPSHOT,
+        MOVE,
+        PING
     }
 
 
@@ -103,6 +124,8 @@ public class GameClient {
             System.out.println("[Client " + CLIENT_ID + "] Connected to " + HOST + ":" + PORT);
             System.out.println();
 
+            negotiateProtocol();
+
             Thread serverThread = new Thread(new ServerHandler());
             Thread terminalThread = new Thread(new TerminalHandler());
 
@@ -158,6 +181,9 @@ public class GameClient {
                             switch (command) {
                                 case LIST -> {
                                     request = ClientCommand.LIST.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
                                 }
                                 case JOIN -> {
                                     request = ClientCommand.JOIN.name();
@@ -171,6 +197,39 @@ public class GameClient {
                                         request += " " + userInputParts[1];
                                     }
                                 }
+                                case QUICKMATCH -> {
+                                    request = ClientCommand.QUICKMATCH.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
+                                }
+                                case WATCH -> {
+                                    request = ClientCommand.WATCH.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
+                                }
+                                case RESUME -> {
+                                    request = ClientCommand.RESUME.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
+                                }
+                                case REPLAY -> {
+                                    request = ClientCommand.REPLAY.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
+                                }
+                                case HISTORY -> {
+                                    request = ClientCommand.HISTORY.name();
+                                    if (userInputParts.length > 1) {
+                                        request += " " + userInputParts[1];
+                                    }
+                                }
+                                case STATS -> {
+                                    request = ClientCommand.STATS.name();
+                                }
                                 case QUIT -> {
                                     synchronized (quitLock) {
                                         quitLock.notify();
@@ -207,8 +266,7 @@ public class GameClient {
                         if (request != null) {
                             expectingResponse.set(true);
 
-                            socketOut.write(request + "\n");
-                            socketOut.flush();
+                            send(request);
 
                             synchronized (waitResponse) {
                                 waitResponse.wait();
@@ -284,6 +342,7 @@ public class GameClient {
                             }
                             case CONFIRMQUITGAME -> {
                                 inGame = false;
+                                board = null;
                                 System.out.println(ANSI_BRIGHT_YELLOW + serverResponseParts[1] + ANSI_RESET);
                             }
                             case INVALID -> {
@@ -307,6 +366,33 @@ public class GameClient {
                                     System.out.println(s);
                                 }
                             }
+                            case GAME_SNAPSHOT -> {
+                                String[] snapshot = serverResponseParts[1].split(" ");
+                                boardSequence = Integer.parseInt(snapshot[0]);
+                                boardSize = Integer.parseInt(snapshot[1]);
+                                board = snapshot[2].toCharArray();
+                                printBoard();
+                            }
+                            case PING -> {
+                                // The heartbeat of the server, answered without disturbing the terminal
+                                send(ClientCommand.PONG.name());
+                                continue;
+                            }
+                            case MOVE -> {
+                                String[] move = serverResponseParts[1].split(" ");
+                                int sequence = Integer.parseInt(move[0]);
+
+                                if (board == null || sequence != boardSequence + 1) {
+                                    // A move was missed, the whole board is requested again
+                                    send(ClientCommand.SYNC.name());
+                                } else {
+                                    int row = move[1].charAt(0) - 'A';
+                                    int col = Integer.parseInt(move[2]) - 1;
+                                    board[row * boardSize + col] = move[3].charAt(0);
+                                    boardSequence = sequence;
+                                    printBoard();
+                                }
+                            }
                         }
 
                         if (!commandChain) {
@@ -328,14 +414,86 @@ public class GameClient {
         }
     }
 
+    /**
+     * Asks the server to use the delta protocol, before the terminal and server threads are started.
+     * A server that does not know the protocol answers with an error, and the client keeps the full text tables.
+     *
+     * @throws IOException if the connection fails
+     */
+    private static void negotiateProtocol() throws IOException {
+        send(ClientCommand.PROTOCOL + " DELTA");
+
+        String response = socketIn.readLine();
+        if (response != null && response.startsWith(ServerCommand.PROTOCOL_OK.name())) {
+            System.out.println("[Client " + CLIENT_ID + "] Using the delta protocol");
+        }
+    }
+
+    /**
+     * Sends a request to the server.
+     * The server thread can also send requests when the board is out of sync, so the writes are serialized.
+     *
+     * @param request the request to send
+     * @throws IOException if the connection fails
+     */
+    private static void send(String request) throws IOException {
+        synchronized (socketOut) {
+            socketOut.write(request + "\n");
+            socketOut.flush();
+        }
+    }
+
+    /**
+     * Draws the local board in the same format as the GAME_TABLE sent by the server.
+     */
+    private static void printBoard() {
+        StringBuilder header = new StringBuilder();
+        for (int i = 1; i <= boardSize; i++) {
+            header.append("   ").append(i);
+        }
+        System.out.println(header);
+
+        StringBuilder separator = new StringBuilder("  ");
+        for (int col = 0; col < boardSize; col++) {
+            separator.append("---");
+            if (col < boardSize - 1) {
+                separator.append("¦");
+            }
+        }
+
+        for (int row = 0; row < boardSize; row++) {
+            StringBuilder line = new StringBuilder().append((char) ('A' + row)).append("  ");
+            for (int col = 0; col < boardSize; col++) {
+                char cell = board[row * boardSize + col];
+                line.append(cell == '.' ? ' ' : cell);
+                if (col < boardSize - 1) {
+                    line.append(" ¦ ");
+                }
+            }
+            System.out.println(line);
+
+            if (row < boardSize - 1) {
+                System.out.println(separator);
+            }
+        }
+        System.out.println("  ");
+    }
+
     /**
      * Displays a help message for commands available before starting a game.
      */
     private static void help() {
         System.out.println("Usage:");
-        System.out.println(" " + ClientCommand.LIST + " - Display the list of available games.");
+        System.out.println(" " + ClientCommand.LIST + " [grid size] [offset] [limit] - Display the list of available games, optionally of one grid size and one page.");
         System.out.println(" " + ClientCommand.JOIN + " <game id> - Join the game with the given id.");
-        System.out.println(" " + ClientCommand.CREATE + " <grid size> - Create a new game with the given grid size.");
+        System.out.println(" " + ClientCommand.CREATE + " <grid size> [seconds per move] [seconds per player] - Create a new game with the given grid size, optionally with time limits.");
+        System.out.println(" " + ClientCommand.CREATE + " <grid size> AI [depth | <milliseconds>ms] - Create a new game against the AI of the server, optionally limiting how far or how long it searches.");
+        System.out.println(" " + ClientCommand.QUICKMATCH + " <grid size> - Play against the next player looking for a game of the given grid size.");
+        System.out.println(" " + ClientCommand.WATCH + " <game id> - Watch the game with the given id, " + ClientCommand.QUITGAME + " to stop watching.");
+        System.out.println(" " + ClientCommand.RESUME + " <game id> <player id> <token> - Take back your place in a game after a disconnection or a restart of the server.");
+        System.out.println(" " + ClientCommand.REPLAY + " <game id> - Replay the moves of a finished game.");
+        System.out.println(" " + ClientCommand.HISTORY + " [player id] [limit] - List the finished games of a player, yours by default.");
+        System.out.println(" " + ClientCommand.STATS + " - Show the metrics of the server, from the server host only.");
         System.out.println(" " + ClientCommand.QUIT + " - Close the connection to the server.");
         System.out.println(" " + ClientCommand.HELP + " - Display this help message.");
     }
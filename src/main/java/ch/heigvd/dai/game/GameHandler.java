@@ -0,0 +1,839 @@
+package ch.heigvd.dai.game;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Controls the logic and state of one game.
+ *
+ * The board is stored as bitboards: one bitmask per player, where the cell (row, col) is the bit
+ * row * gridSize + col. A 9x9 board has 81 cells, so each bitmask is split in two longs, the low word
+ * for the cells 0 to 63 and the high word for the cells 64 to 80.
+ * The masks of every winning line are precomputed per grid size, so checking a win after a move only
+ * compares the bitmask of the player with the masks of the lines going through the played cell.
+ *
+ * The GAME_TABLE line is rendered and encoded once per move and shared by every recipient.
+ * A 3x3 board only has 3^9 states, so those lines are interned and shared by every 3x3 game.
+ * Clients using the delta protocol receive a MOVE line instead, whose size does not depend on the grid,
+ * and a GAME_SNAPSHOT of the whole board when they join or ask for it.
+ *
+ * A game is only used by the thread of its shard (see {@link GameShards}), which runs the requests of both players
+ * and of the watchers one after the other, so its state needs no lock.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class GameHandler {
+    private static final Masks[] MASKS = new Masks[10];
+    private static final int[] POWERS_OF_THREE = {1, 3, 9, 27, 81, 243, 729, 2187, 6561};
+    private static final AtomicReferenceArray<byte[]> INTERNED_3X3_FRAMES = new AtomicReferenceArray<>(19683);
+
+    static {
+        for (int size = 3; size <= 9; size += 2) {
+            MASKS[size] = new Masks(size);
+        }
+    }
+
+    private final int gridSize;
+    private final Masks masks;
+
+    // Bitboards of player1 [X] and player2 [O]
+    private long player1Low;
+    private long player1High;
+    private long player2Low;
+    private long player2High;
+
+    private int player1ID;
+    private int player2ID;
+
+    // The secrets the players give back with RESUME to take their seat again, 0 for the AI or without a move log
+    private long player1Token;
+    private long player2Token;
+
+    private int tilePlayed;
+
+    // The cells played, in order, player1 [X] playing the even moves
+    private final byte[] moves;
+
+    // Base 3 code of a 3x3 board, used to find its interned GAME_TABLE line
+    private int boardCode;
+
+    // The GAME_TABLE line of the current board, null until it is rendered after a move
+    private byte[] tableFrame;
+
+    // The last move and its MOVE and GAME_SNAPSHOT lines for the delta protocol, encoded on demand
+    private int lastCell;
+    private char lastMark;
+    private byte[] moveFrame;
+    private byte[] snapshotFrame;
+
+    private boolean turnOf;
+    private boolean isFinished;
+    private boolean isJoinable;
+
+    // The clients watching the game, created with the first watcher
+    private Spectators spectators;
+
+    // The position in the move log of the last event applied to the game
+    private long logPosition;
+
+    // The time controls of the game, null when it has none
+    private TurnClock clock;
+
+    // The level of the AI playing [O], null when the game is not against the AI or was restored
+    private AiPlayer.Level aiLevel;
+
+    /**
+     * The largest number of bytes written by {@link #writeTo}, for a 9x9 board.
+     */
+    static final int MAX_SNAPSHOT_SIZE = 40 + 2 * ((81 + 7) / 8) + 81;
+
+
+    /**
+     * Constructor to initialize the game with the given grid size and player1ID.
+     *
+     * @param gridSize The size of the grid (3, 5, 7 or 9).
+     * @param playerID The ID of the player1.
+     */
+    GameHandler(int gridSize, int playerID) {
+        tilePlayed = 0;
+        this.gridSize = gridSize;
+        this.moves = new byte[gridSize * gridSize];
+        this.masks = MASKS[gridSize];
+        this.player1ID = playerID;
+        isJoinable = true;
+    }
+
+    /**
+     * Joins player2 to the game and sets the game as non-joinable.
+     *
+     * @param playerID The ID of the player2.
+     */
+    void joinGame(int playerID) {
+        player2ID = playerID;
+        isJoinable = false;
+        if (clock != null) {
+            clock.start(System.nanoTime());
+        }
+    }
+
+    /**
+     * Indicates the status of the game, whether it is finished or not.
+     *
+     * @return True if the game is finished, false otherwise.
+     */
+    boolean gameStatus() {
+        return isFinished;
+    }
+
+    /**
+     * Indicates whether the game can still be joined by a second player or not.
+     *
+     * @return True if the game is still joinable, false otherwise.
+     */
+    boolean gameIsJoinable() {
+        return isJoinable;
+    }
+
+    /**
+     * Allows a player to quit the game.
+     *
+     * @param playerID The ID of the player quitting the game.
+     * @return The ID of the opponent if one is present, 0 if not.
+     */
+    int quitGame(int playerID) {
+        if (clock != null) {
+            clock.stop();
+        }
+        if (player1ID == 0 || player2ID == 0) {
+            if (playerID == player1ID) {
+                player1ID = 0;
+                return 0;
+            } else {
+                player2ID = 0;
+                return 0;
+            }
+        } else {
+            if (playerID == player1ID) {
+                player1ID = 0;
+                return player2ID;
+            } else {
+                player2ID = 0;
+                return player1ID;
+            }
+        }
+    }
+
+    /**
+     * Returns the symbol of a player of the game.
+     *
+     * @param playerID The ID of the player.
+     * @return 'X' for player1, 'O' for player2, 0 if the ID is not a player of the game.
+     */
+    char markOf(int playerID) {
+        if (playerID == 0) {
+            return 0;
+        }
+        return playerID == player1ID ? 'X' : playerID == player2ID ? 'O' : 0;
+    }
+
+    /**
+     * Returns the opponent's ID based on the given playerID.
+     *
+     * @param playerID The ID of the quiting player.
+     * @return The ID of the opponent if both players are present, 0 if one player is missing.
+     */
+    int getOpponentID(int playerID) {
+        if (player1ID != 0 && player2ID != 0) {
+            if (playerID == player1ID) {
+                return player2ID;
+            } else {
+                return player1ID;
+            }
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Places a piece for the given player on the grid at the given position.
+     * Checks for winning conditions and if the move is valid or not.
+     *
+     * @param row      The row where to place the piece.
+     * @param col      The column where to place the piece.
+     * @param playerID The ID of the player placing the piece.
+     * @return An integer indicating the result of the action:
+     *         -1 if it is not the player's turn.
+     *         -2 if the move is out of bounds.
+     *         -3 if the position is already played.
+     *         -4 if the game is waiting for an opponent.
+     *         -5 if the game is finished.
+     *          1 if the player wins.
+     *          2 if the game ends on a draw.
+     *          0 if the game continues.
+     */
+    int placePiece(int row, int col, int playerID) {
+        if (isFinished) {
+            return -5;
+        }
+
+        if (player1ID == 0 || player2ID == 0) {
+            return -4;
+        }
+
+        if ((playerID == player1ID && turnOf) || (playerID == player2ID && !turnOf)) {
+            return -1;
+        }
+
+        int realRow = row - 65;
+        int realCol = col - 1;
+
+        if (realRow < 0 || realRow > gridSize - 1 || realCol < 0 || realCol > gridSize - 1) {
+            return -2;
+        }
+
+        int cell = realRow * gridSize + realCol;
+        long low = cell < 64 ? 1L << cell : 0L;
+        long high = cell < 64 ? 0L : 1L << (cell - 64);
+
+        if (((player1Low | player2Low) & low) != 0 || ((player1High | player2High) & high) != 0) {
+            return -3;
+        }
+
+        long playerLow;
+        long playerHigh;
+
+        if (playerID == player1ID) {
+            playerLow = player1Low |= low;
+            playerHigh = player1High |= high;
+            turnOf = true;
+        } else {
+            playerLow = player2Low |= low;
+            playerHigh = player2High |= high;
+            turnOf = false;
+        }
+
+        moves[tilePlayed] = (byte) cell;
+        tilePlayed++;
+        tableFrame = null;
+        moveFrame = null;
+        snapshotFrame = null;
+        lastCell = cell;
+        lastMark = playerID == player1ID ? 'X' : 'O';
+        if (gridSize == 3) {
+            boardCode += (playerID == player1ID ? 1 : 2) * POWERS_OF_THREE[cell];
+        }
+
+        // Check for winning conditions on the row, column, and diagonals going through the cell.
+        if (masks.isWinning(playerLow, playerHigh, realRow, realCol)) {
+            isFinished = true;
+            if (clock != null) {
+                clock.stop();
+            }
+            return 1;
+        }
+
+        if (tilePlayed >= gridSize * gridSize) {
+            isFinished = true;
+            if (clock != null) {
+                clock.stop();
+            }
+            return 2;
+        }
+
+        if (clock != null) {
+            clock.switchTurn(System.nanoTime());
+        }
+        return 0;
+    }
+
+    /**
+     * Ends the game if the player to move ran out of time.
+     *
+     * @param now The current System.nanoTime.
+     * @return The symbol of the player who ran out of time, 0 if the game goes on or has no time controls.
+     */
+    char timeOut(long now) {
+        if (isFinished || clock == null || !clock.isExpired(now)) {
+            return 0;
+        }
+        endOnTime();
+        return turnOf ? 'O' : 'X';
+    }
+
+    /**
+     * Ends the game because the player to move ran out of time.
+     */
+    void endOnTime() {
+        isFinished = true;
+        if (clock != null) {
+            clock.stop();
+        }
+    }
+
+    /**
+     * Sets the time controls of the game, before the opponent joins.
+     *
+     * @param clock The clock of the game.
+     */
+    void setClock(TurnClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the time controls of the game.
+     *
+     * @return The clock of the game, null if it has no time controls.
+     */
+    TurnClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the level of the AI playing [O], when the game is created against it.
+     *
+     * @param aiLevel The level of the AI.
+     */
+    void setAiLevel(AiPlayer.Level aiLevel) {
+        this.aiLevel = aiLevel;
+    }
+
+    /**
+     * Returns the level of the AI playing [O].
+     *
+     * @return The level of the AI, null if it is not known.
+     */
+    AiPlayer.Level getAiLevel() {
+        return aiLevel;
+    }
+
+    /**
+     * Returns the content of one cell of the grid.
+     *
+     * @param row The row of the cell, starting at 0.
+     * @param col The column of the cell, starting at 0.
+     * @return 1 if player1 played the cell, 2 if player2 played it, 0 if it is empty.
+     */
+    int getCell(int row, int col) {
+        int cell = row * gridSize + col;
+        if (cell < 64) {
+            long bit = 1L << cell;
+            return (player1Low & bit) != 0 ? 1 : (player2Low & bit) != 0 ? 2 : 0;
+        }
+        long bit = 1L << (cell - 64);
+        return (player1High & bit) != 0 ? 1 : (player2High & bit) != 0 ? 2 : 0;
+    }
+
+    /**
+     * Returns a string representing the game table.
+     * The table is formatted with row labels (A, B, C, ...) and column numbers (1, 2, 3, ...).
+     * [X] represents player1, [O] represents player2 and [ ] represents unplayed positions.
+     *
+     * @return A formatted string representing the current state of the game.
+     */
+    String getTable() {
+        return renderTable(gridSize, this::getCell);
+    }
+
+    /**
+     * Renders a game table with the given cells.
+     *
+     * @param gridSize The size of the grid.
+     * @param cellAt   Gives the content of a cell from its row and column: 1 for [X], 2 for [O],
+     *                 0 for an unplayed position, 3 for a NUL placeholder.
+     * @return A formatted string representing the table.
+     */
+    private static String renderTable(int gridSize, IntBinaryOperator cellAt) {
+        /* format example
+           1   2   3
+        A  0 ¦ 0 ¦ 0
+          ---¦---¦---
+        B  0 ¦ 0 ¦ 0
+          ---¦---¦---
+        C  0 ¦ 0 ¦ 0
+         */
+        StringBuilder tableString = new StringBuilder();
+        for (int i = 1; i <= gridSize; i++) {
+            tableString.append("   ").append(i);
+        }
+        tableString.append("/");
+
+        char rowLabel = 'A';
+
+        for (int rows = 0; rows < gridSize; rows++) {
+            tableString.append(rowLabel).append("  ");
+
+            for (int cols = 0; cols < gridSize; cols++) {
+                tableString.append(switch (cellAt.applyAsInt(rows, cols)) {
+                    case 1 -> "X";
+                    case 2 -> "O";
+                    case 3 -> "\0";
+                    default -> " ";
+                });
+
+                if (cols < gridSize - 1) {
+                    tableString.append(" ¦ ");
+                }
+            }
+
+            tableString.append("/  ");
+
+            if (rows < gridSize - 1) {
+                for (int cols = 0; cols < gridSize; cols++) {
+                    tableString.append("---");
+
+                    if (cols < gridSize - 1) {
+                        tableString.append("¦");
+                    }
+                }
+                tableString.append("/");
+            }
+            rowLabel++;
+        }
+        return tableString.toString();
+    }
+
+    /**
+     * Returns the GAME_TABLE line of the current board, encoded in UTF-8 with its line delimiter.
+     * The line is rendered at most once per move, and the same bytes are returned until the next move.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The encoded GAME_TABLE line.
+     */
+    byte[] getTableFrame() {
+        byte[] frame = tableFrame;
+        if (frame != null) {
+            return frame;
+        }
+
+        if (gridSize == 3) {
+            frame = INTERNED_3X3_FRAMES.get(boardCode);
+            if (frame == null) {
+                frame = renderTableFrame();
+                INTERNED_3X3_FRAMES.compareAndSet(boardCode, null, frame);
+            }
+        } else {
+            frame = renderTableFrame();
+        }
+
+        tableFrame = frame;
+        return frame;
+    }
+
+    /**
+     * Returns the mark of the player who played the last move.
+     *
+     * @return 'X' or 'O'
+     */
+    char getLastMark() {
+        return lastMark;
+    }
+
+    /**
+     * Returns the watchers of the game, creating them if needed.
+     *
+     * @return The watchers of the game.
+     */
+    Spectators spectators() {
+        if (spectators == null) {
+            spectators = new Spectators();
+        }
+        return spectators;
+    }
+
+    /**
+     * Returns the watchers of the game, if any client ever watched it.
+     *
+     * @return The watchers of the game, or null.
+     */
+    Spectators spectatorsIfAny() {
+        return spectators;
+    }
+
+    /**
+     * Returns the MOVE line of the last move for the delta protocol, encoded in UTF-8 with its line delimiter.
+     * Format: MOVE &lt;sequence&gt; &lt;row&gt; &lt;column&gt; &lt;mark&gt;, where the sequence is the number of moves played.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The encoded MOVE line.
+     */
+    byte[] getMoveFrame() {
+        byte[] frame = moveFrame;
+        if (frame == null) {
+            frame = MessageBatch.encode(GameServer.ServerCommand.MOVE + " " + tilePlayed + " "
+                    + (char) ('A' + lastCell / gridSize) + " " + (lastCell % gridSize + 1) + " " + lastMark);
+            moveFrame = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the GAME_SNAPSHOT line of the current board for the delta protocol, encoded in UTF-8 with its line delimiter.
+     * Format: GAME_SNAPSHOT &lt;sequence&gt; &lt;grid size&gt; &lt;cells&gt;, where the cells are listed row by row
+     * as X, O or . for an unplayed position.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The encoded GAME_SNAPSHOT line.
+     */
+    byte[] getSnapshotFrame() {
+        byte[] frame = snapshotFrame;
+        if (frame == null) {
+            StringBuilder cells = new StringBuilder(gridSize * gridSize);
+            for (int row = 0; row < gridSize; row++) {
+                for (int col = 0; col < gridSize; col++) {
+                    cells.append(switch (getCell(row, col)) {
+                        case 1 -> 'X';
+                        case 2 -> 'O';
+                        default -> '.';
+                    });
+                }
+            }
+            frame = MessageBatch.encode(GameServer.ServerCommand.GAME_SNAPSHOT + " " + tilePlayed + " " + gridSize + " " + cells);
+            snapshotFrame = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * Renders the GAME_TABLE line of the current board.
+     * The encoded line of the empty board is copied and the played cells are written at their precomputed
+     * offsets, so the only allocation is the returned array.
+     *
+     * @return The encoded GAME_TABLE line.
+     */
+    private byte[] renderTableFrame() {
+        byte[] frame = masks.emptyFrame.clone();
+        int[] offsets = masks.cellOffsets;
+
+        writeCells(frame, offsets, player1Low, 0, (byte) 'X');
+        writeCells(frame, offsets, player1High, 64, (byte) 'X');
+        writeCells(frame, offsets, player2Low, 0, (byte) 'O');
+        writeCells(frame, offsets, player2High, 64, (byte) 'O');
+        return frame;
+    }
+
+    /**
+     * Writes the mark of every cell set in one word of a bitboard.
+     *
+     * @param frame   The encoded line to write into.
+     * @param offsets The offset of each cell in the encoded line.
+     * @param bits    The word of the bitboard.
+     * @param base    The index of the first cell of the word.
+     * @param mark    The mark of the player.
+     */
+    private static void writeCells(byte[] frame, int[] offsets, long bits, int base, byte mark) {
+        while (bits != 0) {
+            frame[offsets[base + Long.numberOfTrailingZeros(bits)]] = mark;
+            bits &= bits - 1;
+        }
+    }
+
+    /**
+     * Indicates the size of the grid.
+     *
+     * @return The size of the game grid.
+     */
+    int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * Returns the cells played, in order, player1 [X] playing the even moves.
+     * The cell (row, col) is row * gridSize + col.
+     *
+     * @return A copy of the moves.
+     */
+    byte[] getMoves() {
+        return Arrays.copyOf(moves, tilePlayed);
+    }
+
+    /**
+     * Returns the ID of player1 [X].
+     *
+     * @return The ID of player1, 0 if it left.
+     */
+    int getPlayer1ID() {
+        return player1ID;
+    }
+
+    /**
+     * Returns the ID of player2 [O].
+     *
+     * @return The ID of player2, 0 if nobody joined or it left.
+     */
+    int getPlayer2ID() {
+        return player2ID;
+    }
+
+    /**
+     * Sets the resume token of a player, which RESUME must give back to take the seat of the player again.
+     *
+     * @param playerID The ID of the player.
+     * @param token    The resume token.
+     */
+    void setResumeToken(int playerID, long token) {
+        if (playerID == player1ID) {
+            player1Token = token;
+        } else if (playerID == player2ID) {
+            player2Token = token;
+        }
+    }
+
+    /**
+     * Returns the resume token of a player.
+     *
+     * @param playerID The ID of the player.
+     * @return The resume token, 0 if the player is not in the game or has no token.
+     */
+    long getResumeToken(int playerID) {
+        return playerID == 0 ? 0 : playerID == player1ID ? player1Token : playerID == player2ID ? player2Token : 0;
+    }
+
+    /**
+     * Records the position in the move log of the event just applied to the game.
+     * Must be called together with the change it logs.
+     *
+     * @param logPosition The position of the event.
+     */
+    void setLogPosition(long logPosition) {
+        this.logPosition = logPosition;
+    }
+
+    /**
+     * Returns the position in the move log of the last event applied to the game.
+     *
+     * @return The position, 0 if no event was logged.
+     */
+    long getLogPosition() {
+        return logPosition;
+    }
+
+    /**
+     * Writes the state of the game for a snapshot: its ID, grid size, players, turn, state flags, tiles played,
+     * last move, position in the move log, resume tokens of the players, the board, as the bitboards of both players cut to the cells of the grid,
+     * and the cells played in order, one byte per move.
+     * Called on the shard of the game, so the game keeps being played while the rest of the snapshot is written.
+     *
+     * @param out    The buffer, with at least {@link #MAX_SNAPSHOT_SIZE} bytes remaining.
+     * @param gameId The ID of the game.
+     * @return False if both players left, in which case nothing is written.
+     */
+    boolean writeTo(ByteBuffer out, int gameId) {
+        if (player1ID == 0 && player2ID == 0) {
+            return false;
+        }
+
+        out.putInt(gameId)
+                .put((byte) gridSize)
+                .putInt(player1ID)
+                .putInt(player2ID)
+                .put((byte) ((turnOf ? 1 : 0) | (isFinished ? 2 : 0) | (isJoinable ? 4 : 0)))
+                .put((byte) tilePlayed)
+                .put((byte) lastCell)
+                .putLong(logPosition)
+                .putLong(player1Token)
+                .putLong(player2Token);
+
+        int bytes = (gridSize * gridSize + 7) / 8;
+        for (int i = 0; i < bytes; i++) {
+            out.put((byte) (i < 8 ? player1Low >>> (8 * i) : player1High >>> (8 * (i - 8))));
+        }
+        for (int i = 0; i < bytes; i++) {
+            out.put((byte) (i < 8 ? player2Low >>> (8 * i) : player2High >>> (8 * (i - 8))));
+        }
+        out.put(moves, 0, tilePlayed);
+        return true;
+    }
+
+    /**
+     * Reads a game written by {@link #writeTo}, after its ID.
+     *
+     * @param in The buffer, positioned after the ID of the game.
+     * @return The game.
+     */
+    static GameHandler readFrom(ByteBuffer in) {
+        int gridSize = in.get();
+        GameHandler game = new GameHandler(gridSize, in.getInt());
+        game.player2ID = in.getInt();
+        int flags = in.get();
+        game.turnOf = (flags & 1) != 0;
+        game.isFinished = (flags & 2) != 0;
+        game.isJoinable = (flags & 4) != 0;
+        game.tilePlayed = in.get();
+        game.lastCell = in.get();
+        game.logPosition = in.getLong();
+        game.player1Token = in.getLong();
+        game.player2Token = in.getLong();
+
+        int bytes = (gridSize * gridSize + 7) / 8;
+        for (int i = 0; i < bytes; i++) {
+            long bits = in.get() & 0xFFL;
+            if (i < 8) {
+                game.player1Low |= bits << (8 * i);
+            } else {
+                game.player1High |= bits << (8 * (i - 8));
+            }
+        }
+        for (int i = 0; i < bytes; i++) {
+            long bits = in.get() & 0xFFL;
+            if (i < 8) {
+                game.player2Low |= bits << (8 * i);
+            } else {
+                game.player2High |= bits << (8 * (i - 8));
+            }
+        }
+
+        in.get(game.moves, 0, game.tilePlayed);
+
+        if (gridSize == 3) {
+            for (int cell = 0; cell < 9; cell++) {
+                game.boardCode += game.getCell(cell / 3, cell % 3) * POWERS_OF_THREE[cell];
+            }
+        }
+
+        if (game.tilePlayed > 0) {
+            game.lastMark = game.getCell(game.lastCell / gridSize, game.lastCell % gridSize) == 1 ? 'X' : 'O';
+        }
+        return game;
+    }
+
+    /**
+     * The precomputed masks of the winning lines for one grid size.
+     * Each line is described by its low and high words.
+     * It also holds the encoded GAME_TABLE line of the empty board, with the offset of every cell in it.
+     */
+    private static class Masks {
+        private final byte[] emptyFrame;
+        private final int[] cellOffsets;
+        private final long[] rowLow;
+        private final long[] rowHigh;
+        private final long[] colLow;
+        private final long[] colHigh;
+        private final long diagonalLow;
+        private final long diagonalHigh;
+        private final long antiDiagonalLow;
+        private final long antiDiagonalHigh;
+        private final int gridSize;
+
+        /**
+         * Computes the masks of every row, column and diagonal of the grid.
+         *
+         * @param gridSize The size of the grid.
+         */
+        Masks(int gridSize) {
+            this.gridSize = gridSize;
+            rowLow = new long[gridSize];
+            rowHigh = new long[gridSize];
+            colLow = new long[gridSize];
+            colHigh = new long[gridSize];
+
+            long diagLow = 0;
+            long diagHigh = 0;
+            long antiLow = 0;
+            long antiHigh = 0;
+
+            for (int r = 0; r < gridSize; r++) {
+                for (int c = 0; c < gridSize; c++) {
+                    int cell = r * gridSize + c;
+                    long low = cell < 64 ? 1L << cell : 0L;
+                    long high = cell < 64 ? 0L : 1L << (cell - 64);
+
+                    rowLow[r] |= low;
+                    rowHigh[r] |= high;
+                    colLow[c] |= low;
+                    colHigh[c] |= high;
+
+                    if (r == c) {
+                        diagLow |= low;
+                        diagHigh |= high;
+                    }
+                    if (r + c == gridSize - 1) {
+                        antiLow |= low;
+                        antiHigh |= high;
+                    }
+                }
+            }
+
+            diagonalLow = diagLow;
+            diagonalHigh = diagHigh;
+            antiDiagonalLow = antiLow;
+            antiDiagonalHigh = antiHigh;
+
+            // Render every cell as a NUL placeholder to find where the cells are in the encoded line
+            emptyFrame = MessageBatch.encode(GameServer.ServerCommand.GAME_TABLE + " " + renderTable(gridSize, (r, c) -> 3));
+            cellOffsets = new int[gridSize * gridSize];
+            for (int i = 0, cell = 0; i < emptyFrame.length; i++) {
+                if (emptyFrame[i] == 0) {
+                    cellOffsets[cell++] = i;
+                    emptyFrame[i] = ' ';
+                }
+            }
+        }
+
+        /**
+         * Checks whether the bitboard of a player completes a line going through the given cell.
+         *
+         * @param low  The low word of the player's bitboard.
+         * @param high The high word of the player's bitboard.
+         * @param row  The row of the last played cell.
+         * @param col  The column of the last played cell.
+         * @return True if a line through the cell is complete.
+         */
+        boolean isWinning(long low, long high, int row, int col) {
+            if ((low & rowLow[row]) == rowLow[row] && (high & rowHigh[row]) == rowHigh[row]) {
+                return true;
+            }
+            if ((low & colLow[col]) == colLow[col] && (high & colHigh[col]) == colHigh[col]) {
+                return true;
+            }
+            if (row == col
+                    && (low & diagonalLow) == diagonalLow && (high & diagonalHigh) == diagonalHigh) {
+                return true;
+            }
+            return row + col == gridSize - 1
+                    && (low & antiDiagonalLow) == antiDiagonalLow && (high & antiDiagonalHigh) == antiDiagonalHigh;
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package ch.heigvd.dai.game;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The front door of a cluster of servers, each node owning a range of the game and client IDs (see {@link IdSequence}).
+ *
+ * Every client gets a home node, chosen in turn, and its requests are forwarded there as they are, CREATE included.
+ * A JOIN, WATCH or RESUME moves the client to the node owning the game, found from its ID alone, and a QUICKMATCH
+ * to the node of its grid size, so the players of a size still meet. A client is only moved while it is in no game:
+ * the router follows the answers of the node to know when the client enters a game and when it leaves it.
+ * LIST is asked of every node and the pages merged, REPLAY and HISTORY go to the node owning the ID they name.
+ *
+ * Each client has a virtual thread reading its requests, and one per node it uses copying the answers back, only
+ * looking at the first word of each line. The connections to the nodes a client moved away from are kept open,
+ * the router answering their heartbeats, so moving back costs nothing.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class GameRouter {
+    // The first words of the answers the router looks at
+    private static final byte[] PING = GameServer.ServerCommand.PING.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = GameServer.ServerCommand.PONG.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GAME_LIST = GameServer.ServerCommand.GAME_LIST.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INVALID = GameServer.ServerCommand.INVALID.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PROTOCOL_OK = GameServer.ServerCommand.PROTOCOL_OK.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WAIT_OPPONENT = GameServer.ServerCommand.WAIT_OPPONENT.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INIT_GAME = GameServer.ServerCommand.INIT_GAME.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LASTOFCHAIN = GameServer.ServerCommand.LASTOFCHAIN.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONFIRMQUITGAME = GameServer.ServerCommand.CONFIRMQUITGAME.name().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG_LINE = (GameServer.ClientCommand.PONG + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final String NODE_UNAVAILABLE = GameServer.ServerCommand.INVALID + " The server of this game is not available. Please try again later.";
+    private static final String TOO_LONG = GameServer.ServerCommand.INVALID + " Request too long, the limit is " + Request.MAX_LINE_LENGTH + " characters.";
+    private static final String STATS_REFUSED = GameServer.ServerCommand.INVALID + " STATS is only available from the server host.";
+
+    // How long a request waits for the answers it depends on, before the router gives up on them
+    private static final long ANSWER_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final RouterConfig config;
+    private final List<InetSocketAddress> nodes;
+    private final AtomicInteger nextHome = new AtomicInteger();
+
+    /**
+     * Instantiates a new Game router.
+     *
+     * @param config the configuration of the router
+     */
+    public GameRouter(RouterConfig config) {
+        this.config = config;
+        this.nodes = config.getNodes();
+    }
+
+    /**
+     * Listens for the clients and routes each of them on its own virtual thread.
+     */
+    public void launchRouter() {
+        ServerLog.configure(ServerConfig.LogLevel.INFO, ServerConfig.LogFormat.TEXT, System.out, System.console() != null);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> ServerLog.flush(1000), "log-flush"));
+
+        try (ServerSocket serverSocket = new ServerSocket(config.getPort());
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            ServerLog.log(ServerLog.Event.SERVER, "routing port " + config.getPort() + " to " + nodes.size() + " node(s) " + nodes);
+
+            while (!serverSocket.isClosed()) {
+                Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(true);
+                executor.submit(new Session(clientSocket));
+            }
+        } catch (Exception e) {
+            ServerLog.log(ServerLog.Event.EXCEPTION, e);
+        }
+    }
+
+    /**
+     * Gets the node owning a game or a client ID.
+     *
+     * @param id the ID
+     * @return the index of the node
+     */
+    private int nodeOf(int id) {
+        return IdSequence.nodeOf(id, nodes.size());
+    }
+
+    /**
+     * Indicates whether a line starts with a word, followed by a space or nothing.
+     *
+     * @param buffer the buffer holding the line
+     * @param start  the offset of the line
+     * @param end    the end of the line, without its newline
+     * @param word   the ASCII word
+     * @return true if the first word of the line is the word
+     */
+    private static boolean startsWith(byte[] buffer, int start, int end, byte[] word) {
+        return end - start >= word.length && Arrays.equals(buffer, start, start + word.length, word, 0, word.length)
+                && (end - start == word.length || buffer[start + word.length] == ' ');
+    }
+
+    /**
+     * The routing of one client, reading its requests and sending each one to the node it belongs to.
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final Backend[] backends = new Backend[nodes.size()];
+        private OutputStream clientOut;
+
+        // The node the client is on, where the requests go unless they name another node
+        private volatile Backend attached;
+
+        // The last protocol chosen by the client, given to every node it uses, null for the default one
+        private String protocol;
+
+        // The answers of the nodes to a LIST being merged, and the round of requests of the last one sent
+        private final LinkedBlockingQueue<ListAnswer> listAnswers = new LinkedBlockingQueue<>();
+        private int listRound;
+
+        /**
+         * Instantiates a new Session.
+         *
+         * @param socket the socket of the client
+         */
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (socket) {
+                clientOut = new BufferedOutputStream(socket.getOutputStream());
+                // The home of the client, or the next node if it cannot be reached
+                int home = nextHome.getAndIncrement();
+                for (int i = 0; i < backends.length && attached == null; i++) {
+                    attached = backend(Math.floorMod(home + i, backends.length));
+                }
+                if (attached == null) {
+                    sendToClient(NODE_UNAVAILABLE);
+                    return;
+                }
+
+                RequestReader reader = new RequestReader(socket.getInputStream());
+                Backend unflushed = null;
+                Request request;
+                while ((request = reader.next()) != null) {
+                    Backend target = route(request);
+                    if (unflushed != null && unflushed != target) {
+                        unflushed.flush();
+                        unflushed = null;
+                    }
+                    if (target != null) {
+                        target.forward(request);
+                        unflushed = target;
+                    }
+                    // The requests received together are sent together
+                    if (unflushed != null && !reader.hasBuffered()) {
+                        unflushed.flush();
+                        unflushed = null;
+                    }
+                }
+            } catch (IOException e) {
+                // The client or its node is gone
+            } catch (Exception e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            } finally {
+                for (Backend backend : backends) {
+                    if (backend != null) {
+                        backend.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the node a request goes to, answering it here when no node has to.
+         *
+         * @param request the request of the client
+         * @return the connection to the node, or null if the request was answered
+         * @throws IOException if the client or a node cannot be written to
+         */
+        private Backend route(Request request) throws IOException {
+            GameServer.ClientCommand command = request.command();
+            if (command == null) {
+                if (request.isTooLong()) {
+                    sendToClient(TOO_LONG);
+                    return null;
+                }
+                return attached.expect(true);
+            }
+
+            // The node of the request if the client is in no game, -1 for the node of the client
+            int node = switch (command) {
+                case JOIN, WATCH, RESUME, REPLAY -> request.number(0) > 0 ? nodeOf(request.number(0)) : -1;
+                case HISTORY -> request.number(0) > 0 ? nodeOf(request.number(0)) : -1;
+                case QUICKMATCH -> Lobby.isGridSize(request.number(0)) ? (request.number(0) - 3) / 2 % backends.length : -1;
+                default -> -1;
+            };
+
+            Backend current = attached;
+            if ((node >= 0 && backends[node] != current) || (command == GameServer.ClientCommand.LIST && backends.length > 1)) {
+                // Whether the client is in a game depends on the answers to its previous requests
+                current.awaitAnswers();
+            }
+            if (current.inGame) {
+                // Only QUITGAME is answered in every state of a game, the lobby requests are ignored
+                return current.expect(command == GameServer.ClientCommand.QUITGAME || command == GameServer.ClientCommand.PING);
+            }
+
+            switch (command) {
+                case LIST -> {
+                    return list(request);
+                }
+                case PROTOCOL -> {
+                    if (request.argumentEquals(0, "TEXT") || request.argumentEquals(0, "DELTA")) {
+                        protocol = GameServer.ClientCommand.PROTOCOL + (request.argumentEquals(0, "DELTA") ? " DELTA\n" : " TEXT\n");
+                        for (Backend backend : backends) {
+                            if (backend != null && backend != current) {
+                                backend.replayProtocol();
+                            }
+                        }
+                    }
+                    return current.expect(true);
+                }
+                case STATS -> {
+                    // The nodes see the router as a local client, the router checks the address of the client itself
+                    if (!socket.getInetAddress().isLoopbackAddress()) {
+                        sendToClient(STATS_REFUSED);
+                        return null;
+                    }
+                    return current.expect(true);
+                }
+                case JOIN, WATCH, RESUME, QUICKMATCH -> {
+                    Backend target = node >= 0 ? backend(node) : current;
+                    if (target == null) {
+                        sendToClient(NODE_UNAVAILABLE);
+                        return null;
+                    }
+                    attached = target;
+                    return target.expect(true);
+                }
+                case REPLAY, HISTORY -> {
+                    Backend target = node >= 0 ? backend(node) : current;
+                    if (target == null) {
+                        sendToClient(NODE_UNAVAILABLE);
+                        return null;
+                    }
+                    return target.expect(true);
+                }
+                case PONG, PLACE, SYNC, QUITGAME -> {
+                    // Not answered outside of a game
+                    return current.expect(false);
+                }
+                default -> {
+                    return current.expect(true);
+                }
+            }
+        }
+
+        /**
+         * Asks every node for the games of a LIST page and sends the merged page to the client.
+         * The games of every node are read in the order of a page, one page of the node at a time, each page starting
+         * after the last game received from the node, and merged until the page of the client is complete. A node is
+         * never asked for more games than the page can still take, so a first page costs one request per node, and
+         * each {@link Lobby#MAX_PAGE_SIZE} games skipped one more, which the node does not count against the client.
+         *
+         * @param request the LIST request of the client
+         * @return the node answering the request instead of the router, null if the merged page was sent
+         * @throws IOException if the client cannot be written to
+         */
+        private Backend list(Request request) throws IOException {
+            int gridSize = request.number(0, 0);
+            int offset = request.number(1, 0);
+            int limit = request.number(2, Lobby.DEFAULT_PAGE_SIZE);
+            if (backends.length == 1 || (gridSize != 0 && !Lobby.isGridSize(gridSize)) || offset < 0 || limit < 1) {
+                // A node gives the usual answer
+                return attached.expect(true);
+            }
+            long wanted = (long) offset + Math.min(limit, Lobby.MAX_PAGE_SIZE);
+
+            // For every node, its games received and not merged yet, as their grid size then their ID, the last one
+            // received, whether it has no more games or is gone, and whether its number of games was counted
+            long[][] received = new long[backends.length][0];
+            int[] merged = new int[backends.length];
+            long[] cursors = new long[backends.length];
+            boolean[] ended = new boolean[backends.length];
+            boolean[] counted = new boolean[backends.length];
+            boolean[] waiting = new boolean[backends.length];
+
+            StringBuilder gameList = new StringBuilder();
+            Lobby.appendListHeader(gameList);
+            long skipped = 0;
+            int listed = 0;
+            int total = 0;
+            boolean blocked = true;
+            while (blocked && skipped + listed < wanted) {
+                // The nodes whose games were all merged are asked for the next ones
+                int round = ++listRound;
+                int size = (int) Math.min(Lobby.MAX_PAGE_SIZE, wanted - skipped - listed);
+                int asked = 0;
+                for (int i = 0; i < backends.length; i++) {
+                    if (merged[i] < received[i].length || ended[i]) {
+                        continue;
+                    }
+                    String query = GameServer.ClientCommand.LIST + " " + gridSize + " AFTER " + (cursors[i] >>> 32) + " " + (int) cursors[i] + " " + size + "\n";
+                    Backend backend = backend(i);
+                    if (backend != null && backend.askList(query, round)) {
+                        waiting[i] = true;
+                        asked++;
+                    } else {
+                        ended[i] = true;
+                    }
+                }
+
+                long deadline = System.nanoTime() + ANSWER_TIMEOUT;
+                while (asked > 0) {
+                    ListAnswer answer;
+                    try {
+                        answer = listAnswers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    if (answer == null) {
+                        // The nodes still silent are left out of the page, their late answers are dropped
+                        for (int i = 0; i < backends.length; i++) {
+                            if (waiting[i]) {
+                                waiting[i] = false;
+                                ended[i] = true;
+                            }
+                        }
+                        break;
+                    }
+                    int node = Arrays.asList(backends).indexOf(answer.backend);
+                    if (answer.round != round || node < 0 || !waiting[node]) {
+                        // The answer to a round given up
+                        continue;
+                    }
+                    waiting[node] = false;
+                    asked--;
+
+                    if (answer.line.startsWith(GameServer.ServerCommand.INVALID.name())) {
+                        sendToClient(answer.line);
+                        return null;
+                    }
+                    if (answer.line.isEmpty()) {
+                        ended[node] = true;
+                        continue;
+                    }
+
+                    String[] parts = answer.line.split("¦");
+                    received[node] = new long[parts.length - 2];
+                    merged[node] = 0;
+                    for (int j = 1; j < parts.length - 1; j++) {
+                        String[] fields = parts[j].trim().split(" +");
+                        received[node][j - 1] = ((long) Integer.parseInt(fields[1]) << 32) | Integer.parseInt(fields[0]);
+                    }
+                    if (!counted[node]) {
+                        counted[node] = true;
+                        total += Integer.parseInt(parts[parts.length - 1].trim().split(" ")[2]);
+                    }
+                    // A page shorter than asked is the end of the games of the node
+                    ended[node] = received[node].length < size;
+                    if (received[node].length > 0) {
+                        cursors[node] = received[node][received[node].length - 1];
+                    }
+                }
+
+                // The smallest game is taken as long as every node with games left has some received
+                blocked = false;
+                while (!blocked && skipped + listed < wanted) {
+                    int next = -1;
+                    for (int i = 0; i < backends.length; i++) {
+                        if (merged[i] < received[i].length) {
+                            if (next < 0 || received[i][merged[i]] < received[next][merged[next]]) {
+                                next = i;
+                            }
+                        } else if (!ended[i]) {
+                            blocked = true;
+                        }
+                    }
+                    if (next < 0 || blocked) {
+                        break;
+                    }
+
+                    long game = received[next][merged[next]++];
+                    if (skipped < offset) {
+                        skipped++;
+                    } else {
+                        Lobby.appendListEntry(gameList, (int) game, (int) (game >>> 32));
+                        listed++;
+                    }
+                }
+            }
+            Lobby.appendListFooter(gameList, listed, total);
+            sendToClient(gameList.toString());
+            return null;
+        }
+
+        /**
+         * Gets the connection of the client to a node, opening it if needed.
+         *
+         * @param node the index of the node
+         * @return the connection, null if the node cannot be reached
+         */
+        private Backend backend(int node) {
+            Backend backend = backends[node];
+            if (backend != null && !backend.socket.isClosed()) {
+                return backend;
+            }
+
+            Socket nodeSocket = new Socket();
+            try {
+                nodeSocket.setTcpNoDelay(true);
+                nodeSocket.connect(nodes.get(node), config.getConnectTimeout());
+                backend = new Backend(nodeSocket);
+            } catch (IOException e) {
+                try {
+                    nodeSocket.close();
+                } catch (IOException ignored) {
+                    // Never connected
+                }
+                ServerLog.log(ServerLog.Event.SERVER_WARNING, "cannot reach node " + node + " at " + nodes.get(node) + ": " + e.getMessage());
+                return null;
+            }
+
+            backends[node] = backend;
+            if (protocol != null) {
+                backend.replayProtocol();
+            }
+            Thread.ofVirtual().start(backend);
+            return backend;
+        }
+
+        /**
+         * Sends a line of the router itself to the client.
+         *
+         * @param line the line, without its newline
+         * @throws IOException if the client cannot be written to
+         */
+        private void sendToClient(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (clientOut) {
+                clientOut.write(bytes);
+                clientOut.flush();
+            }
+        }
+
+        /**
+         * The answer of a node to a request of a LIST being merged, an empty line if the node is gone meanwhile.
+         */
+        private class ListAnswer {
+            private final Backend backend;
+            private final int round;
+            private final String line;
+
+            ListAnswer(Backend backend, int round, String line) {
+                this.backend = backend;
+                this.round = round;
+                this.line = line;
+            }
+        }
+
+        /**
+         * The connection of the client to one node, whose answers are copied back to the client by its own thread.
+         */
+        private class Backend implements Runnable {
+            private final Socket socket;
+            private final OutputStream out;
+
+            // Whether the client is in a game on this node, from the answers of the node
+            private volatile boolean inGame;
+
+            // The requests sent while not in a game and not answered yet, guarded by this connection
+            private int unanswered;
+
+            // The answers the router swallows: the rounds of the LIST requests being merged, oldest first, and the
+            // protocol given to the node again
+            private final ArrayDeque<Integer> listRounds = new ArrayDeque<>();
+            private int protocolReplays;
+
+            /**
+             * Instantiates a new Backend on a connected socket.
+             *
+             * @param socket the socket connected to the node
+             * @throws IOException if the socket cannot be used
+             */
+            Backend(Socket socket) throws IOException {
+                this.socket = socket;
+                this.out = new BufferedOutputStream(socket.getOutputStream());
+            }
+
+            /**
+             * Counts a request about to be forwarded, if the node answers it.
+             *
+             * @param answered whether the node answers the request
+             * @return this connection
+             */
+            synchronized Backend expect(boolean answered) {
+                if (answered) {
+                    unanswered++;
+                }
+                return this;
+            }
+
+            /**
+             * Waits until the requests sent to the node are answered, so it is known whether the client is in a game.
+             */
+            synchronized void awaitAnswers() {
+                long deadline = System.nanoTime() + ANSWER_TIMEOUT;
+                try {
+                    while (unanswered > 0) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            // An answer the router did not recognize, the count starts again
+                            unanswered = 0;
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            /**
+             * Records an answer of the node ending the answer to a request.
+             *
+             * @param entered true if the client entered a game, false if it left its game, null otherwise
+             */
+            private synchronized void answered(Boolean entered) {
+                if (entered != null) {
+                    // The requests sent after entering or leaving a game are not answered in the same way
+                    inGame = entered;
+                    unanswered = 0;
+                } else if (unanswered > 0) {
+                    unanswered--;
+                }
+                notifyAll();
+            }
+
+            /**
+             * Writes a request of the client, flushed with the requests received with it.
+             *
+             * @param request the request
+             * @throws IOException if the node cannot be written to
+             */
+            synchronized void forward(Request request) throws IOException {
+                request.writeTo(out);
+            }
+
+            /**
+             * Sends the requests written so far.
+             *
+             * @throws IOException if the node cannot be written to
+             */
+            synchronized void flush() throws IOException {
+                out.flush();
+            }
+
+            /**
+             * Sends a request of a LIST being merged. Its answer is given back with its round, even after the round was
+             * given up, so that it is never taken for the answer to a later request.
+             *
+             * @param query the LIST request, with its newline
+             * @param round the round of requests it belongs to
+             * @return false if the node cannot be written to
+             */
+            synchronized boolean askList(String query, int round) {
+                listRounds.add(round);
+                try {
+                    out.write(query.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    listRounds.removeLast();
+                    return false;
+                }
+            }
+
+            /**
+             * Gives the protocol of the client to the node, whose answer is not sent to the client.
+             */
+            synchronized void replayProtocol() {
+                try {
+                    out.write(protocol.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    protocolReplays++;
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            /**
+             * Answers a heartbeat of the node while the client is elsewhere.
+             *
+             * @throws IOException if the node cannot be written to
+             */
+            private synchronized void pong() throws IOException {
+                out.write(PONG_LINE);
+                out.flush();
+            }
+
+            /**
+             * Closes the connection to the node.
+             */
+            void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+
+            /**
+             * Copies the answers of the node to the client until the connection is closed, a whole read at a time.
+             * Closing the connection of the client's current node closes the client as well.
+             */
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int limit = 0;
+                try {
+                    InputStream in = socket.getInputStream();
+                    int read;
+                    while ((read = in.read(buffer, limit, buffer.length - limit)) > 0) {
+                        limit += read;
+
+                        // The bytes from copied up to the current line are sent to the client in one write
+                        int copied = 0;
+                        int lineStart = 0;
+                        for (int i = 0; i < limit; i++) {
+                            if (buffer[i] != '\n') {
+                                continue;
+                            }
+                            int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                            if (!keep(buffer, lineStart, lineEnd)) {
+                                copy(buffer, copied, lineStart);
+                                copied = i + 1;
+                            }
+                            lineStart = i + 1;
+                        }
+
+                        if (lineStart == 0 && limit == buffer.length) {
+                            // A line longer than the buffer is copied as it comes
+                            lineStart = limit;
+                        }
+                        copy(buffer, copied, lineStart);
+                        synchronized (clientOut) {
+                            clientOut.flush();
+                        }
+
+                        System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+                        limit -= lineStart;
+                    }
+                } catch (IOException e) {
+                    // The node or the client is gone
+                } finally {
+                    close();
+                    synchronized (this) {
+                        while (!listRounds.isEmpty()) {
+                            listAnswers.add(new ListAnswer(this, listRounds.poll(), ""));
+                        }
+                    }
+                    answered(false);
+                    if (attached == this) {
+                        try {
+                            Session.this.socket.close();
+                        } catch (IOException e) {
+                            // Already closed
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Looks at the first word of an answer line, and decides whether the client receives it.
+             *
+             * @param buffer the buffer holding the line
+             * @param start  the offset of the line
+             * @param end    the end of the line, without its newline
+             * @return false if the line is for the router only
+             * @throws IOException if the node cannot be written to
+             */
+            private boolean keep(byte[] buffer, int start, int end) throws IOException {
+                if (attached != this && startsWith(buffer, start, end, PING)) {
+                    pong();
+                    return false;
+                }
+                if (startsWith(buffer, start, end, GAME_LIST) || startsWith(buffer, start, end, INVALID)) {
+                    synchronized (this) {
+                        if (!listRounds.isEmpty()) {
+                            listAnswers.add(new ListAnswer(this, listRounds.poll(), new String(buffer, start, end - start, StandardCharsets.UTF_8)));
+                            return false;
+                        }
+                    }
+                }
+                if (startsWith(buffer, start, end, PROTOCOL_OK)) {
+                    synchronized (this) {
+                        if (protocolReplays > 0) {
+                            protocolReplays--;
+                            return false;
+                        }
+                    }
+                }
+
+                if (startsWith(buffer, start, end, WAIT_OPPONENT) || startsWith(buffer, start, end, INIT_GAME)) {
+                    answered(true);
+                } else if (startsWith(buffer, start, end, CONFIRMQUITGAME)) {
+                    answered(false);
+                } else if (startsWith(buffer, start, end, LASTOFCHAIN) || startsWith(buffer, start, end, INVALID)
+                        || startsWith(buffer, start, end, GAME_LIST) || startsWith(buffer, start, end, PROTOCOL_OK)
+                        || startsWith(buffer, start, end, PONG)) {
+                    // The last line of the answer to a request
+                    answered(null);
+                }
+                return true;
+            }
+
+            /**
+             * Copies a part of the buffer to the client, flushed once the whole read is copied.
+             *
+             * @param buffer the buffer
+             * @param from   the first byte to copy
+             * @param to     the end of the bytes to copy
+             * @throws IOException if the client cannot be written to
+             */
+            private void copy(byte[] buffer, int from, int to) throws IOException {
+                if (to > from) {
+                    synchronized (clientOut) {
+                        clientOut.write(buffer, from, to - from);
+                    }
+                }
+            }
+        }
+    }
+}
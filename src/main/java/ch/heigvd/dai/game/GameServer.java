@@ -2,10 +2,17 @@ package ch.heigvd.dai.game;
 
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 
 /**
@@ -13,26 +20,68 @@ import java.util.concurrent.Executors;
  * and controls communication with clients using sockets. Clients can create, join games, place tiles
  * and quit games. The server controls game logic and communication with multiple clients simultanously.
  *
+ * Connections are served either by the blocking engine, with one virtual thread per socket,
+ * or by the NIO engine, with a small pool of event loops (see {@link NioEngine}). Either way, the requests using
+ * a game are handed over to the shard owning it (see {@link GameShards}), the only thread ever touching the game.
+ *
  * @author Alex Berberat
  * @author Lisa Gorgerat
  */
 public class GameServer {
-    private final int PORT;
-    private static final int SERVER_ID = (int) (Math.random() * 1000000);
-    private static final ConcurrentHashMap<Integer, Socket> clientMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Integer, BufferedWriter> clientWriter = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Integer, GameHandler> gamesMap = new ConcurrentHashMap<>();
+    private final ServerConfig config;
+    static final int SERVER_ID = (int) (Math.random() * 1000000);
+    private static final IntRegistry<ClientHandler> clientMap = new IntRegistry<>();
+    private static final IntRegistry<GameHandler> gamesMap = new IntRegistry<>();
+    private static final Lobby lobby = new Lobby();
+    private static final Matchmaker matchmaker = new Matchmaker(GameServer::startMatch);
+
+    // The IDs given to the clients and the games, within the range of the node in a cluster
+    private static IdSequence clientIds = new IdSequence();
+    private static IdSequence gameIds = new IdSequence();
+
+    // The log of the game events and the snapshots of the games, null when the server runs without them
+    private static MoveLog moveLog;
+    private static SnapshotStore snapshots;
+
+    // The archive of the finished games, null when the server runs without it
+    private static GameArchive archive;
+
+    // The games in progress whose player disconnected, oldest first, forfeited if the player is not back in time
+    private static final ConcurrentLinkedQueue<AbandonedGame> abandonedGames = new ConcurrentLinkedQueue<>();
+    private static int resumeTimeout;
+
+    // Draws the resume tokens, the secret a player gives back with RESUME to take its seat again
+    private static final SecureRandom resumeTokens = new SecureRandom();
+
+    // The limits on the connections and on the requests of each client
+    private static AdmissionControl admission;
+
+    // The event loops owning the games, each game being only used by the loop of its shard
+    private static GameShards shards;
+
+    // The opponent played by the server, and the client ID it plays under in every game against it
+    private static AiPlayer ai;
+    private static int aiPlayerId;
+
+    // Fires the turn clocks of every game, with a precision of 100 ms
+    private static final TimingWheel turnClocks = new TimingWheel("turn-clocks", 100, TimeUnit.MILLISECONDS, 1024);
+
+    /**
+     * The number of games listed by HISTORY when the client does not give a limit, and the largest limit.
+     */
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+    private static final int MAX_HISTORY_SIZE = 100;
 
     /**
      * ANSI codes for formatting console text output.
      */
-    private static final String ANSI_RESET = "\u001B[0m";
-    private static final String ANSI_RED = "\u001B[31m";
-    private static final String ANSI_GREEN = "\u001B[32m";
-    private static final String ANSI_YELLOW = "\u001B[33m";
-    private static final String ANSI_BLUE = "\u001B[34m";
-    private static final String ANSI_PURPLE = "\u001B[35m";
-    private static final String ANSI_CYAN = "\u001B[36m";
+    static final String ANSI_RESET = "\u001B[0m";
+    static final String ANSI_RED = "\u001B[31m";
+    static final String ANSI_GREEN = "\u001B[32m";
+    static final String ANSI_YELLOW = "\u001B[33m";
+    static final String ANSI_BLUE = "\u001B[34m";
+    static final String ANSI_PURPLE = "\u001B[35m";
+    static final String ANSI_CYAN = "\u001B[36m";
     private static final String ANSI_BRIGHT_RED = "\u001B[31;1m";
     private static final String ANSI_BRIGHT_GREEN = "\u001B[32;1m";
     private static final String ANSI_BRIGHT_YELLOW = "\u001B[33;1m";
@@ -42,15 +91,25 @@ public class GameServer {
     private static final String ANSI_BLINK = "\u001B[5m";
 
 
-    private enum ClientCommand {
+    enum ClientCommand {
         LIST,
         JOIN,
         CREATE,
         QUITGAME,
-        PLACE
+        PLACE,
+        PROTOCOL,
+        SYNC,
+        QUICKMATCH,
+        WATCH,
+        RESUME,
+        REPLAY,
+        HISTORY,
+        STATS,
+        PING,
+        PONG
     }
 
-    private enum ServerCommand {
+    enum ServerCommand {
         INIT_GAME,
         GAME_LIST,
         GAME_TABLE,
@@ -60,578 +119,1720 @@ public class GameServer {
         INVALID,
         FIRSTOFCHAIN,
         LASTOFCHAIN,
-        ENDGAME_MESSAGE
+        ENDGAME_MESSAGE,
+        PROTOCOL_OK,
+        GAME_SNAPSHOT,
+        MOVE,
+        PING,
+        PONG
     }
 
     /**
-     * Instantiates a new Game server with the specified port.
+     * Instantiates a new Game server with the specified port, using the blocking engine.
      *
      * @param port the port on which the server will listen for incoming connections
      */
     public GameServer(int port) {
-        this.PORT = port;
+        this(new ServerConfig().setPort(port));
+    }
+
+    /**
+     * Instantiates a new Game server with the specified configuration.
+     *
+     * @param config the configuration of the server
+     */
+    public GameServer(ServerConfig config) {
+        this.config = config;
     }
 
     /**
-     * Starts the game server, listens for client connections, and controls them with different threads.
-     * The server accepts new clients and assigns them to a ClientHandler.
+     * Starts the game server with the configured engine.
      */
     public void launchServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT);
+        ServerLog.configure(config.getLogLevel(), config.getLogFormat(), System.out, System.console() != null);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> ServerLog.flush(1000), "log-flush"));
+        ServerLog.log(ServerLog.Event.SERVER, "starting with id " + SERVER_ID);
+        admission = new AdmissionControl(config);
+
+        if (config.getNodeCount() > 1) {
+            clientIds = IdSequence.ofNode(config.getNodeIndex(), config.getNodeCount());
+            gameIds = IdSequence.ofNode(config.getNodeIndex(), config.getNodeCount());
+            ServerLog.log(ServerLog.Event.SERVER, "node " + config.getNodeIndex() + " of a cluster of "
+                    + config.getNodeCount() + " nodes");
+        }
+
+        // The first client ID of the node, so the games against the AI keep their opponent after a restart
+        aiPlayerId = clientIds.next();
+        ai = new AiPlayer(config.getAiThreads(), config.getAiMoveTime());
+
+        if (config.getStatsInterval() > 0) {
+            ScheduledExecutorService statsScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stats-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsScheduler.scheduleAtFixedRate(new ServerMetrics.Reporter(),
+                    config.getStatsInterval(), config.getStatsInterval(), TimeUnit.SECONDS);
+        }
+
+        if (config.getMetricsPort() > 0) {
+            try {
+                ServerMetrics.serve(config.getMetricsPort(), () -> ServerMetrics.exposition(gamesMap.size(), lobby));
+                ServerLog.log(ServerLog.Event.SERVER, "metrics on http://127.0.0.1:" + config.getMetricsPort() + "/metrics");
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.SERVER_ERROR, "cannot start the metrics endpoint: " + e);
+                return;
+            }
+        }
+
+        if (config.getArchiveDirectory() != null) {
+            try {
+                archive = GameArchive.open(Path.of(config.getArchiveDirectory()));
+                Runtime.getRuntime().addShutdownHook(new Thread(archive::close, "archive-close"));
+
+                // The archived games keep their IDs, so they are never given again
+                gameIds.advancePast(archive.highestGameId());
+                clientIds.advancePast(archive.highestPlayerId());
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.SERVER_ERROR, "cannot open the archive: " + e);
+                return;
+            }
+        }
+
+        if (config.getLogDirectory() != null) {
+            try {
+                long start = System.nanoTime();
+                Path directory = Path.of(config.getLogDirectory());
+                snapshots = new SnapshotStore(directory);
+                long position = snapshots.load(GameServer::restoreGame);
+                int fromSnapshot = gamesMap.size();
+
+                moveLog = MoveLog.open(directory, config.getDurability(), config.getFsyncInterval(),
+                        position, GameServer::restoreEvent, GameServer::moveLogFailed);
+                Runtime.getRuntime().addShutdownHook(new Thread(moveLog::close, "move-log-close"));
+
+                ServerLog.log(ServerLog.Event.SERVER, "restored " + gamesMap.size() + " game(s) from "
+                        + config.getLogDirectory() + " (" + fromSnapshot + " from the snapshot, "
+                        + (moveLog.position() - position) + " event(s) after it) in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                        + " ms (" + config.getDurability() + " durability)");
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.SERVER_ERROR, "cannot open the move log: " + e);
+                return;
+            }
+
+            if (config.getSnapshotInterval() > 0) {
+                ScheduledExecutorService snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "snapshot-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                snapshotScheduler.scheduleWithFixedDelay(GameServer::takeSnapshot,
+                        config.getSnapshotInterval(), config.getSnapshotInterval(), TimeUnit.SECONDS);
+            }
+        }
+
+        shards = new GameShards(config.getShards(),
+                moveLog != null && config.getDurability() == ServerConfig.Durability.PER_MOVE ? moveLog : null);
+
+        resumeTimeout = moveLog != null ? config.getResumeTimeout() : 0;
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reapSessions, 1, 1, TimeUnit.SECONDS);
+        if (resumeTimeout > 0) {
+            long restoredPosition = moveLog.position();
+            reaper.schedule(() -> reapRestoredGames(restoredPosition), resumeTimeout, TimeUnit.SECONDS);
+        }
+
+        switch (config.getEngine()) {
+            case NIO -> new NioEngine(config).run();
+            default -> launchBlockingServer();
+        }
+    }
+
+    /**
+     * Listens for client connections, and controls them with different threads.
+     * The server accepts new clients and assigns each of them to a virtual thread.
+     */
+    private void launchBlockingServer() {
+        try (ServerSocket serverSocket = new ServerSocket(config.getPort());
              ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
-            System.out.println("[Server " + SERVER_ID + "] starting with id " + SERVER_ID);
-            System.out.println("[Server " + SERVER_ID + "] listening on port " + PORT);
+            ServerLog.log(ServerLog.Event.SERVER, "listening on port " + config.getPort()
+                    + " (blocking engine, " + shards.size() + " game shards)");
 
             while (!serverSocket.isClosed()) {
                 Socket clientSocket = serverSocket.accept();
+                if (!admitConnection()) {
+                    // Refused before any thread or buffer is given to the connection
+                    try (clientSocket) {
+                        clientSocket.getOutputStream().write(AdmissionControl.SERVER_FULL);
+                    } catch (IOException e) {
+                        // The client is gone already
+                    }
+                    continue;
+                }
+                executor.submit(new SocketConnection(clientSocket, config));
+            }
+        } catch (Exception e) {
+            ServerLog.log(ServerLog.Event.EXCEPTION, e);
+        }
+    }
+
+    /**
+     * Counts a newly accepted connection, unless the server already has the maximum number of connections.
+     * A connection admitted is released when its session is closed.
+     *
+     * @return false if the connection must be refused
+     */
+    static boolean admitConnection() {
+        return admission.tryAdmit();
+    }
+
+    /**
+     * Releases the place of an admitted connection that failed before its session was opened.
+     */
+    static void releaseConnection() {
+        admission.release();
+    }
+
+    /**
+     * Creates the ClientHandler of a new connection and registers it under a unique client ID.
+     *
+     * @param connection the connection of the new client
+     * @return the ClientHandler of the client
+     */
+    static ClientHandler openSession(Connection connection) {
+        int clientId;
+        ClientHandler handler;
+        // The sequence only gives an ID in use again after wrapping around
+        do {
+            clientId = clientIds.next();
+            handler = new ClientHandler(connection, clientId);
+        } while (clientMap.putIfAbsent(clientId, handler) != null);
+        ServerMetrics.recordConnectionOpened();
+
+        if (ServerLog.isEnabled(ServerLog.Event.CONNECTED)) {
+            ServerLog.log(ServerLog.Event.CONNECTED, clientId, connection.remoteAddress());
+        }
 
-                int clientId;
-                // Ensure that the client ID is unique
-                do {
-                    clientId = (int) (Math.random() * 100000);
-                } while (clientMap.containsKey(clientId));
-                clientMap.put(clientId, clientSocket);
+        return handler;
+    }
 
-                executor.submit(new ClientHandler(clientSocket, clientId));
+    /**
+     * Writes a snapshot of the live games, then deletes the segments of the move log that are no longer needed.
+     * The games keep being played meanwhile, their shards copy them a small chunk at a time.
+     */
+    private static void takeSnapshot() {
+        try {
+            long start = System.nanoTime();
+            long position = moveLog.position();
+            int games = snapshots.write(position, gamesMap, shards);
+            moveLog.discardUpTo(snapshots.oldestPosition());
+
+            ServerLog.log(ServerLog.Event.SERVER, "snapshot of " + games + " game(s) at log position "
+                    + position + " written in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException e) {
+            ServerLog.log(ServerLog.Event.SERVER_ERROR, "cannot write the snapshot: " + e);
+        }
+    }
+
+    /**
+     * Pings the quiet clients, disconnects the ones that stopped answering or left a request line incomplete,
+     * then forfeits the games whose player did not come back before the resume timeout.
+     * Runs every second on the reaper thread, so the timeouts are only precise to the second.
+     */
+    private void reapSessions() {
+        long now = System.nanoTime();
+        long heartbeatInterval = TimeUnit.SECONDS.toNanos(config.getHeartbeatInterval());
+        long idleTimeout = TimeUnit.SECONDS.toNanos(config.getIdleTimeout());
+        long readTimeout = TimeUnit.SECONDS.toNanos(config.getReadTimeout());
+
+        // The registry cannot change while it is visited, the clients are pinged and closed afterwards
+        List<ClientHandler> quiet = new ArrayList<>();
+        List<ClientHandler> idle = new ArrayList<>();
+        List<ClientHandler> stalled = new ArrayList<>();
+        clientMap.forEach((handler, clientId) -> {
+            long silence = now - handler.lastRequest;
+            long partialSince = handler.connection.partialSince();
+            if (idleTimeout > 0 && silence > idleTimeout) {
+                idle.add(handler);
+            } else if (readTimeout > 0 && partialSince != 0 && now - partialSince > readTimeout) {
+                stalled.add(handler);
+            } else if (heartbeatInterval > 0 && silence > heartbeatInterval && now - handler.lastPing > heartbeatInterval) {
+                quiet.add(handler);
+            }
+        });
+
+        for (ClientHandler handler : quiet) {
+            handler.lastPing = now;
+            ClientHandler.sendToSocket(handler, ServerCommand.PING.name());
+        }
+        for (ClientHandler handler : idle) {
+            ServerLog.log(ServerLog.Event.REAPED, handler.CLIENT_ID, "no request for " + config.getIdleTimeout() + " s");
+            ServerMetrics.recordReaped(true);
+            handler.connection.close();
+        }
+        for (ClientHandler handler : stalled) {
+            ServerLog.log(ServerLog.Event.REAPED, handler.CLIENT_ID, "request incomplete for " + config.getReadTimeout() + " s");
+            ServerMetrics.recordReaped(false);
+            handler.connection.close();
+        }
+
+        if (resumeTimeout > 0) {
+            long deadline = now - TimeUnit.SECONDS.toNanos(resumeTimeout);
+            AbandonedGame abandoned;
+            while ((abandoned = abandonedGames.peek()) != null && abandoned.since - deadline < 0) {
+                abandonedGames.poll();
+                // A player who came back is connected under its ID again, which RESUME takes on the same shard
+                AbandonedGame expired = abandoned;
+                shards.execute(expired.gameId, () -> {
+                    if (clientMap.get(expired.playerId) == null) {
+                        forfeit(expired.gameId, expired.game, expired.playerId);
+                    }
+                });
             }
-        } catch (Exception e) {
-            System.out.println(ANSI_RED + "[Server " + SERVER_ID + "] exception: " + e + ANSI_RESET);
         }
     }
 
     /**
-     * The ClientHandler class manages individual client connections,
-     * handling client commands and interacting with the game logic.
+     * Forfeits the restored games whose players did not come back before the resume timeout after the start.
+     * Only the games untouched since the start are visited, a player who came back is in the abandoned games
+     * if it disconnects again.
+     *
+     * @param restoredPosition the position of the move log after the games were restored
+     */
+    private static void reapRestoredGames(long restoredPosition) {
+        List<Integer> gameIds = new ArrayList<>();
+        List<GameHandler> games = new ArrayList<>();
+        gamesMap.forEach((game, gameId) -> {
+            gameIds.add(gameId);
+            games.add(game);
+        });
+
+        for (int i = 0; i < games.size(); i++) {
+            int gameId = gameIds.get(i);
+            GameHandler game = games.get(i);
+            shards.execute(gameId, () -> {
+                if (game.getLogPosition() > restoredPosition) {
+                    return;
+                }
+                boolean forfeited = false;
+                for (int playerId : new int[]{game.getPlayer1ID(), game.getPlayer2ID()}) {
+                    if (playerId != 0 && playerId != aiPlayerId && clientMap.get(playerId) == null) {
+                        // Once the game is forfeited, the other absent player only leaves it
+                        forfeited = forfeited ? leaveGame(gameId, game, playerId) : forfeit(gameId, game, playerId);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a player who did not come back from its game.
+     *
+     * @param gameId   the ID of the game
+     * @param game     the game
+     * @param playerId the ID of the player
+     * @return false if the player already left the game
+     */
+    private static boolean forfeit(int gameId, GameHandler game, int playerId) {
+        if (!leaveGame(gameId, game, playerId)) {
+            return false;
+        }
+        ServerLog.log(ServerLog.Event.ABANDONED, playerId, gameId);
+        ServerMetrics.recordAbandonedGame();
+        return true;
+    }
+
+    /**
+     * Registers one game read from the snapshot while the server starts.
+     *
+     * @param game   the game
+     * @param gameId the ID of the game
+     */
+    private static void restoreGame(GameHandler game, int gameId) {
+        gamesMap.putIfAbsent(gameId, game);
+        if (game.gameIsJoinable()) {
+            lobby.add(gameId, game.getGridSize());
+        }
+
+        gameIds.advancePast(gameId);
+        clientIds.advancePast(game.getPlayer1ID());
+        clientIds.advancePast(game.getPlayer2ID());
+    }
+
+    /**
+     * Applies one event read from the move log while the server starts.
+     * The games are rebuilt exactly as the requests built them, and the ID sequences skip the restored IDs.
+     * An event already contained in the snapshot of its game is skipped.
+     *
+     * @param position the position of the event in the log
+     * @param type     the type of the event
+     * @param gameId   the ID of the game
+     * @param playerId the ID of the player
+     * @param argument the grid size for CREATE, the cell for PLACE
+     * @param token    the resume token of the player for CREATE and JOIN
+     */
+    private static void restoreEvent(long position, byte type, int gameId, int playerId, int argument, long token) {
+        gameIds.advancePast(gameId);
+        clientIds.advancePast(playerId);
+
+        GameHandler game = gamesMap.get(gameId);
+        if (type == MoveLog.CREATE) {
+            if (game == null) {
+                game = new GameHandler(argument, playerId);
+                game.setResumeToken(playerId, token);
+                game.setLogPosition(position);
+                gamesMap.putIfAbsent(gameId, game);
+                lobby.add(gameId, argument);
+            }
+            return;
+        }
+
+        if (game == null || position <= game.getLogPosition()) {
+            return;
+        }
+        game.setLogPosition(position);
+        switch (type) {
+            case MoveLog.JOIN -> {
+                lobby.remove(gameId, game.getGridSize());
+                game.joinGame(playerId);
+                game.setResumeToken(playerId, token);
+            }
+            case MoveLog.PLACE -> game.placePiece('A' + argument / game.getGridSize(), argument % game.getGridSize() + 1, playerId);
+            case MoveLog.QUIT -> {
+                if (game.quitGame(playerId) == 0) {
+                    lobby.remove(gameId, game.getGridSize());
+                    gamesMap.remove(gameId);
+                }
+            }
+            case MoveLog.TIMEOUT -> game.endOnTime();
+        }
+    }
+
+    /**
+     * Stops the server once its move log cannot be written anymore, on a disk full or an I/O error.
+     * The games could only go on without being durable, so the server exits rather than acknowledging moves that
+     * a restart would lose; the events already on disk are restored when it starts again.
+     *
+     * @param e the error of the move log
      */
-    static class ClientHandler implements Runnable {
+    private static void moveLogFailed(IOException e) {
+        ServerLog.log(ServerLog.Event.SERVER_ERROR, "the move log cannot be written, stopping the server: " + e);
+        // Not on the writer thread, which the shutdown hook closing the log waits for
+        new Thread(() -> System.exit(1), "move-log-failure").start();
+    }
+
+    /**
+     * Appends an event to the move log, if the server has one, and records its position in the game.
+     * Must be called on the shard of the game, right after applying the event.
+     * With the PER_MOVE durability, the messages sent afterwards by the shard are held until the event is on disk.
+     *
+     * @param type     the type of the event
+     * @param gameId   the ID of the game
+     * @param game     the game
+     * @param playerId the ID of the player
+     * @param argument the grid size for CREATE, the cell for PLACE, 0 otherwise
+     */
+    private static void logEvent(byte type, int gameId, GameHandler game, int playerId, int argument) {
+        logEvent(type, gameId, game, playerId, argument, 0);
+    }
+
+    /**
+     * Gives a player who just took a seat in a game a random resume token, then logs the CREATE or JOIN event
+     * with it, so the token survives a restart. Without a move log, a seat cannot be resumed and gets no token.
+     * Must be called on the shard of the game, right after the player took the seat.
+     *
+     * @param type     CREATE or JOIN
+     * @param gameId   the ID of the game
+     * @param game     the game
+     * @param playerId the ID of the player
+     * @param argument the grid size for CREATE, 0 for JOIN
+     */
+    private static void logSeat(byte type, int gameId, GameHandler game, int playerId, int argument) {
+        long token = moveLog != null ? resumeTokens.nextLong(1, Long.MAX_VALUE) : 0;
+        game.setResumeToken(playerId, token);
+        logEvent(type, gameId, game, playerId, argument, token);
+    }
+
+    /**
+     * Appends an event with the resume token of the player to the move log, if the server has one.
+     *
+     * @param type     the type of the event
+     * @param gameId   the ID of the game
+     * @param game     the game
+     * @param playerId the ID of the player
+     * @param argument the grid size for CREATE, the cell for PLACE, 0 otherwise
+     * @param token    the resume token of the player for CREATE and JOIN, 0 otherwise
+     */
+    private static void logEvent(byte type, int gameId, GameHandler game, int playerId, int argument, long token) {
+        if (moveLog != null) {
+            long position = moveLog.append(type, gameId, playerId, argument, token);
+            game.setLogPosition(position);
+            shards.logged(position);
+        }
+    }
+
+    /**
+     * Records how a game ended, and writes it to the archive if the server has one.
+     * Must be called on the shard of the game, before the players leave it.
+     *
+     * @param gameId  the ID of the game
+     * @param game    the game
+     * @param outcome how the game ended
+     */
+    private static void finishGame(int gameId, GameHandler game, int outcome) {
+        ServerMetrics.recordOutcome(outcome);
+        if (archive != null) {
+            try {
+                archive.append(gameId, game, outcome);
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.ARCHIVE_FAILED, gameId, e);
+            }
+        }
+    }
+
+    /**
+     * Ends a game whose player to move ran out of time, on the shard of the game once its clock fired.
+     * Nothing happens if a move or a quit was handled before the timeout.
+     *
+     * @param gameId the ID of the game
+     * @param game   the game
+     */
+    private static void turnTimedOut(int gameId, GameHandler game) {
+        char mark = game.timeOut(System.nanoTime());
+        if (mark == 0) {
+            return;
+        }
+        int loserId = mark == 'X' ? game.getPlayer1ID() : game.getPlayer2ID();
+        int winnerId = game.getOpponentID(loserId);
+        logEvent(MoveLog.TIMEOUT, gameId, game, loserId, 0);
+        finishGame(gameId, game, mark == 'X' ? GameArchive.X_TIMEOUT : GameArchive.O_TIMEOUT);
+
+        ServerLog.log(ServerLog.Event.TIMED_OUT, loserId, gameId);
+
+        Spectators spectators = game.spectatorsIfAny();
+        if (spectators != null) {
+            spectators.publish("[" + mark + "] ran out of time.", null, null);
+        }
+
+        ClientHandler.sendToSocket(clientMap.get(loserId), new MessageBatch()
+                .add(ServerCommand.FIRSTOFCHAIN.name())
+                .add(ServerCommand.STANDARD_MESSAGE + " You ran out of time.")
+                .add(EndGameMessage.GAME_LOST_FRAME)
+                .add(ServerCommand.LASTOFCHAIN.name()));
+        ClientHandler.sendToSocket(clientMap.get(winnerId), new MessageBatch()
+                .add(ServerCommand.FIRSTOFCHAIN.name())
+                .add(ServerCommand.STANDARD_MESSAGE + " Your opponent ran out of time.")
+                .add(EndGameMessage.GAME_WON_FRAME)
+                .add(ServerCommand.LASTOFCHAIN.name()));
+    }
+
+    /**
+     * Removes a player from a game, with QUITGAME or after a disconnection.
+     * Leaving a game in progress ends it by forfeit, and the game is unregistered once both players left it.
+     * Must be called on the shard of the game.
+     *
+     * @param gameId   the ID of the game
+     * @param game     the game
+     * @param playerId the ID of the player leaving
+     * @return false if the player already left the game
+     */
+    private static boolean leaveGame(int gameId, GameHandler game, int playerId) {
+        if (game.markOf(playerId) == 0) {
+            return false;
+        }
+        if (!game.gameStatus() && game.getOpponentID(playerId) != 0) {
+            // Leaving a game in progress ends it
+            finishGame(gameId, game, game.markOf(playerId) == 'X' ? GameArchive.X_LEFT : GameArchive.O_LEFT);
+        }
+        int opponentId = game.quitGame(playerId);
+        logEvent(MoveLog.QUIT, gameId, game, playerId, 0);
+        if (opponentId == aiPlayerId) {
+            // The AI leaves with its player, so the game is unregistered at once
+            game.quitGame(opponentId);
+            logEvent(MoveLog.QUIT, gameId, game, opponentId, 0);
+            opponentId = 0;
+        }
+
+        ServerLog.log(ServerLog.Event.LEFT, playerId, gameId);
+
+        Spectators spectators = game.spectatorsIfAny();
+        if (spectators != null) {
+            spectators.publish("A player left the game.", null, null);
+        }
+
+        if (opponentId != 0) {
+            MessageBatch chain = new MessageBatch()
+                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                    .add(ServerCommand.STANDARD_MESSAGE + " Your opponent has left the game.");
+            if (!game.gameStatus()) {
+                chain.add(ServerCommand.STANDARD_MESSAGE + " " + ANSI_BRIGHT_GREEN + "You win by forfeit." + ANSI_RESET);
+            }
+            ClientHandler.sendToSocket(clientMap.get(opponentId), chain.add(ServerCommand.LASTOFCHAIN.name()));
+        } else {
+            lobby.remove(gameId, game.getGridSize());
+            gamesMap.remove(gameId, game);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the AI for its move in a game against it, on the shard of the game once the player moved.
+     * The move is searched on the threads of the AI, then played on the shard like a request.
+     *
+     * @param gameId the ID of the game
+     * @param game   the game
+     */
+    private static void requestAiMove(int gameId, GameHandler game) {
+        long requested = System.nanoTime();
+        ai.play(game, game.getAiLevel(), requested, move -> shards.execute(gameId, () -> playAiMove(gameId, game, move, requested)));
+    }
+
+    /**
+     * Plays the move found by the AI, on the shard of the game.
+     * Nothing happens if the game ended or was left while the AI was searching.
+     *
+     * @param gameId    the ID of the game
+     * @param game      the game
+     * @param move      the move of the AI
+     * @param requested when the player moved
+     */
+    private static void playAiMove(int gameId, GameHandler game, AiPlayer.Move move, long requested) {
+        char row = (char) ('A' + move.cell / game.getGridSize());
+        int col = move.cell % game.getGridSize() + 1;
+        int result = game.placePiece(row, col, aiPlayerId);
+        if (result < 0) {
+            return;
+        }
+
+        logEvent(MoveLog.PLACE, gameId, game, aiPlayerId, move.cell);
+        publishMove(game, row, col, result);
+        if (result != 0) {
+            finishGame(gameId, game, result == 2 ? GameArchive.DRAW : GameArchive.O_WINS);
+        }
+
+        ServerMetrics.recordMove();
+        ServerMetrics.recordAiMove(System.nanoTime() - requested, move.nodes, move.nanos);
+        ServerLog.log(ServerLog.Event.AI_MOVE, move.cell, gameId, move.depth);
+
+        ClientHandler player = clientMap.get(game.getPlayer1ID());
+        if (player != null) {
+            MessageBatch chain = new MessageBatch()
+                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                    .add(ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + row + " " + col)
+                    .add(player.moveFrame(game));
+            if (result != 0) {
+                chain.add(result == 2 ? EndGameMessage.GAME_DRAW_FRAME : EndGameMessage.GAME_LOST_FRAME);
+            }
+            ClientHandler.sendToSocket(player, chain.add(ServerCommand.LASTOFCHAIN.name()));
+        }
+    }
+
+    /**
+     * Sends a move just played to the watchers of its game, if it has any. Must be called on the shard of the game.
+     *
+     * @param game   the game
+     * @param row    the row of the move
+     * @param col    the column of the move
+     * @param result the result of the move, 1 for a win and 2 for a draw
+     */
+    private static void publishMove(GameHandler game, char row, int col, int result) {
+        Spectators spectators = game.spectatorsIfAny();
+        if (spectators == null || spectators.size() == 0) {
+            return;
+        }
+
+        char mark = game.getLastMark();
+        String message = "[" + mark + "] placed at " + row + " " + col + switch (result) {
+            case 1 -> ", [" + mark + "] wins.";
+            case 2 -> ", the game is a draw.";
+            default -> ".";
+        };
+        spectators.publish(message, game.getTableFrame(), game.getMoveFrame());
+    }
+
+    /**
+     * Registers a new game under a unique game ID.
+     *
+     * @param game the new game
+     * @return the ID of the game
+     */
+    private static int registerGame(GameHandler game) {
+        int gameId;
+        // The sequence only gives an ID in use again after wrapping around
+        do {
+            gameId = gameIds.next();
+        } while (gamesMap.putIfAbsent(gameId, game) != null);
+        return gameId;
+    }
+
+    /**
+     * Starts the game of two clients paired by the matchmaker. The client who waited the longest plays first, as [X].
+     *
+     * @param first  the ticket of the client who waited the longest
+     * @param second the ticket of the other client
+     */
+    private static void startMatch(Matchmaker.Ticket first, Matchmaker.Ticket second) {
+        GameHandler game = new GameHandler(first.gridSize, first.clientId);
+        game.joinGame(second.clientId);
+        int gameId = registerGame(game);
+
+        long now = System.nanoTime();
+        ServerMetrics.recordMatch(now - first.enqueuedAt);
+        ServerMetrics.recordMatch(now - second.enqueuedAt);
+
+        ServerLog.log(ServerLog.Event.MATCHED, first.clientId, second.clientId, gameId);
+
+        // Queued before the tickets are completed, so the shard announces the game before any request of the players
+        shards.execute(gameId, () -> announceMatch(gameId, game, first.clientId, second.clientId));
+
+        first.complete(gameId, game);
+        second.complete(gameId, game);
+    }
+
+    /**
+     * Logs the game of two matched clients and sends it to them, on the shard of the game.
+     *
+     * @param gameId    the ID of the game
+     * @param game      the game
+     * @param player1Id the ID of the client playing first, as [X]
+     * @param player2Id the ID of the other client
+     */
+    private static void announceMatch(int gameId, GameHandler game, int player1Id, int player2Id) {
+        logSeat(MoveLog.CREATE, gameId, game, player1Id, game.getGridSize());
+        logSeat(MoveLog.JOIN, gameId, game, player2Id, 0);
+
+        ClientHandler player1 = clientMap.get(player1Id);
+        ClientHandler player2 = clientMap.get(player2Id);
+        if (player1 != null) {
+            ClientHandler.sendToSocket(player1, player1.initGameChain(game, gameId, " You start, playing as [X]."));
+        }
+        if (player2 != null) {
+            ClientHandler.sendToSocket(player2, player2.initGameChain(game, gameId, " Opponent start, you play as [O]."));
+        }
+    }
+
+    /**
+     * Serves one client of the blocking engine.
+     * The socket is read line by line with blocking streams on its own virtual thread,
+     * while a second virtual thread is the only writer of the socket and drains the outbound queue.
+     * A request sent to a shard parks the reading thread until the shard resumes it.
+     */
+    static class SocketConnection implements Connection, Runnable {
         private final Socket socket;
-        private final int CLIENT_ID;
-        private boolean inGame = false;
-        private int GAME_ID;
+        private final OutboundQueue outbound;
+        private final ServerConfig.OverflowPolicy overflowPolicy;
+        private volatile RequestReader reader;
+
+        // Released by the shard once it handled the request of the session, only waited for when suspended
+        private final Semaphore resumed = new Semaphore(0);
+        private boolean suspended;
 
         /**
-         * Instantiates a new Client handler for a specific client.
+         * Instantiates a new Socket connection.
          *
-         * @param socket    the socket associated with the client
-         * @param CLIENT_ID the unique ID of the client
+         * @param socket the socket associated with the client
+         * @param config the configuration of the server
          */
-        public ClientHandler(Socket socket, int CLIENT_ID) {
+        SocketConnection(Socket socket, ServerConfig config) {
             this.socket = socket;
-            this.CLIENT_ID = CLIENT_ID;
+            this.outbound = config.newOutboundQueue();
+            this.overflowPolicy = config.getOverflowPolicy();
         }
 
         @Override
         public void run() {
-            try (socket; // This allows to use try-with-resources with the socket
-                 BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                 BufferedWriter socketOut = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            try (socket) { // This allows to use try-with-resources with the socket
+                RequestReader socketIn = new RequestReader(socket.getInputStream());
+                reader = socketIn;
+
+                Thread writer = Thread.ofVirtual().start(this::writeLoop);
+                ClientHandler handler = openSession(this);
 
-                clientWriter.put(CLIENT_ID, socketOut);
+                try {
+                    // Main loop to handle incoming requests from the client
+                    while (!socket.isClosed()) {
+                        Request clientRequest = socketIn.next();
 
-                System.out.println(ANSI_BLUE + "[Server " + SERVER_ID + "] \n"
-                        + "       [Client " + CLIENT_ID + "] new connection from "
-                        + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + ANSI_RESET);
+                        if (clientRequest == null) {
+                            socket.close();
+                            continue;
+                        }
+
+                        handler.handleRequest(clientRequest);
+                        if (suspended) {
+                            suspended = false;
+                            resumed.acquireUninterruptibly();
+                        }
+                    }
+                } finally {
+                    handler.closeSession();
+                    writer.interrupt();
+                }
+            } catch (SocketException e) {
+                // The connection was closed while reading, the session is already cleaned up
+            } catch (Exception e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            }
+        }
+
+        /**
+         * Writes the queued messages to the socket until the connection is closed.
+         * Every batch already waiting is written before the single flush.
+         */
+        private void writeLoop() {
+            try {
+                OutputStream socketOut = new BufferedOutputStream(socket.getOutputStream());
 
-                // Main loop to handle incoming requests from the client
                 while (!socket.isClosed()) {
-                    String clientRequest = socketIn.readLine();
+                    MessageBatch batch = outbound.take();
+                    int bytes = 0;
 
-                    if (clientRequest == null) {
-                        socket.close();
-                        continue;
+                    do {
+                        socketOut.write(batch.array(), 0, batch.length());
+                        bytes += batch.length();
+                    } while ((batch = outbound.poll()) != null);
+
+                    socketOut.flush();
+                    ServerMetrics.recordFlush(bytes);
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            } finally {
+                outbound.clear();
+            }
+        }
+
+        @Override
+        public void send(MessageBatch batch) {
+            if (socket.isClosed()) {
+                return;
+            }
+
+            // A shard serves every game of its shard, so it never waits for a slow client
+            if (!outbound.offer(batch, !GameShards.isShardThread()) && overflowPolicy != ServerConfig.OverflowPolicy.DROP) {
+                ServerMetrics.recordSlowConsumerDisconnect();
+                close();
+            }
+        }
+
+        @Override
+        public String remoteAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public boolean isLoopback() {
+            return socket.getInetAddress().isLoopbackAddress();
+        }
+
+        @Override
+        public long partialSince() {
+            RequestReader current = reader;
+            return current == null ? 0 : current.partialSince();
+        }
+
+        @Override
+        public void suspend() {
+            suspended = true;
+        }
+
+        @Override
+        public void resume() {
+            resumed.release();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            }
+        }
+    }
+
+    /**
+     * The ClientHandler class manages the session of one client,
+     * handling client commands and interacting with the game logic.
+     * It does not depend on the engine, the messages go through the client's Connection.
+     */
+    static class ClientHandler {
+        private final Connection connection;
+        private int CLIENT_ID;
+        private boolean inGame = false;
+        private int GAME_ID;
+
+        // The game of the client, resolved once when joining or creating it
+        private GameHandler game;
+
+        // The place of the client in the matchmaker, until it is matched or cancels
+        private Matchmaker.Ticket ticket;
+
+        // The game watched by the client, null when it is not a spectator
+        private GameHandler watched;
+
+        // Whether the client receives MOVE deltas instead of the full GAME_TABLE
+        private volatile boolean deltaProtocol = false;
+
+        // The token buckets limiting the requests of the client
+        private final AdmissionControl.Buckets buckets = admission.newBuckets();
+
+        // When the client sent its last request and got its last PING, read by the reaper
+        private volatile long lastRequest = System.nanoTime();
+        private long lastPing = lastRequest;
+
+        /**
+         * Instantiates a new Client handler for a specific client.
+         *
+         * @param connection the connection associated with the client
+         * @param CLIENT_ID  the unique ID of the client
+         */
+        ClientHandler(Connection connection, int CLIENT_ID) {
+            this.connection = connection;
+            this.CLIENT_ID = CLIENT_ID;
+        }
+
+        /**
+         * Handles one request line received from the client and sends the responses.
+         * A request using a game is checked here, then suspends the connection and goes on on the shard of the game.
+         *
+         * @param clientRequest the request received from the client, parsed by the engine
+         */
+        void handleRequest(Request clientRequest) {
+            long start = System.nanoTime();
+            lastRequest = start;
+            ClientCommand clientCommand = clientRequest.command();
+            String response = null;
+            boolean sentToShard = false;
+            ServerMetrics.recordRequest(clientRequest.length() + 1);
+
+            try {
+                // The router of a cluster reads a node a page at a time for one LIST of its client, only the first page is counted
+                boolean nextPage = clientCommand == ClientCommand.LIST && clientRequest.argumentEquals(1, "AFTER") && clientRequest.number(2) != 0;
+                AdmissionControl.Limit limited = nextPage ? null : buckets.tryAcquire(clientCommand, start);
+                if (limited != null) {
+                    response = ServerCommand.INVALID +  " Too many " + limited.description + ". Please slow down.";
+                } else if (clientCommand == null) {
+                    response = clientRequest.isTooLong()
+                            ? ServerCommand.INVALID + " Request too long, the limit is " + Request.MAX_LINE_LENGTH + " characters."
+                            : ServerCommand.INVALID + " Unknown command. Please try again.";
+                } else if (clientCommand == ClientCommand.PING) {
+                    response = ServerCommand.PONG.name();
+                } else if (clientCommand == ClientCommand.PONG) {
+                    // The answer to a heartbeat, receiving it is enough
+                } else if (watched != null) {
+                    // A spectator can only stop watching or ask for the whole board
+                    if (clientCommand == ClientCommand.SYNC) {
+                        sentToShard = true;
+                        onShard(GAME_ID, clientCommand, start, () -> {
+                            sendToSocket(this, new MessageBatch(watched.getSnapshotFrame()));
+                            return null;
+                        });
+                    } else if (clientCommand == ClientCommand.QUITGAME) {
+                        ServerLog.log(ServerLog.Event.WATCH_STOPPED, CLIENT_ID, GAME_ID);
+
+                        watched.spectators().remove(this);
+                        watched = null;
+                        GAME_ID = 0;
+                        inGame = false;
+
+                        response = ServerCommand.CONFIRMQUITGAME + " Stopped watching.";
+                    } else {
+                        response = ServerCommand.INVALID + " You are watching a game. Use QUITGAME to stop watching.";
                     }
+                } else if (!inGame) {
+                    switch (clientCommand) {
+                        case LIST -> {
+                            ServerLog.log(ServerLog.Event.LIST, CLIENT_ID);
+
+                            if (clientRequest.argumentEquals(1, "AFTER")) {
+                                // LIST <grid size> AFTER <grid size> <game id> [limit], the games after the given one
+                                int[] cursor = {clientRequest.number(0), clientRequest.number(2), clientRequest.number(3), clientRequest.number(4, Lobby.MAX_PAGE_SIZE)};
+
+                                if ((cursor[0] != 0 && !Lobby.isGridSize(cursor[0])) || (cursor[1] != 0 && !Lobby.isGridSize(cursor[1])) || cursor[2] < 0 || cursor[3] < 1) {
+                                    response = ServerCommand.INVALID + " Wrong format. Please try again. Example : LIST 3 AFTER 3 1200 20";
+                                    break;
+                                }
+
+                                sendToSocket(this, new MessageBatch(lobby.pageAfter(cursor[0], cursor[1], cursor[2], Math.min(cursor[3], Lobby.MAX_PAGE_SIZE))));
+                                break;
+                            }
+
+                            // LIST [grid size] [offset] [limit], a grid size of 0 lists every grid size
+                            int[] values = {clientRequest.number(0, 0), clientRequest.number(1, 0), clientRequest.number(2, Lobby.DEFAULT_PAGE_SIZE)};
+
+                            if ((values[0] != 0 && !Lobby.isGridSize(values[0])) || values[1] < 0 || values[2] < 1) {
+                                response = ServerCommand.INVALID + " Wrong format. Please try again. Example : LIST 3 0 20";
+                                break;
+                            }
 
-                    String response = null;
+                            sendToSocket(this, new MessageBatch(lobby.page(values[0], values[1], Math.min(values[2], Lobby.MAX_PAGE_SIZE))));
+                        }
+                        case JOIN -> {
+                            int gameId = clientRequest.number(0);
+                            if (gameId == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Missing <game id> parameter. Please try again.";
+                                break;
+                            }
 
-                    try {
-                        if (!inGame) {
-                            String[] clientRequestParts = clientRequest.split(" ", 2);
-                            ClientCommand clientCommand = ClientCommand.valueOf(clientRequestParts[0]);
+                            sentToShard = true;
+                            onShard(gameId, clientCommand, start, () -> join(gameId));
+                        }
+                        case PROTOCOL -> {
+                            if (!clientRequest.argumentEquals(0, "TEXT") && !clientRequest.argumentEquals(0, "DELTA")) {
+                                response = ServerCommand.INVALID + " Unknown protocol. Available protocols : TEXT, DELTA";
+                                break;
+                            }
 
-                            switch (clientCommand) {
-                                case LIST -> {
-                                    System.out.println(ANSI_PURPLE + "[Server " + SERVER_ID + "] \n"
-                                            + "       [Client " + CLIENT_ID + "] request game list" + ANSI_RESET);
+                            deltaProtocol = clientRequest.argumentEquals(0, "DELTA");
+                            response = ServerCommand.PROTOCOL_OK + (deltaProtocol ? " DELTA" : " TEXT");
+                        }
+                        case CREATE -> {
+                            int gridSize = clientRequest.number(0);
+                            if (gridSize == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Missing <grid size> parameter. Please try again.";
+                                break;
+                            }
 
-                                    StringBuilder gameList = new StringBuilder();
-                                    gameList.append(ServerCommand.GAME_LIST).append(" Game id    Grid Size ¦");
+                            // Ensure grid size is valid (3, 5, 7, 9)
+                            if (!Lobby.isGridSize(gridSize)) {
+                                response = ServerCommand.INVALID + " Invalid <grid size> parameter. Please try again. " +
+                                        "Available grid size : 3, 5, 7, 9";
+                                break;
+                            }
 
-                                    for (Integer key : gamesMap.keySet()) {
-                                        if (gamesMap.get(key).gameIsJoinable()) {
-                                            gameList.append(String.format("%7d    %d ¦", key, gamesMap.get(key).getGridSize()));
-                                        }
-                                    }
-                                    response = gameList.toString();
+                            if (clientRequest.argumentEquals(1, "AI")) {
+                                // CREATE <grid size> AI [depth | milliseconds ms], the AI plays [O]
+                                int depth = clientRequest.number(2, AiPlayer.Level.MAX_DEPTH);
+                                int millis = 0;
+                                if (depth == Request.NOT_A_NUMBER) {
+                                    depth = AiPlayer.Level.MAX_DEPTH;
+                                    millis = clientRequest.number(2, "ms");
                                 }
-                                case JOIN -> {
-                                    if (clientRequestParts.length < 2 || !isNumeric(clientRequestParts[1])) {
-                                        response = ServerCommand.INVALID + " Missing <game id> parameter. Please try again.";
-                                        break;
-                                    }
-
-                                    int gameId = Integer.parseInt(clientRequestParts[1]);
-                                    if (gamesMap.containsKey(gameId) && gamesMap.get(gameId).gameIsJoinable()) {
-                                        GAME_ID = gameId;
-                                        inGame = true;
-                                        gamesMap.get(GAME_ID).joinGame(CLIENT_ID);
-
-                                        System.out.println(ANSI_CYAN + "[Server " + SERVER_ID + "] \n"
-                                                + "       [Client " + CLIENT_ID + "] join [Game " + gameId + "]" + ANSI_RESET);
-
-                                        sendToSocket(CLIENT_ID, ServerCommand.FIRSTOFCHAIN.name());
-                                        sendToSocket(CLIENT_ID, ServerCommand.INIT_GAME + " Opponent joined.");
-                                        sendToSocket(CLIENT_ID, ServerCommand.STANDARD_MESSAGE + " Opponent start, you play as [O].");
-                                        sendToSocket(CLIENT_ID, ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                        sendToSocket(CLIENT_ID, ServerCommand.LASTOFCHAIN.name());
-
-                                        sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.FIRSTOFCHAIN.name());
-                                        sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.INIT_GAME + " Opponent joined.");
-                                        sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.STANDARD_MESSAGE + " You start, playing as [X].");
-                                        sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                        sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.LASTOFCHAIN.name());
-
-                                    } else {
-                                        response = ServerCommand.INVALID + " Game " + gameId + " doesn't exist. Please try again.";
-                                    }
+                                if (clientRequest.argumentCount() > 3 || depth < 1 || depth > AiPlayer.Level.MAX_DEPTH
+                                        || millis < 0 || millis > ai.getMaxMillis()) {
+                                    response = ServerCommand.INVALID + " Invalid AI level, a depth up to " + AiPlayer.Level.MAX_DEPTH
+                                            + " or a time up to " + ai.getMaxMillis() + "ms. Please try again. Example : CREATE 5 AI 500ms";
+                                    break;
                                 }
-                                case CREATE -> {
-                                    if (clientRequestParts.length < 2 || !isNumeric(clientRequestParts[1])) {
-                                        response = ServerCommand.INVALID + " Missing <grid size> parameter. Please try again.";
-                                        break;
-                                    }
 
-                                    int gridSize = Integer.parseInt(clientRequestParts[1]);
+                                GameHandler created = new GameHandler(gridSize, CLIENT_ID);
+                                int gameId = registerGame(created);
 
-                                    // Ensure grid size is valid (3, 5, 7, 9)
-                                    if (gridSize != 3 && gridSize != 5 && gridSize != 7 && gridSize != 9) {
-                                        response = ServerCommand.INVALID + " Invalid <grid size> parameter. Please try again. " +
-                                                "Available grid size : 3, 5, 7, 9";
-                                        break;
-                                    }
+                                AiPlayer.Level level = new AiPlayer.Level(depth, millis);
+                                sentToShard = true;
+                                onShard(gameId, clientCommand, start, () -> createAgainstAi(gameId, created, level));
+                                break;
+                            }
 
-                                    int gameId;
-                                    // Ensure that the gameID is unique
-                                    do {
-                                        gameId = (int) (Math.random() * 100);
-                                    } while (gamesMap.containsKey(gameId));
+                            // CREATE <grid size> [seconds per move] [seconds per player], 0 for no limit
+                            int moveSeconds = clientRequest.number(1, 0);
+                            int gameSeconds = clientRequest.number(2, 0);
+                            if (clientRequest.argumentCount() > 3 || moveSeconds < 0 || moveSeconds > TurnClock.MAX_SECONDS
+                                    || gameSeconds < 0 || gameSeconds > TurnClock.MAX_SECONDS) {
+                                response = ServerCommand.INVALID + " Invalid time control, at most " + TurnClock.MAX_SECONDS
+                                        + " seconds. Please try again. Example : CREATE 3 30 300";
+                                break;
+                            }
 
-                                    gamesMap.put(gameId, new GameHandler(gridSize, CLIENT_ID));
+                            GameHandler created = new GameHandler(gridSize, CLIENT_ID);
+                            int gameId = registerGame(created);
 
-                                    System.out.println(ANSI_GREEN + "[Server " + SERVER_ID + "] \n"
-                                            + "       [Client " + CLIENT_ID + "] created [Game " + gameId + "]" + ANSI_RESET);
+                            sentToShard = true;
+                            onShard(gameId, clientCommand, start, () -> create(gameId, created, moveSeconds, gameSeconds));
+                        }
+                        case QUICKMATCH -> {
+                            int gridSize = clientRequest.number(0);
+                            if (gridSize == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Missing <grid size> parameter. Please try again.";
+                                break;
+                            }
 
-                                    GAME_ID = gameId;
-                                    inGame = true;
+                            if (!Lobby.isGridSize(gridSize)) {
+                                response = ServerCommand.INVALID + " Invalid <grid size> parameter. Please try again. " +
+                                        "Available grid size : 3, 5, 7, 9";
+                                break;
+                            }
 
-                                    response = ServerCommand.WAIT_OPPONENT + " Waiting for opponent...";
-                                }
+                            ServerLog.log(ServerLog.Event.MATCH_WAITING, CLIENT_ID, gridSize);
+
+                            inGame = true;
+
+                            // Answered before enqueuing, so the answer arrives before the INIT_GAME of an immediate match
+                            sendToSocket(this, ServerCommand.WAIT_OPPONENT + " Waiting for a match...");
+                            ticket = matchmaker.enqueue(CLIENT_ID, gridSize);
+                        }
+                        case WATCH -> {
+                            int gameId = clientRequest.number(0);
+                            if (gameId == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Missing <game id> parameter. Please try again.";
+                                break;
+                            }
+                            sentToShard = true;
+                            onShard(gameId, clientCommand, start, () -> watch(gameId));
+                        }
+                        case RESUME -> {
+                            int gameId = clientRequest.number(0);
+                            int playerId = clientRequest.number(1);
+                            long token = clientRequest.hexNumber(2);
+                            if (clientRequest.argumentCount() != 3 || gameId == Request.NOT_A_NUMBER
+                                    || playerId == Request.NOT_A_NUMBER || token == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Wrong format. Please try again. Example : RESUME 12 34 5f0c9a2e71b3d846";
+                                break;
                             }
-                        } else {
-                            String[] clientRequestParts = clientRequest.split(" ", 4);
-                            ClientCommand clientCommand = ClientCommand.valueOf(clientRequestParts[0]);
-
-                            switch (clientCommand) {
-                                case QUITGAME -> {
-                                    System.out.println(ANSI_YELLOW + "[Server " + SERVER_ID + "] \n"
-                                            + "       [Client " + CLIENT_ID + "] left [Game " + GAME_ID + "]" + ANSI_RESET);
-
-                                    int tmp = gamesMap.get(GAME_ID).quitGame(CLIENT_ID);
-
-                                    if (tmp != 0) {
-                                        sendToSocket(tmp, ServerCommand.FIRSTOFCHAIN.name());
-                                        sendToSocket(tmp, ServerCommand.STANDARD_MESSAGE + " Your opponent has left the game.");
-                                        if (!gamesMap.get(GAME_ID).gameStatus()) {
-                                            sendToSocket(tmp, ServerCommand.STANDARD_MESSAGE + " " + ANSI_BRIGHT_GREEN + "You win by forfeit." + ANSI_RESET);
-                                        }
-                                        sendToSocket(tmp, ServerCommand.LASTOFCHAIN.name());
-
-                                    } else {
-                                        gamesMap.remove(GAME_ID);
-                                    }
-
-                                    GAME_ID = 0;
-                                    inGame = false;
 
-                                    response = ServerCommand.CONFIRMQUITGAME + " Game quited.";
+                            sentToShard = true;
+                            onShard(gameId, clientCommand, start, () -> resume(gameId, playerId, token));
+                        }
+                        case REPLAY -> {
+                            if (archive == null) {
+                                response = ServerCommand.INVALID + " The finished games are not archived on this server.";
+                                break;
+                            }
+                            int gameId = clientRequest.number(0);
+                            if (gameId == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Missing <game id> parameter. Please try again.";
+                                break;
+                            }
+                            GameArchive.Record record = archive.find(gameId);
+                            if (record == null) {
+                                response = ServerCommand.INVALID + " Game " + gameId + " is not archived. Please try again.";
+                                break;
+                            }
+
+                            ServerLog.log(ServerLog.Event.REPLAY, CLIENT_ID, gameId);
+
+                            MessageBatch chain = new MessageBatch()
+                                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                                    .add(ServerCommand.STANDARD_MESSAGE + " Game " + gameId + " (" + record.gridSize + "x" + record.gridSize
+                                            + "), [X] player " + record.player1 + " against [O] player " + record.player2
+                                            + ", " + record.describeOutcome() + " after " + record.moves.length + " move(s).");
+                            for (int i = 0; i < record.moves.length; i++) {
+                                chain.add(ServerCommand.STANDARD_MESSAGE + " " + (i + 1) + ". [" + (i % 2 == 0 ? 'X' : 'O') + "] "
+                                        + (char) ('A' + record.moves[i] / record.gridSize) + " " + (record.moves[i] % record.gridSize + 1));
+                            }
+                            sendToSocket(this, chain
+                                    .add(record.replay().getTableFrame())
+                                    .add(ServerCommand.LASTOFCHAIN.name()));
+                        }
+                        case HISTORY -> {
+                            if (archive == null) {
+                                response = ServerCommand.INVALID + " The finished games are not archived on this server.";
+                                break;
+                            }
+
+                            // HISTORY [player id] [limit], a player ID of 0 is the client itself
+                            int[] values = {clientRequest.number(0, 0), clientRequest.number(1, DEFAULT_HISTORY_SIZE)};
+                            if (values[0] < 0 || values[1] < 1) {
+                                response = ServerCommand.INVALID + " Wrong format. Please try again. Example : HISTORY 12 20";
+                                break;
+                            }
+                            int playerId = values[0] == 0 ? CLIENT_ID : values[0];
+                            int limit = Math.min(values[1], MAX_HISTORY_SIZE);
+
+                            ServerLog.log(ServerLog.Event.HISTORY, CLIENT_ID, playerId);
+
+                            // The games are read one at a time from the archive and sent in small batches
+                            MessageBatch batch = new MessageBatch()
+                                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                                    .add(ServerCommand.STANDARD_MESSAGE + " Games of player " + playerId + ", newest first :");
+                            int listed = 0;
+                            for (GameArchive.Record record = archive.lastGameOf(playerId); record != null && listed < limit;
+                                 record = archive.previousGameOf(record, playerId)) {
+                                boolean playedX = record.player1 == playerId;
+                                batch.add(ServerCommand.STANDARD_MESSAGE + String.format(" Game %7d    %dx%d    as [%c] against player %d    %s after %d move(s)",
+                                        record.gameId, record.gridSize, record.gridSize, playedX ? 'X' : 'O',
+                                        playedX ? record.player2 : record.player1, record.describeOutcome(), record.moves.length));
+                                if (++listed % 16 == 0) {
+                                    sendToSocket(this, batch);
+                                    batch = new MessageBatch();
                                 }
-                                case PLACE -> {
-                                    if (clientRequestParts.length != 3 || clientRequestParts[1].length() > 1 || isNumeric(clientRequestParts[1]) || !isNumeric(clientRequestParts[2])) {
-                                        response = ServerCommand.INVALID + " Wrong format. Please try again. Example : PLACE A 1";
-
-                                    } else {
-                                        char rows = clientRequestParts[1].toUpperCase().charAt(0);
-                                        int cols = Integer.parseInt(clientRequestParts[2]);
-
-                                        if ((int) rows < 65 || (int) rows > 90 || cols < 1) {
-                                            response = ServerCommand.INVALID + " Wrong placement. Please try again.";
-                                        } else {
-                                            // Handle the different outcomes from placing a piece.
-                                            switch (gamesMap.get(GAME_ID).placePiece(rows, cols, CLIENT_ID)) {
-                                                case -1 -> {
-                                                    response = ServerCommand.INVALID + " Please wait your turn to play.";
-                                                }
-                                                case -2 -> {
-                                                    response = ServerCommand.INVALID + " Wrong placement, outside the grid.";
-                                                }
-                                                case -3 -> {
-                                                    response = ServerCommand.INVALID + " Wrong placement, case already played.";
-                                                }
-                                                case -4 -> {
-                                                    response = ServerCommand.INVALID + " Please wait for opponent.";
-                                                }
-                                                case -5 -> {
-                                                    response = ServerCommand.INVALID + " Game is finished, please quit the game.";
-                                                }
-                                                case 1 -> {
-                                                    // Handle a win condition
-                                                    sendToSocket(CLIENT_ID, ServerCommand.FIRSTOFCHAIN.name());
-                                                    sendToSocket(CLIENT_ID, ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                                    sendToSocket(CLIENT_ID, ServerCommand.ENDGAME_MESSAGE + EndGameMessage.GAME_WON);
-                                                    sendToSocket(CLIENT_ID, ServerCommand.LASTOFCHAIN.name());
-
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.FIRSTOFCHAIN.name());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + clientRequestParts[2]);
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.ENDGAME_MESSAGE + EndGameMessage.GAME_LOST);
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.LASTOFCHAIN.name());
-                                                }
-                                                case 2 -> {
-                                                    // Handle a draw condition
-                                                    sendToSocket(CLIENT_ID, ServerCommand.FIRSTOFCHAIN.name());
-                                                    sendToSocket(CLIENT_ID, ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                                    sendToSocket(CLIENT_ID, ServerCommand.ENDGAME_MESSAGE + EndGameMessage.GAME_DRAW);
-                                                    sendToSocket(CLIENT_ID, ServerCommand.LASTOFCHAIN.name());
-
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.FIRSTOFCHAIN.name());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + clientRequestParts[2]);
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.ENDGAME_MESSAGE + EndGameMessage.GAME_DRAW);
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.LASTOFCHAIN.name());
-                                                }
-                                                default -> {
-                                                    // Continue if no win nor draw
-                                                    response = ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable();
-
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.FIRSTOFCHAIN.name());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + clientRequestParts[2]);
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.GAME_TABLE + " " + gamesMap.get(GAME_ID).getTable());
-                                                    sendToSocket(gamesMap.get(GAME_ID).getOpponentID(CLIENT_ID), ServerCommand.LASTOFCHAIN.name());
-                                                }
-                                            }
-                                        }
-                                    }
+                            }
+                            sendToSocket(this, batch
+                                    .add(ServerCommand.STANDARD_MESSAGE + " " + listed + " game(s) listed.")
+                                    .add(ServerCommand.LASTOFCHAIN.name()));
+                        }
+                        case STATS -> {
+                            // The metrics are for the administrators of the server, so only local clients get them
+                            if (!connection.isLoopback()) {
+                                response = ServerCommand.INVALID + " STATS is only available from the server host.";
+                                break;
+                            }
+
+                            MessageBatch chain = new MessageBatch().add(ServerCommand.FIRSTOFCHAIN.name());
+                            for (String line : ServerMetrics.exposition(gamesMap.size(), lobby).split("\n")) {
+                                if (!line.startsWith("#")) {
+                                    chain.add(ServerCommand.STANDARD_MESSAGE + " " + line);
                                 }
                             }
+                            sendToSocket(this, chain.add(ServerCommand.LASTOFCHAIN.name()));
                         }
-                    } catch (Exception e) {
-                        System.out.println(ANSI_RED + "[Server " + SERVER_ID + "] exception: " + e + ANSI_RESET);
-                        response = ServerCommand.INVALID + "Unknown command. Please try again.";
                     }
+                } else {
+                    adoptMatch();
 
-                    sendToSocket(CLIENT_ID, response);
-                }
+                    switch (clientCommand) {
+                        case QUITGAME -> {
+                            if (game == null) {
+                                if (ticket.cancel()) {
+                                    ServerLog.log(ServerLog.Event.MATCH_CANCELLED, CLIENT_ID);
 
-                System.out.println("[Server " + SERVER_ID + "] \n "
-                        + "       [Client " + CLIENT_ID + "] closing connection");
+                                    ticket = null;
+                                    inGame = false;
+                                    response = ServerCommand.CONFIRMQUITGAME + " Game quited.";
+                                    break;
+                                }
+                                // Matched meanwhile, the new game is left
+                                adoptMatch();
+                            }
 
-                // Erase client data after the connection is closed.
-                clientMap.remove(CLIENT_ID);
-                clientWriter.remove(CLIENT_ID);
+                            sentToShard = true;
+                            onShard(GAME_ID, clientCommand, start, this::quitGame);
+                        }
+                        case SYNC -> {
+                            // Full board requested by a delta client that missed a move
+                            if (game != null) {
+                                sentToShard = true;
+                                onShard(GAME_ID, clientCommand, start, () -> {
+                                    sendToSocket(this, new MessageBatch(game.getSnapshotFrame()));
+                                    return null;
+                                });
+                            }
+                        }
+                        case PLACE -> {
+                            char rows = clientRequest.letter(0);
+                            int cols = clientRequest.number(1);
+                            if (clientRequest.argumentCount() != 2 || rows == 0 || cols == Request.NOT_A_NUMBER) {
+                                response = ServerCommand.INVALID + " Wrong format. Please try again. Example : PLACE A 1";
+                            } else if (cols < 1) {
+                                response = ServerCommand.INVALID + " Wrong placement. Please try again.";
+                            } else if (game == null) {
+                                // Still waiting for a match is the same as waiting for an opponent
+                                response = ServerCommand.INVALID + " Please wait for opponent.";
+                            } else {
+                                sentToShard = true;
+                                onShard(GAME_ID, clientCommand, start, () -> place(rows, cols));
+                            }
+                        }
+                    }
+                }
             } catch (Exception e) {
-                System.out.println(ANSI_RED + "[Server " + SERVER_ID + "] exception: " + e + ANSI_RESET);
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                response = ServerCommand.INVALID + " Unknown command. Please try again.";
             }
-        }
 
+            // A request sent to a shard is answered by the shard
+            if (!sentToShard) {
+                sendToSocket(this, response);
+                ServerMetrics.recordCommand(clientCommand, System.nanoTime() - start);
+            }
+        }
 
         /**
-         * Sends the message to the given client.
-         *
-         * This method writes to the client's output stream.
-         * To make sure that the message is sent immediately the flush() command is used.
+         * Hands the rest of a request over to the shard owning its game, which sends the response and resumes
+         * the connection. The session reads no other request meanwhile, so its fields are only used by one thread
+         * at a time.
          *
-         * @param clientId The ID of the client to send to.
-         * @param message  The message to send to the client.
+         * @param gameId  the ID of the game
+         * @param command the command of the request
+         * @param start   when the request was received
+         * @param action  the part of the request using the game, returning the response, or null if there is none
          */
-        private void sendToSocket(int clientId, String message) {
-            try {
-                if (message != null) {
-                    clientWriter.get(clientId).write(message + "\n");
-                    clientWriter.get(clientId).flush();
+        private void onShard(int gameId, ClientCommand command, long start, Supplier<String> action) {
+            connection.suspend();
+            shards.execute(gameId, () -> {
+                String response;
+                try {
+                    response = action.get();
+                } catch (Exception e) {
+                    ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                    response = ServerCommand.INVALID + " Unknown command. Please try again.";
                 }
-            } catch (Exception e) {
-                System.out.println(ANSI_RED + "[Server " + SERVER_ID + "] exception: " + e + ANSI_RESET);
-            }
+
+                sendToSocket(this, response);
+                ServerMetrics.recordCommand(command, System.nanoTime() - start);
+                if (shards.isHolding()) {
+                    shards.hold(connection::resume);
+                } else {
+                    connection.resume();
+                }
+            });
         }
-    }
 
-    /**
-     * Controls the logic and state of one game.
-     */
-    private static class GameHandler {
-        private int gridSize;
+        /**
+         * Joins a game waiting for an opponent, on the shard of the game.
+         *
+         * @param gameId the ID of the game
+         * @return the response, null if the game was joined
+         */
+        private String join(int gameId) {
+            GameHandler joined = gamesMap.get(gameId);
+            // Removing the game from the lobby claims it, so only one client can join it
+            if (joined == null || !lobby.remove(gameId, joined.getGridSize()) || !joined.gameIsJoinable()) {
+                return ServerCommand.INVALID + " Game " + gameId + " doesn't exist. Please try again.";
+            }
 
-        private final int[][] table;
+            GAME_ID = gameId;
+            game = joined;
+            inGame = true;
+            game.joinGame(CLIENT_ID);
+            logSeat(MoveLog.JOIN, gameId, game, CLIENT_ID, 0);
+
+            ServerLog.log(ServerLog.Event.JOINED, CLIENT_ID, gameId);
+
+            sendToSocket(this, initGameChain(game, gameId, " Opponent start, you play as [O]."));
+
+            ClientHandler opponent = clientMap.get(game.getOpponentID(CLIENT_ID));
+            if (opponent != null) {
+                sendToSocket(opponent, opponent.initGameChain(game, gameId, " You start, playing as [X]."));
+            }
+            return null;
+        }
+
+        /**
+         * Opens a game just registered under its ID to the opponents, on the shard of the game.
+         *
+         * @param gameId      the ID of the game
+         * @param created     the game
+         * @param moveSeconds the time allowed for each move, 0 for no limit
+         * @param gameSeconds the time allowed to each player for the whole game, 0 for no limit
+         * @return the response
+         */
+        private String create(int gameId, GameHandler created, int moveSeconds, int gameSeconds) {
+            logSeat(MoveLog.CREATE, gameId, created, CLIENT_ID, created.getGridSize());
 
-        private int player1ID;
-        private int player2ID;
+            if (moveSeconds > 0 || gameSeconds > 0) {
+                // The clock fires on the thread of the wheel, the timeout is handled on the shard like a request
+                created.setClock(new TurnClock(turnClocks, moveSeconds, gameSeconds,
+                        () -> shards.execute(gameId, () -> turnTimedOut(gameId, created))));
+            }
+            lobby.add(gameId, created.getGridSize());
 
-        private int tilePlayed;
+            ServerLog.log(ServerLog.Event.CREATED, CLIENT_ID, gameId);
 
-        private boolean turnOf;
-        private boolean isFinished;
-        private boolean isJoinable;
+            GAME_ID = gameId;
+            game = created;
+            inGame = true;
 
+            return ServerCommand.WAIT_OPPONENT + " Waiting for opponent in game " + gameId + "...";
+        }
 
         /**
-         * Constructor to initialize the game with the given grid size and player1ID.
+         * Starts a game just registered under its ID against the AI, on the shard of the game.
+         * The game is never listed in the lobby, the AI joins it at once as [O].
          *
-         * @param gridSize The size of the grid (example : 3 for a 3x3 grid).
-         * @param playerID The ID of the player1.
+         * @param gameId  the ID of the game
+         * @param created the game
+         * @param level   the level of the AI in the game
+         * @return the response, null as the game starts
          */
-        GameHandler(int gridSize, int playerID) {
-            tilePlayed = 0;
-            this.gridSize = gridSize;
-            this.table = new int[gridSize][gridSize];
-            this.player1ID = playerID;
-            isJoinable = true;
+        private String createAgainstAi(int gameId, GameHandler created, AiPlayer.Level level) {
+            logSeat(MoveLog.CREATE, gameId, created, CLIENT_ID, created.getGridSize());
+            created.setAiLevel(level);
+            created.joinGame(aiPlayerId);
+            logEvent(MoveLog.JOIN, gameId, created, aiPlayerId, 0);
+
+            ServerLog.log(ServerLog.Event.CREATED, CLIENT_ID, gameId);
+
+            GAME_ID = gameId;
+            game = created;
+            inGame = true;
+
+            sendToSocket(this, initGameChain(created, gameId, " You start against the AI, playing as [X]."));
+            return null;
         }
 
         /**
-         * Joins player2 to the game and sets the game as non-joinable.
+         * Starts watching a game, on the shard of the game.
          *
-         * @param playerID The ID of the player2.
+         * @param gameId the ID of the game
+         * @return the response, null if the client watches the game
          */
-        void joinGame(int playerID) {
-            player2ID = playerID;
-            isJoinable = false;
+        private String watch(int gameId) {
+            GameHandler target = gamesMap.get(gameId);
+            if (target == null) {
+                return ServerCommand.INVALID + " Game " + gameId + " doesn't exist. Please try again.";
+            }
+
+            GAME_ID = gameId;
+            watched = target;
+            inGame = true;
+
+            ServerLog.log(ServerLog.Event.WATCHING, CLIENT_ID, gameId);
+
+            // The board is read on the shard of the game, so no move is published between the welcome chain and the join
+            Spectators spectators = target.spectators();
+            spectators.add(this, new MessageBatch()
+                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                    .add(ServerCommand.INIT_GAME + " Watching game " + gameId + " with " + (spectators.size() + 1) + " spectator(s).")
+                    .add(boardFrame(target))
+                    .add(ServerCommand.LASTOFCHAIN.name()));
+            return null;
         }
 
         /**
-         * Indicates the status of the game, whether it is finished or not.
+         * Takes back the place of a disconnected player in its game, on the shard of the game.
+         * The IDs are no secret, only the resume token given to the player with its seat proves who the client is.
          *
-         * @return True if the game is finished, false otherwise.
+         * @param gameId   the ID of the game
+         * @param playerId the ID of the player
+         * @param token    the resume token of the player
+         * @return the response, null if the game was resumed
          */
-        boolean gameStatus() {
-            return isFinished;
+        private String resume(int gameId, int playerId, long token) {
+            GameHandler resumed = gamesMap.get(gameId);
+            // A wrong token gets the same answer as a wrong player, so the seats cannot be probed
+            boolean owner = resumed != null && playerId != aiPlayerId && token != 0 && token == resumed.getResumeToken(playerId);
+            char mark = owner ? resumed.markOf(playerId) : 0;
+            if (mark == 0) {
+                return ServerCommand.INVALID + " Player " + playerId + " is not in game " + gameId + ". Please try again.";
+            }
+
+            // The session takes the ID of the player, which is only free if the player is disconnected
+            if (playerId != CLIENT_ID) {
+                if (clientMap.putIfAbsent(playerId, this) != null) {
+                    return ServerCommand.INVALID + " Player " + playerId + " is still connected.";
+                }
+                clientMap.remove(CLIENT_ID);
+                CLIENT_ID = playerId;
+            }
+
+            GAME_ID = gameId;
+            game = resumed;
+            inGame = true;
+
+            // A later disconnection gives the player the whole resume timeout again
+            abandonedGames.removeIf(abandoned -> abandoned.playerId == playerId);
+
+            ServerLog.log(ServerLog.Event.RESUMED, CLIENT_ID, gameId);
+
+            sendToSocket(this, new MessageBatch()
+                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                    .add(ServerCommand.INIT_GAME + " Game " + gameId + " resumed, you play as [" + mark + "].")
+                    .add(boardFrame(game))
+                    .add(ServerCommand.LASTOFCHAIN.name()));
+
+            int opponentId = game.getOpponentID(CLIENT_ID);
+            ClientHandler opponent = clientMap.get(opponentId);
+            if (opponent != null) {
+                sendToSocket(opponent, ServerCommand.STANDARD_MESSAGE + " Your opponent is back.");
+            } else if (opponentId == aiPlayerId) {
+                // The AI was waiting for the server to restart or the player to come back
+                if (!game.gameStatus() && game.getMoves().length % 2 == 1) {
+                    requestAiMove(gameId, game);
+                }
+            } else if (opponentId != 0 && resumeTimeout > 0) {
+                // The opponent gets the same time to come back, counted from now
+                abandonedGames.add(new AbandonedGame(gameId, game, opponentId));
+            }
+            return null;
         }
 
         /**
-         * Indicates whether the game can still be joined by a second player or not.
+         * Leaves the game of the client, on the shard of the game.
          *
-         * @return True if the game is still joinable, false otherwise.
+         * @return the response
          */
-        boolean gameIsJoinable() {
-            return isJoinable;
+        private String quitGame() {
+            leaveGame(GAME_ID, game, CLIENT_ID);
+
+            GAME_ID = 0;
+            game = null;
+            inGame = false;
+
+            return ServerCommand.CONFIRMQUITGAME + " Game quited.";
         }
 
         /**
-         * Allows a player to quit the game.
+         * Plays a move in the game of the client, on the shard of the game.
          *
-         * @param playerID The ID of the player quitting the game.
-         * @return The ID of the opponent if one is present, 0 if not.
+         * @param rows The row of the move.
+         * @param cols The column of the move.
+         * @return the response, null if the move was played
          */
-        int quitGame(int playerID) {
-            if (player1ID == 0 || player2ID == 0) {
-                if (playerID == player1ID) {
-                    player1ID = 0;
-                    return 0;
-                } else {
-                    player2ID = 0;
-                    return 0;
+        private String place(char rows, int cols) {
+            int result = game.placePiece(rows, cols, CLIENT_ID);
+            ClientHandler opponent = null;
+            if (result >= 0) {
+                logEvent(MoveLog.PLACE, GAME_ID, game, CLIENT_ID, (rows - 'A') * game.getGridSize() + cols - 1);
+                publishMove(game, rows, cols, result);
+                if (result != 0) {
+                    finishGame(GAME_ID, game, result == 2 ? GameArchive.DRAW
+                            : game.getLastMark() == 'X' ? GameArchive.X_WINS : GameArchive.O_WINS);
                 }
-            } else {
-                if (playerID == player1ID) {
-                    player1ID = 0;
-                    return player2ID;
-                } else {
-                    player2ID = 0;
-                    return player1ID;
+
+                ServerMetrics.recordMove();
+                ServerLog.log(ServerLog.Event.MOVE, CLIENT_ID, (rows - 'A') * game.getGridSize() + cols - 1, GAME_ID);
+                opponent = clientMap.get(game.getOpponentID(CLIENT_ID));
+            }
+
+            // Handle the different outcomes from placing a piece.
+            switch (result) {
+                case -1 -> {
+                    return ServerCommand.INVALID + " Please wait your turn to play.";
+                }
+                case -2 -> {
+                    return ServerCommand.INVALID + " Wrong placement, outside the grid.";
+                }
+                case -3 -> {
+                    return ServerCommand.INVALID + " Wrong placement, case already played.";
+                }
+                case -4 -> {
+                    return ServerCommand.INVALID + " Please wait for opponent.";
+                }
+                case -5 -> {
+                    return ServerCommand.INVALID + " Game is finished, please quit the game.";
+                }
+                case 1 -> {
+                    // Handle a win condition
+                    sendToSocket(this, new MessageBatch()
+                            .add(ServerCommand.FIRSTOFCHAIN.name())
+                            .add(moveFrame(game))
+                            .add(EndGameMessage.GAME_WON_FRAME)
+                            .add(ServerCommand.LASTOFCHAIN.name()));
+
+                    if (opponent != null) {
+                        sendToSocket(opponent, new MessageBatch()
+                                .add(ServerCommand.FIRSTOFCHAIN.name())
+                                .add(ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + cols)
+                                .add(opponent.moveFrame(game))
+                                .add(EndGameMessage.GAME_LOST_FRAME)
+                                .add(ServerCommand.LASTOFCHAIN.name()));
+                    }
+                }
+                case 2 -> {
+                    // Handle a draw condition
+                    sendToSocket(this, new MessageBatch()
+                            .add(ServerCommand.FIRSTOFCHAIN.name())
+                            .add(moveFrame(game))
+                            .add(EndGameMessage.GAME_DRAW_FRAME)
+                            .add(ServerCommand.LASTOFCHAIN.name()));
+
+                    if (opponent != null) {
+                        sendToSocket(opponent, new MessageBatch()
+                                .add(ServerCommand.FIRSTOFCHAIN.name())
+                                .add(ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + cols)
+                                .add(opponent.moveFrame(game))
+                                .add(EndGameMessage.GAME_DRAW_FRAME)
+                                .add(ServerCommand.LASTOFCHAIN.name()));
+                    }
+                }
+                default -> {
+                    // Continue if no win nor draw
+                    sendToSocket(this, new MessageBatch(moveFrame(game)));
+                    if (game.getPlayer2ID() == aiPlayerId) {
+                        requestAiMove(GAME_ID, game);
+                    }
+
+                    if (opponent != null) {
+                        sendToSocket(opponent, new MessageBatch()
+                                .add(ServerCommand.FIRSTOFCHAIN.name())
+                                .add(ServerCommand.STANDARD_MESSAGE + " Opponent placed at " + rows + " " + cols)
+                                .add(opponent.moveFrame(game))
+                                .add(ServerCommand.LASTOFCHAIN.name()));
+                    }
                 }
             }
+            return null;
         }
 
         /**
-         * Returns the opponent's ID based on the given playerID.
+         * Sends a batch of messages to this client. Used by the broadcasters of the watched games.
          *
-         * @param playerID The ID of the quiting player.
-         * @return The ID of the opponent if both players are present, 0 if one player is missing.
+         * @param batch The messages to send.
          */
-        int getOpponentID(int playerID) {
-            if (player1ID != 0 && player2ID != 0) {
-                if (playerID == player1ID) {
-                    return player2ID;
-                } else {
-                    return player1ID;
-                }
-            } else {
-                return 0;
-            }
+        void send(MessageBatch batch) {
+            sendToSocket(this, batch);
         }
 
         /**
-         * Places a piece for the given player on the grid at the given position.
-         * Checks for winning conditions and if the move is valid or not.
+         * Indicates whether this client receives MOVE deltas instead of the full GAME_TABLE.
          *
-         * @param row      The row where to place the piece.
-         * @param col      The column where to place the piece.
-         * @param playerID The ID of the player placing the piece.
-         * @return An integer indicating the result of the action:
-         *         -1 if it is not the player's turn.
-         *         -2 if the move is out of bounds.
-         *         -3 if the position is already played.
-         *         -4 if the game is waiting for an opponent.
-         *         -5 if the game is finished.
-         *          1 if the player wins.
-         *          2 if the game ends on a draw.
-         *          0 if the game continues.
+         * @return true if the client uses the delta protocol
          */
-        int placePiece(int row, int col, int playerID) {
-            if (isFinished) {
-                return -5;
-            }
-
-            if (player1ID == 0 || player2ID == 0) {
-                return -4;
-            }
+        boolean usesDeltaProtocol() {
+            return deltaProtocol;
+        }
 
-            if ((playerID == player1ID && turnOf) || (playerID == player2ID && !turnOf)) {
-                return -1;
+        /**
+         * Takes the game found by the matchmaker, once the client is matched.
+         */
+        private void adoptMatch() {
+            if (ticket != null && ticket.isMatched()) {
+                game = ticket.game();
+                GAME_ID = ticket.gameId();
+                ticket = null;
             }
+        }
 
-            int realRow = row - 65;
-            int realCol = col - 1;
-
-            if (realRow < 0 || realRow > gridSize - 1 || realCol < 0 || realCol > gridSize - 1) {
-                return -2;
+        /**
+         * Builds the chain announcing the start of a game to this client.
+         *
+         * @param game        The game starting.
+         * @param gameId      The ID of the game.
+         * @param turnMessage The message giving the symbol and the first turn of the client.
+         * @return The chain to send.
+         */
+        private MessageBatch initGameChain(GameHandler game, int gameId, String turnMessage) {
+            MessageBatch chain = new MessageBatch()
+                    .add(ServerCommand.FIRSTOFCHAIN.name())
+                    .add(ServerCommand.INIT_GAME + " Opponent joined.")
+                    .add(ServerCommand.STANDARD_MESSAGE + turnMessage);
+            TurnClock clock = game.getClock();
+            if (clock != null) {
+                chain.add(ServerCommand.STANDARD_MESSAGE + " Time control : " + clock.describe() + ".");
             }
-
-            if (table[realRow][realCol] != 0) {
-                return -3;
+            if (moveLog != null) {
+                // The game survives a disconnection or a restart, the player needs its IDs and its token to take it back
+                chain.add(ServerCommand.STANDARD_MESSAGE + " To come back later : " + ClientCommand.RESUME + " " + gameId + " " + CLIENT_ID
+                        + " " + Long.toHexString(game.getResumeToken(CLIENT_ID)));
             }
+            return chain
+                    .add(boardFrame(game))
+                    .add(ServerCommand.LASTOFCHAIN.name());
+        }
 
-            if (playerID == player1ID) {
-                table[realRow][realCol] = 1;
-                turnOf = true;
-            } else if (playerID == player2ID) {
-                table[realRow][realCol] = 2;
-                turnOf = false;
-            }
+        /**
+         * Returns the line describing the whole board of a game for this client, following its protocol:
+         * a GAME_SNAPSHOT for a delta client, the GAME_TABLE otherwise.
+         *
+         * @param game The game shared with the client.
+         * @return The encoded line.
+         */
+        private byte[] boardFrame(GameHandler game) {
+            return deltaProtocol ? game.getSnapshotFrame() : game.getTableFrame();
+        }
 
-            tilePlayed++;
+        /**
+         * Returns the line describing the last move of a game for this client, following its protocol:
+         * a MOVE for a delta client, the GAME_TABLE otherwise.
+         *
+         * @param game The game shared with the client.
+         * @return The encoded line.
+         */
+        private byte[] moveFrame(GameHandler game) {
+            return deltaProtocol ? game.getMoveFrame() : game.getTableFrame();
+        }
 
-            boolean winningRow = true;
-            boolean winningCol = true;
-            boolean winningRightDiagonal = true;
-            boolean winningLeftDiagonal = true;
+        /**
+         * Erases the client data after the connection is closed.
+         */
+        void closeSession() {
+            ServerLog.log(ServerLog.Event.DISCONNECTED, CLIENT_ID);
 
-            // Check for winning conditions on the row, column, and diagonals.
-            for (int c = 1; c < gridSize; c++) {
-                if (table[realRow][c] != table[realRow][c - 1]) {
-                    winningRow = false;
-                    break;
-                }
+            if (ticket != null && !ticket.cancel()) {
+                // Matched meanwhile, the new game is left like the others
+                adoptMatch();
             }
-
-            for (int r = 1; r < gridSize; r++) {
-                if (table[r][realCol] != table[r - 1][realCol]) {
-                    winningCol = false;
-                    break;
-                }
+            if (watched != null) {
+                watched.spectators().remove(this);
             }
-
-            for (int i = 1; i < gridSize; i++) {
-                if (table[i][i] != table[i - 1][i - 1] || table[i][i] == 0) {
-                    winningRightDiagonal = false;
-                    break;
-                }
+            if (game != null) {
+                int gameId = GAME_ID;
+                GameHandler abandoned = game;
+                int playerId = CLIENT_ID;
+                shards.execute(gameId, () -> abandonGame(gameId, abandoned, playerId));
             }
+            clientMap.remove(CLIENT_ID, this);
+            admission.release();
+            ServerMetrics.recordConnectionClosed();
+        }
+
+        /**
+         * Handles the game of a client that disconnected without leaving it, on the shard of the game.
+         * When the server has a move log, a game in progress waits for the player to come back with RESUME
+         * until the resume timeout. Otherwise the player leaves the game at once, a game in progress by forfeit.
+         *
+         * @param gameId   the ID of the game
+         * @param game     the game
+         * @param playerId the ID of the player who disconnected
+         */
+        private static void abandonGame(int gameId, GameHandler game, int playerId) {
+            int opponentId = game.getOpponentID(playerId);
+            boolean inProgress = !game.gameStatus() && opponentId != 0;
 
-            for (int r = 1, c = gridSize - 2; r < gridSize; r++, c--) {
-                if (table[r][c] != table[r - 1][c + 1] || table[r][c] == 0) {
-                    winningLeftDiagonal = false;
-                    break;
+            if (inProgress && moveLog != null) {
+                if (resumeTimeout > 0) {
+                    abandonedGames.add(new AbandonedGame(gameId, game, playerId));
                 }
+                sendToSocket(clientMap.get(opponentId), ServerCommand.STANDARD_MESSAGE + " Your opponent is disconnected"
+                        + (resumeTimeout > 0 ? ", the game is forfeited if they are not back within " + resumeTimeout + " s." : "."));
+            } else if (leaveGame(gameId, game, playerId) && inProgress) {
+                ServerMetrics.recordAbandonedGame();
             }
+        }
 
-            if (winningRow || winningCol || winningRightDiagonal || winningLeftDiagonal) {
-                isFinished = true;
-                return 1;
-            }
 
-            if (tilePlayed >= gridSize * gridSize) {
-                isFinished = true;
-                return 2;
+        /**
+         * Sends the message to the given client.
+         *
+         * This method writes to the client's connection, which makes sure that the message
+         * is sent immediately. Chains of messages should be sent as one MessageBatch instead.
+         *
+         * @param client  The client to send to.
+         * @param message The message to send to the client.
+         */
+        private static void sendToSocket(ClientHandler client, String message) {
+            if (message != null) {
+                sendToSocket(client, new MessageBatch(message));
             }
-
-            return 0;
         }
 
         /**
-         * Returns a string representing the game table.
-         * The table is formatted with row labels (A, B, C, ...) and column numbers (1, 2, 3, ...).
-         * [X] represents player1, [O] represents player2 and [ ] represents unplayed positions.
+         * Sends a batch of messages to the given client, with a single write and flush.
+         * Nothing is sent if the client already disconnected. A shard waiting for its events to reach the disk
+         * holds the message until then.
          *
-         * @return A formatted string representing the current state of the game.
+         * @param client The client to send to, or null if it disconnected.
+         * @param batch  The messages to send to the client.
          */
-        String getTable() {
-            /* format example
-               1   2   3
-            A  0 ¦ 0 ¦ 0
-              ---¦---¦---
-            B  0 ¦ 0 ¦ 0
-              ---¦---¦---
-            C  0 ¦ 0 ¦ 0
-             */
-            StringBuilder tableString = new StringBuilder();
-            for (int i = 1; i <= gridSize; i++) {
-                tableString.append("   ").append(i);
-            }
-            tableString.append("/");
-
-            char rowLabel = 'A';
-
-            for (int rows = 0; rows < gridSize; rows++) {
-                tableString.append(rowLabel).append("  ");
-
-                for (int cols = 0; cols < gridSize; cols++) {
-                    tableString.append(switch (table[rows][cols]) {
-                        case 1 -> "X";
-                        case 2 -> "O";
-                        default -> " ";
-                    });
-
-                    if (cols < gridSize - 1) {
-                        tableString.append(" ¦ ");
-                    }
-                }
-
-                tableString.append("/  ");
-
-                if (rows < gridSize - 1) {
-                    for (int cols = 0; cols < gridSize; cols++) {
-                        tableString.append("---");
+        private static void sendToSocket(ClientHandler client, MessageBatch batch) {
+            if (client == null) {
+                return;
+            }
+            if (shards.isHolding()) {
+                shards.hold(() -> sendToSocket(client, batch));
+                return;
+            }
 
-                        if (cols < gridSize - 1) {
-                            tableString.append("¦");
-                        }
-                    }
-                    tableString.append("/");
-                }
-                rowLabel++;
+            try {
+                client.connection.send(batch);
+            } catch (Exception e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
             }
-            return tableString.toString();
         }
+    }
+
+
+    /**
+     * A game in progress whose player disconnected, with the time of the disconnection.
+     */
+    private static class AbandonedGame {
+        final int gameId;
+        final GameHandler game;
+        final int playerId;
+        final long since = System.nanoTime();
 
         /**
-         * Indicates the size of the grid.
+         * Instantiates a new Abandoned game.
          *
-         * @return The size of the game grid.
+         * @param gameId   the ID of the game
+         * @param game     the game
+         * @param playerId the ID of the player who disconnected
          */
-        int getGridSize() {
-            return gridSize;
+        AbandonedGame(int gameId, GameHandler game, int playerId) {
+            this.gameId = gameId;
+            this.game = game;
+            this.playerId = playerId;
         }
     }
 
+
     /**
      * Contains the ASCII art messages displayed when a game ends. 
      * These messages are shown depending on the result of the game:
@@ -689,6 +1890,13 @@ public class GameServer {
                 " / /_/ // _, _// ___ || |/ |/ / n" +
                 "/_____//_/ |_|/_/  |_||__/|__/ n" +
                 "n" + ANSI_RESET;
+
+        /*
+         * The ENDGAME_MESSAGE lines, encoded once and shared by every game.
+         */
+        private static final byte[] GAME_WON_FRAME = MessageBatch.encode(ServerCommand.ENDGAME_MESSAGE + GAME_WON);
+        private static final byte[] GAME_LOST_FRAME = MessageBatch.encode(ServerCommand.ENDGAME_MESSAGE + GAME_LOST);
+        private static final byte[] GAME_DRAW_FRAME = MessageBatch.encode(ServerCommand.ENDGAME_MESSAGE + GAME_DRAW);
     }
 
     /**
@@ -700,7 +1908,7 @@ public class GameServer {
      * @param str The string to check.
      * @return true if the string represents a valid integer, false otherwise.
      */
-    private static boolean isNumeric(String str) {
+    static boolean isNumeric(String str) {
         try {
             Integer.parseInt(str);
             return true;
@@ -0,0 +1,235 @@
+package ch.heigvd.dai.game;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The event loops owning the games, each one the single writer of the games of its shard.
+ *
+ * A game belongs to the shard of its ID modulo the number of shards. Everything reading or changing a game runs as
+ * a task on the thread of its shard: the requests of the players and watchers, the timeouts of its clock, the
+ * reaper and the snapshot copies. The tasks of a shard run one after the other, so a game needs no lock, and the
+ * games of different shards are played in parallel without sharing anything but the registries.
+ *
+ * A session sends at most one request at a time to the shards, and reads its next request once the shard resumed
+ * it, so the requests of a client still run in order. The tasks are handed over through a lock-free queue,
+ * and a shard is only woken up when it was waiting for work.
+ *
+ * With the PER_MOVE durability, a shard does not wait for the disk after each event: the messages sent after
+ * an event are held, and released once every event logged by the tasks run meanwhile is on disk,
+ * so one fsync acknowledges all of them.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class GameShards {
+    // The tasks run before the held messages are released, so a busy shard still acknowledges its events
+    private static final int MAX_HELD_TASKS = 256;
+
+    private final Shard[] shards;
+
+    // The log whose events are acknowledged once on disk, null unless the durability is PER_MOVE
+    private final MoveLog durableLog;
+
+    /**
+     * Instantiates the shards and starts their threads.
+     *
+     * @param count      the number of shards
+     * @param durableLog the move log whose events must be on disk before they are acknowledged, or null
+     */
+    GameShards(int count, MoveLog durableLog) {
+        this.shards = new Shard[count];
+        this.durableLog = durableLog;
+
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard("game-shard-" + i);
+            shards[i].setDaemon(true);
+            shards[i].start();
+        }
+    }
+
+    /**
+     * Indicates whether the current thread is a shard. A shard serves every game of its shard, so like an event loop
+     * it must never wait for a slow client: the messages it sends to a full queue overflow at once.
+     *
+     * @return true if the current thread is a shard
+     */
+    static boolean isShardThread() {
+        return Thread.currentThread() instanceof Shard;
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the number of shards
+     */
+    int size() {
+        return shards.length;
+    }
+
+    /**
+     * Runs a task on the shard owning a game.
+     *
+     * @param gameId the ID of the game
+     * @param task   the task, which must not wait for anything
+     */
+    void execute(int gameId, Runnable task) {
+        shards[shardOf(gameId)].execute(task);
+    }
+
+    /**
+     * Runs a task on the shard owning a game and waits for its result. Must not be called from a shard.
+     *
+     * @param gameId the ID of the game
+     * @param task   the task
+     * @param <T>    the type of the result
+     * @return the result of the task
+     */
+    <T> T call(int gameId, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(gameId, () -> {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return result.join();
+    }
+
+    /**
+     * Gets the shard owning a game.
+     *
+     * @param gameId the ID of the game
+     * @return the index of the shard
+     */
+    int shardOf(int gameId) {
+        return Math.floorMod(gameId, shards.length);
+    }
+
+    /**
+     * Indicates whether the messages sent by the current thread must be held until the events logged before
+     * them are on disk. Only the shards hold messages, and only after logging an event with the PER_MOVE durability.
+     *
+     * @return true if the messages must go through {@link #hold}
+     */
+    boolean isHolding() {
+        return Thread.currentThread() instanceof Shard shard && shard.heldPosition != 0;
+    }
+
+    /**
+     * Holds an action of the current shard until the events logged before it are on disk.
+     *
+     * @param action the action, sending a message or resuming a session
+     */
+    void hold(Runnable action) {
+        ((Shard) Thread.currentThread()).held.add(action);
+    }
+
+    /**
+     * Records that an event was just logged. With the PER_MOVE durability, the messages sent afterwards by the shard
+     * are held until the event is on disk, or the calling thread waits for it if it is not a shard.
+     *
+     * @param position the position of the event in the move log
+     */
+    void logged(long position) {
+        if (durableLog == null) {
+            return;
+        }
+        if (Thread.currentThread() instanceof Shard shard) {
+            shard.heldPosition = position;
+        } else {
+            durableLog.awaitDurable(position);
+        }
+    }
+
+    /**
+     * The thread of one shard, running its tasks in order.
+     */
+    private class Shard extends Thread {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean waiting;
+
+        // The messages held until the event at the held position is on disk, 0 when nothing is held
+        private final ArrayDeque<Runnable> held = new ArrayDeque<>();
+        private long heldPosition;
+
+        Shard(String name) {
+            super(name);
+        }
+
+        /**
+         * Queues a task, and wakes the shard up if it was waiting for work.
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            // Read after the task is queued, so either the shard sees the task or the task sees the shard waiting
+            if (waiting) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int heldTasks = 0;
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    if (heldPosition != 0) {
+                        release();
+                        heldTasks = 0;
+                        continue;
+                    }
+                    waiting = true;
+                    if (tasks.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                }
+
+                if (heldPosition != 0 && ++heldTasks >= MAX_HELD_TASKS) {
+                    release();
+                    heldTasks = 0;
+                }
+            }
+        }
+
+        /**
+         * Waits until the held events are on disk, then sends the held messages in order.
+         */
+        private void release() {
+            try {
+                durableLog.awaitDurable(heldPosition);
+            } catch (UncheckedIOException e) {
+                // The events never reached the disk, so nothing held is acknowledged, the server stops meanwhile
+                held.clear();
+                heldPosition = 0;
+                return;
+            }
+            heldPosition = 0;
+
+            Runnable action;
+            while ((action = held.poll()) != null) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates the IDs of the games and the clients from an atomic counter.
+ * Allocating an ID costs one atomic increment, whatever the number of IDs in use,
+ * and an ID is only given again after the whole range of the sequence has been used.
+ *
+ * In a cluster, the positive int range is split into one range per node, so a game or a client ID tells
+ * which node it belongs to without asking any node.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class IdSequence {
+    private final int first;
+    private final int last;
+    private final AtomicInteger next;
+
+    /**
+     * Instantiates a new Id sequence over the whole positive int range.
+     */
+    IdSequence() {
+        this(1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Instantiates a new Id sequence over a range of IDs.
+     *
+     * @param first the first ID of the range, positive
+     * @param last  the last ID of the range
+     */
+    private IdSequence(int first, int last) {
+        this.first = first;
+        this.last = last;
+        this.next = new AtomicInteger(first);
+    }
+
+    /**
+     * Creates the sequence of the IDs owned by a node of a cluster.
+     *
+     * @param index the index of the node, from 0
+     * @param count the number of nodes of the cluster
+     * @return the sequence of the range of the node
+     */
+    static IdSequence ofNode(int index, int count) {
+        int span = Integer.MAX_VALUE / count;
+        return new IdSequence(index * span + 1, index == count - 1 ? Integer.MAX_VALUE : (index + 1) * span);
+    }
+
+    /**
+     * Gets the node of a cluster owning an ID, following {@link #ofNode}.
+     *
+     * @param id    the ID, positive
+     * @param count the number of nodes of the cluster
+     * @return the index of the node
+     */
+    static int nodeOf(int id, int count) {
+        return Math.min((id - 1) / (Integer.MAX_VALUE / count), count - 1);
+    }
+
+    /**
+     * Gets the next ID of the sequence, going back to the first ID of the range after the last one.
+     *
+     * @return the next ID, always positive
+     */
+    int next() {
+        return next.getAndUpdate(id -> id == last ? first : id + 1);
+    }
+
+    /**
+     * Makes sure the sequence never gives the given ID or a lower one again, until it goes back to the first ID.
+     * Used to skip the IDs restored from the move log. An ID outside of the range is ignored.
+     *
+     * @param id the highest ID in use
+     */
+    void advancePast(int id) {
+        next.accumulateAndGet(id, (current, used) -> used >= current && used < last ? used + 1 : current);
+    }
+}
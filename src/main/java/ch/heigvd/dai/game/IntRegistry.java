@@ -0,0 +1,307 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A concurrent map from int IDs to objects, used for the registries of the clients and the games.
+ *
+ * The keys are stored unboxed in open addressing tables split into stripes, each guarded by its own StampedLock.
+ * Lookups first read the table without locking and only take the read lock if a writer changed the stripe meanwhile,
+ * so the lookups of a move never block each other. The key 0 is reserved to mark the free slots.
+ *
+ * @param <V> the type of the registered objects
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class IntRegistry<V> {
+    private static final int STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Instantiates a new empty Int registry.
+     */
+    IntRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Gets the object registered under the given ID.
+     *
+     * @param id the ID
+     * @return the object, or null if the ID is not registered
+     */
+    @SuppressWarnings("unchecked")
+    V get(int id) {
+        int hash = hash(id);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+
+        long stamp = stripe.lock.tryOptimisticRead();
+        Object value = stripe.table.find(id, hash);
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                value = stripe.table.find(id, hash);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return (V) value;
+    }
+
+    /**
+     * Registers an object under the given ID, unless the ID is already registered.
+     *
+     * @param id    the ID, different from 0
+     * @param value the object to register
+     * @return null if the object was registered, otherwise the object already registered under the ID
+     */
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(int id, V value) {
+        if (id == 0) {
+            throw new IllegalArgumentException("The ID 0 is reserved");
+        }
+
+        int hash = hash(id);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            Object previous = stripe.table.find(id, hash);
+            if (previous == null) {
+                stripe.insert(id, hash, value);
+            }
+            return (V) previous;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the object registered under the given ID.
+     *
+     * @param id the ID
+     * @return the removed object, or null if the ID was not registered
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int id) {
+        int hash = hash(id);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            return (V) stripe.remove(id, hash);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the object registered under the given ID, only if it is still the given object.
+     * An ID given again after the object was removed is left to its new object.
+     *
+     * @param id    the ID
+     * @param value the object expected under the ID
+     * @return true if the object was removed
+     */
+    boolean remove(int id, V value) {
+        int hash = hash(id);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+
+        long stamp = stripe.lock.writeLock();
+        try {
+            if (value == null || stripe.table.find(id, hash) != value) {
+                return false;
+            }
+            stripe.remove(id, hash);
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gets the number of registered objects.
+     *
+     * @return the number of objects
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Calls the action for every registered object with its ID.
+     * Each stripe is visited under its read lock, so the action must not modify the registry.
+     *
+     * @param action the action receiving each object and its ID
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(ObjIntConsumer<? super V> action) {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                for (int slot = 0; slot < table.keys.length; slot++) {
+                    if (table.keys[slot] != 0) {
+                        action.accept((V) table.values[slot], table.keys[slot]);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of an ID, since the IDs are sequential.
+     *
+     * @param id the ID
+     * @return the hash of the ID
+     */
+    private static int hash(int id) {
+        int hash = id * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The keys and values of one stripe, replaced as a whole when the stripe grows,
+     * so that an optimistic reader always sees two arrays of the same length.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        /**
+         * Looks for an ID with linear probing. The number of probes is bounded,
+         * so an optimistic read racing with a writer always ends, before being validated.
+         *
+         * @param id   the ID
+         * @param hash the hash of the ID
+         * @return the registered object, or null
+         */
+        Object find(int id, int hash) {
+            int mask = keys.length - 1;
+            int slot = (hash >>> 6) & mask;
+            for (int probes = 0; probes < keys.length; probes++) {
+                int key = keys[slot];
+                if (key == id) {
+                    return values[slot];
+                }
+                if (key == 0) {
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One stripe of the registry, kept at most half full.
+     */
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(INITIAL_STRIPE_CAPACITY);
+        int size;
+
+        /**
+         * Inserts an ID known to be absent. Must be called under the write lock.
+         *
+         * @param id    the ID
+         * @param hash  the hash of the ID
+         * @param value the object
+         */
+        void insert(int id, int hash, Object value) {
+            if ((size + 1) * 2 > table.keys.length) {
+                grow();
+            }
+            place(table, id, hash, value);
+            size++;
+        }
+
+        /**
+         * Removes an ID, shifting the following entries back so no tombstone is left.
+         * Must be called under the write lock.
+         *
+         * @param id   the ID
+         * @param hash the hash of the ID
+         * @return the removed object, or null
+         */
+        Object remove(int id, int hash) {
+            int[] keys = table.keys;
+            Object[] values = table.values;
+            int mask = keys.length - 1;
+
+            int slot = (hash >>> 6) & mask;
+            while (keys[slot] != id) {
+                if (keys[slot] == 0) {
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            Object removed = values[slot];
+            int free = slot;
+            int next = (slot + 1) & mask;
+            while (keys[next] != 0) {
+                int home = (hash(keys[next]) >>> 6) & mask;
+                // Moves the entry back if the free slot lies between its home slot and its current slot
+                if (((next - home) & mask) >= ((next - free) & mask)) {
+                    keys[free] = keys[next];
+                    values[free] = values[next];
+                    free = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[free] = 0;
+            values[free] = null;
+            size--;
+            return removed;
+        }
+
+        /**
+         * Doubles the capacity of the stripe.
+         */
+        private void grow() {
+            Table old = table;
+            Table grown = new Table(old.keys.length * 2);
+            for (int slot = 0; slot < old.keys.length; slot++) {
+                if (old.keys[slot] != 0) {
+                    place(grown, old.keys[slot], hash(old.keys[slot]), old.values[slot]);
+                }
+            }
+            table = grown;
+        }
+
+        /**
+         * Writes an entry in the first free slot from its home slot.
+         */
+        private static void place(Table table, int id, int hash, Object value) {
+            int mask = table.keys.length - 1;
+            int slot = (hash >>> 6) & mask;
+            while (table.keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table.values[slot] = value;
+            table.keys[slot] = id;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, used to report percentiles.
+ *
+ * The buckets are log-linear: each power of two is split into 16 buckets, so a percentile is known within 6.25%
+ * from 1 ns up to about 18 minutes. Recording a value is one atomic increment, without allocation.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos the latency, in nanoseconds
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Takes the counts recorded since the previous snapshot and resets them.
+     *
+     * @return the snapshot of the counts
+     */
+    Snapshot takeSnapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                snapshot[i] = counts.getAndSet(i, 0);
+            }
+        }
+        return new Snapshot(snapshot);
+    }
+
+    /**
+     * Reads the counts recorded since the histogram was created, without resetting them.
+     *
+     * @return the snapshot of the counts
+     */
+    Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new Snapshot(snapshot);
+    }
+
+    /**
+     * Gets the bucket of a latency.
+     *
+     * @param nanos the latency, in nanoseconds
+     * @return the index of the bucket
+     */
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_EXPONENT);
+        int subBucket = (int) (Math.min(nanos >>> (exponent - SUB_BUCKET_BITS), 2 * SUB_BUCKETS - 1) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the highest latency counted in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the highest latency of the bucket, in nanoseconds
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    /**
+     * The latencies recorded during one interval.
+     */
+    static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+
+            long total = 0;
+            for (long value : counts) {
+                total += value;
+            }
+            this.count = total;
+        }
+
+        /**
+         * Gets the latencies recorded after an earlier snapshot of the same histogram.
+         *
+         * @param earlier the earlier snapshot, taken with {@link #snapshot}
+         * @return the latencies recorded in between
+         */
+        Snapshot since(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(difference);
+        }
+
+        /**
+         * Gets the number of recorded latencies.
+         *
+         * @return the number of latencies
+         */
+        long count() {
+            return count;
+        }
+
+        /**
+         * Gets a percentile of the recorded latencies.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency below which the given percentage of the latencies are, in nanoseconds, 0 if none was recorded
+         */
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestOf(i);
+                }
+            }
+            return highestOf(counts.length - 1);
+        }
+
+        /**
+         * Formats the 50th, 99th and 99.9th percentiles in microseconds.
+         *
+         * @param name the name of the measured latency
+         * @return the formatted percentiles
+         */
+        String format(String name) {
+            return name + "P50=" + micros(percentile(50))
+                    + "us " + name + "P99=" + micros(percentile(99))
+                    + "us " + name + "P999=" + micros(percentile(99.9)) + "us";
+        }
+
+        private static String micros(long nanos) {
+            return String.format("%.1f", nanos / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package ch.heigvd.dai.game;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load generator that plays real games against a server, to measure it under the load of many players.
+ *
+ * The bots go by pairs, each pair on its own virtual thread with two connections: one bot creates a game,
+ * the other joins it with the ID given in the answer, then they play random free cells in turn until the game ends
+ * and both quit it. A pair knows both sides of its board, so the bots never parse the board sent by the server,
+ * and each exchange is read in the order the server writes it, without a second thread per connection.
+ *
+ * The round-trip time of a move is measured from the PLACE request to the end of the answer of the server
+ * to the player who moved. The pairs start one after the other during the ramp-up, the rates are measured after it.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class LoadGenerator {
+    private static final String FIRSTOFCHAIN = GameServer.ServerCommand.FIRSTOFCHAIN.name();
+    private static final String LASTOFCHAIN = GameServer.ServerCommand.LASTOFCHAIN.name();
+    private static final String ENDGAME_MESSAGE = GameServer.ServerCommand.ENDGAME_MESSAGE.name();
+    private static final String INVALID = GameServer.ServerCommand.INVALID.name();
+    private static final String WAIT_OPPONENT = GameServer.ServerCommand.WAIT_OPPONENT.name();
+    private static final String CONFIRMQUITGAME = GameServer.ServerCommand.CONFIRMQUITGAME.name();
+    private static final String PING = GameServer.ServerCommand.PING.name();
+
+    // Results of reading the answer to a move
+    private static final int CONTINUES = 0;
+    private static final int ENDED = 1;
+    private static final int REFUSED = 2;
+
+    private final BenchConfig config;
+
+    private final LatencyHistogram moveLatency = new LatencyHistogram();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder games = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failedPairs = new AtomicInteger();
+
+    private volatile long deadline;
+
+    /**
+     * Instantiates a new Load generator.
+     *
+     * @param config the configuration of the run
+     */
+    public LoadGenerator(BenchConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the bots for the ramp-up and the duration of the configuration, then prints the report.
+     *
+     * @return true if at least one game was played, false if the server could not be used
+     * @throws InterruptedException if the thread is interrupted while waiting for the bots
+     */
+    public boolean run() throws InterruptedException {
+        int pairs = config.getConnections() / 2;
+        long rampUp = TimeUnit.SECONDS.toNanos(config.getRampUp());
+        long start = System.nanoTime();
+        deadline = start + rampUp + TimeUnit.SECONDS.toNanos(config.getDuration());
+
+        System.out.println("[Bench] " + config.getConnections() + " connections to " + config.getHost() + ":" + config.getPort()
+                + ", ramp-up " + config.getRampUp() + "s, duration " + config.getDuration() + "s, think time " + config.getThinkTime() + "ms");
+
+        Thread reporter = Thread.ofPlatform().daemon().name("bench-reporter").start(() -> report(start));
+
+        List<Thread> threads = new ArrayList<>(pairs);
+        for (int i = 0; i < pairs && System.nanoTime() < deadline; i++) {
+            long due = start + rampUp * i / pairs;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            threads.add(Thread.ofVirtual().name("bot-pair-", i).start(this::playPair));
+        }
+
+        // The measured interval starts once every pair is playing
+        long waitRampUp = start + rampUp - System.nanoTime();
+        if (waitRampUp > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitRampUp);
+        }
+        moves.reset();
+        games.reset();
+        moveLatency.takeSnapshot();
+        long measureStart = System.nanoTime();
+
+        // The games still in progress at the deadline are abandoned and not counted
+        long waitDeadline = deadline - System.nanoTime();
+        if (waitDeadline > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitDeadline);
+        }
+        long measured = System.nanoTime() - measureStart;
+        long measuredMoves = moves.sum();
+        long measuredGames = games.sum();
+        LatencyHistogram.Snapshot latencies = moveLatency.snapshot();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reporter.interrupt();
+
+        printReport(measured, measuredMoves, measuredGames, latencies);
+        return measuredGames > 0;
+    }
+
+    /**
+     * Plays games with a pair of bots until the deadline. The pair stops at the first error of its connections.
+     */
+    private void playPair() {
+        try (Bot creator = connect(); Bot joiner = connect()) {
+            connected.addAndGet(2);
+            try {
+                while (System.nanoTime() < deadline) {
+                    playGame(creator, joiner);
+                }
+            } finally {
+                connected.addAndGet(-2);
+            }
+        } catch (IOException e) {
+            failedPairs.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Plays one game: the creator creates it and starts, the joiner joins it, both play until the end, then quit.
+     *
+     * @param creator the bot creating the game, playing [X]
+     * @param joiner  the bot joining the game, playing [O]
+     * @throws IOException          if a connection fails or the server refuses a step of the game
+     * @throws InterruptedException if the thread is interrupted while thinking
+     */
+    private void playGame(Bot creator, Bot joiner) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] gridSizes = config.getGridSizes();
+        int gridSize = gridSizes[random.nextInt(gridSizes.length)];
+
+        creator.send(GameServer.ClientCommand.CREATE + " " + gridSize);
+        String answer = creator.readLine();
+        if (!answer.startsWith(WAIT_OPPONENT)) {
+            throw new IOException("CREATE refused: " + answer);
+        }
+        int gameId = lastNumber(answer);
+
+        joiner.send(GameServer.ClientCommand.JOIN + " " + gameId);
+        if (joiner.readAnswer() == REFUSED) {
+            throw new IOException("JOIN " + gameId + " refused");
+        }
+        creator.readAnswer();
+
+        // The free cells, encoded as row * gridSize + col, the first ones are still free
+        int[] cells = new int[gridSize * gridSize];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+        }
+        int free = cells.length;
+        int forfeitAt = random.nextInt(100) < config.getForfeitPercent() ? random.nextInt(cells.length) : -1;
+
+        Bot player = creator;
+        Bot opponent = joiner;
+        int result = CONTINUES;
+        // A forfeited game is left by the player whose turn it is after the given number of moves
+        while (result == CONTINUES && cells.length - free != forfeitAt && System.nanoTime() < deadline) {
+            if (config.getThinkTime() > 0) {
+                Thread.sleep(config.getThinkTime());
+            }
+
+            int index = random.nextInt(free);
+            int cell = cells[index];
+            cells[index] = cells[--free];
+
+            long sent = System.nanoTime();
+            player.send(GameServer.ClientCommand.PLACE + " " + (char) ('A' + cell / gridSize) + " " + (cell % gridSize + 1));
+            result = player.readAnswer();
+            moveLatency.record(System.nanoTime() - sent);
+            if (result == REFUSED) {
+                refused.increment();
+                break;
+            }
+            moves.increment();
+            opponent.readAnswer();
+
+            Bot next = player;
+            player = opponent;
+            opponent = next;
+        }
+
+        // The player whose turn it is leaves first, the other one is told before its own confirmation
+        player.quit();
+        opponent.quit();
+        if (result == ENDED || cells.length - free == forfeitAt) {
+            games.increment();
+        }
+    }
+
+    /**
+     * Opens the connection of a bot and records how long it took.
+     *
+     * @return the bot
+     * @throws IOException if the connection fails
+     */
+    private Bot connect() throws IOException {
+        long start = System.nanoTime();
+        Bot bot = new Bot(new Socket(config.getHost(), config.getPort()));
+        connectLatency.record(System.nanoTime() - start);
+        return bot;
+    }
+
+    /**
+     * Prints the progress of the run at the configured interval, until the thread is interrupted.
+     *
+     * @param start the start of the run
+     */
+    private void report(long start) {
+        if (config.getReportInterval() == 0) {
+            return;
+        }
+        long previousMoves = 0;
+        long previousGames = 0;
+        try {
+            while (true) {
+                TimeUnit.SECONDS.sleep(config.getReportInterval());
+                long currentMoves = moves.sum();
+                long currentGames = games.sum();
+                // The counters are reset at the end of the ramp-up
+                long intervalMoves = currentMoves >= previousMoves ? currentMoves - previousMoves : currentMoves;
+                long intervalGames = currentGames >= previousGames ? currentGames - previousGames : currentGames;
+                previousMoves = currentMoves;
+                previousGames = currentGames;
+
+                System.out.println("[Bench] t=" + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s"
+                        + " connections=" + connected.get()
+                        + " moves/s=" + intervalMoves / config.getReportInterval()
+                        + " games/s=" + intervalGames / config.getReportInterval());
+            }
+        } catch (InterruptedException e) {
+            // The run is over
+        }
+    }
+
+    /**
+     * Prints the rates and the latencies measured between the end of the ramp-up and the deadline.
+     *
+     * @param measured  the measured interval, in nanoseconds
+     * @param moves     the moves played in the interval
+     * @param games     the games finished in the interval
+     * @param latencies the round-trip times of the moves
+     */
+    private void printReport(long measured, long moves, long games, LatencyHistogram.Snapshot latencies) {
+        double seconds = measured / 1e9;
+        System.out.println("[Bench] measured " + String.format("%.1f", seconds) + "s after the ramp-up");
+        System.out.println("[Bench] moves=" + moves + " games=" + games
+                + " moves/s=" + String.format("%.0f", moves / seconds)
+                + " games/s=" + String.format("%.1f", games / seconds));
+        System.out.println("[Bench] " + connectLatency.snapshot().format("connect"));
+        System.out.println("[Bench] " + latencies.format("move"));
+        if (refused.sum() > 0 || failedPairs.get() > 0) {
+            System.out.println("[Bench] refused moves=" + refused.sum() + " failed pairs=" + failedPairs.get());
+        }
+    }
+
+    /**
+     * Gets the number at the end of a line, ignoring the characters after its last digit.
+     *
+     * @param line the line
+     * @return the number
+     * @throws IOException if the line has no number
+     */
+    private static int lastNumber(String line) throws IOException {
+        int end = line.length();
+        while (end > 0 && !Character.isDigit(line.charAt(end - 1))) {
+            end--;
+        }
+        int begin = end;
+        while (begin > 0 && Character.isDigit(line.charAt(begin - 1))) {
+            begin--;
+        }
+        if (begin == end) {
+            throw new IOException("No game ID in: " + line);
+        }
+        return Integer.parseInt(line, begin, end, 10);
+    }
+
+    /**
+     * One connection to the server, speaking the text protocol.
+     */
+    private static final class Bot implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        private Bot(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends one request.
+         *
+         * @param request the request
+         * @throws IOException if the connection fails
+         */
+        void send(String request) throws IOException {
+            out.write(request);
+            out.newLine();
+            out.flush();
+        }
+
+        /**
+         * Reads one line sent by the server. A PING is answered and skipped.
+         *
+         * @return the line
+         * @throws IOException if the connection fails or is closed by the server
+         */
+        String readLine() throws IOException {
+            while (true) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (!line.equals(PING)) {
+                    return line;
+                }
+                send(GameServer.ClientCommand.PONG.name());
+            }
+        }
+
+        /**
+         * Reads one answer, a single line or a whole chain.
+         *
+         * @return ENDED if the answer ends the game, REFUSED if it is an INVALID line, CONTINUES otherwise
+         * @throws IOException if the connection fails or is closed by the server
+         */
+        int readAnswer() throws IOException {
+            String line = readLine();
+            if (!line.equals(FIRSTOFCHAIN)) {
+                return line.startsWith(INVALID) ? REFUSED : CONTINUES;
+            }
+
+            int result = CONTINUES;
+            while (!(line = readLine()).equals(LASTOFCHAIN)) {
+                if (line.startsWith(ENDGAME_MESSAGE)) {
+                    result = ENDED;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Quits the current game, skipping the messages sent before the confirmation.
+         *
+         * @throws IOException if the connection fails or is closed by the server
+         */
+        void quit() throws IOException {
+            send(GameServer.ClientCommand.QUITGAME.name());
+            while (!readLine().startsWith(CONFIRMQUITGAME)) {
+                // The chain telling that the opponent left
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
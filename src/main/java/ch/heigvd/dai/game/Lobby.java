@@ -0,0 +1,271 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The index of the games waiting for an opponent, by grid size.
+ *
+ * Only the joinable games are indexed: a game is added when it is created and removed as soon as
+ * an opponent joins it or its creator leaves, so listing the games does not depend on the number of games in progress.
+ * The GAME_LIST pages are encoded once and cached until the games of their grid size change.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class Lobby {
+    /**
+     * The number of games listed when the client does not give a limit.
+     */
+    static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The largest number of games listed in one page.
+     */
+    static final int MAX_PAGE_SIZE = 100;
+
+    private static final int[] GRID_SIZES = {3, 5, 7, 9};
+    private static final int MAX_CACHED_PAGES = 4096;
+
+    private final Index[] indexes = new Index[GRID_SIZES.length];
+    private final ConcurrentHashMap<Long, Page> pages = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new empty Lobby.
+     */
+    Lobby() {
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = new Index(GRID_SIZES[i]);
+        }
+    }
+
+    /**
+     * Indicates whether games of the given grid size can be played.
+     *
+     * @param gridSize the grid size
+     * @return true if the grid size is 3, 5, 7 or 9
+     */
+    static boolean isGridSize(int gridSize) {
+        return gridSize == 3 || gridSize == 5 || gridSize == 7 || gridSize == 9;
+    }
+
+    /**
+     * Lists a game waiting for an opponent.
+     *
+     * @param gameId   the ID of the game
+     * @param gridSize the grid size of the game
+     */
+    void add(int gameId, int gridSize) {
+        Index index = index(gridSize);
+        if (index.games.add(gameId)) {
+            index.count.incrementAndGet();
+            index.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a game from the list, because an opponent joins it or its creator left.
+     * Only one caller can remove a given game, so it is also used by the joining client to claim the game.
+     *
+     * @param gameId   the ID of the game
+     * @param gridSize the grid size of the game
+     * @return true if the game was listed and this call removed it
+     */
+    boolean remove(int gameId, int gridSize) {
+        Index index = index(gridSize);
+        if (index.games.remove(gameId)) {
+            index.count.decrementAndGet();
+            index.version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts the games waiting for an opponent.
+     *
+     * @param gridSize the grid size of the counted games, 0 for every grid size
+     * @return the number of games
+     */
+    int count(int gridSize) {
+        if (gridSize != 0) {
+            return index(gridSize).count.get();
+        }
+
+        int count = 0;
+        for (Index index : indexes) {
+            count += index.count.get();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the encoded GAME_LIST line of one page of the games waiting for an opponent, ordered by grid size and ID.
+     * The page is only rendered again if the games of the listed grid sizes changed since it was cached.
+     *
+     * @param gridSize the grid size of the listed games, 0 for every grid size
+     * @param offset   the number of games skipped
+     * @param limit    the maximum number of games listed, at most {@link #MAX_PAGE_SIZE}
+     * @return the encoded line, shared and never to be modified
+     */
+    byte[] page(int gridSize, int offset, int limit) {
+        long version = version(gridSize);
+        long key = ((long) gridSize << 56) | ((long) offset << 24) | limit;
+
+        Page page = pages.get(key);
+        if (page == null || page.version != version) {
+            if (pages.size() >= MAX_CACHED_PAGES) {
+                pages.clear();
+            }
+            page = new Page(version, render(gridSize, offset, 0, 0, limit));
+            pages.put(key, page);
+        }
+        return page.frame;
+    }
+
+    /**
+     * Gets the encoded GAME_LIST line of the games waiting for an opponent that come after a given game, in the order
+     * of a page. The router of a cluster reads each node this way, which finds the first game without counting the
+     * games before it. The line is rendered every time, as its games do not move when others are added or removed.
+     *
+     * @param gridSize      the grid size of the listed games, 0 for every grid size
+     * @param afterGridSize the grid size of the game the list starts after, 0 to start with the first game
+     * @param afterId       the ID of the game the list starts after
+     * @param limit         the maximum number of games listed, at most {@link #MAX_PAGE_SIZE}
+     * @return the encoded line
+     */
+    byte[] pageAfter(int gridSize, int afterGridSize, int afterId, int limit) {
+        return render(gridSize, 0, afterGridSize, afterId, limit);
+    }
+
+    /**
+     * Gets the version of the listed grid sizes, which grows every time one of their games is added or removed.
+     *
+     * @param gridSize the grid size, 0 for every grid size
+     * @return the version
+     */
+    private long version(int gridSize) {
+        if (gridSize != 0) {
+            return index(gridSize).version.get();
+        }
+
+        long version = 0;
+        for (Index index : indexes) {
+            version += index.version.get();
+        }
+        return version;
+    }
+
+    /**
+     * Renders a GAME_LIST line.
+     *
+     * @param gridSize      the grid size of the listed games, 0 for every grid size
+     * @param offset        the number of games skipped
+     * @param afterGridSize the grid size of the game the list starts after, 0 to start with the first game
+     * @param afterId       the ID of the game the list starts after
+     * @param limit         the maximum number of games listed
+     * @return the encoded line
+     */
+    private byte[] render(int gridSize, int offset, int afterGridSize, int afterId, int limit) {
+        StringBuilder gameList = new StringBuilder();
+        appendListHeader(gameList);
+
+        int skipped = 0;
+        int listed = 0;
+        int total = 0;
+        for (Index index : indexes) {
+            if (gridSize != 0 && index.gridSize != gridSize) {
+                continue;
+            }
+            total += index.count.get();
+            if (index.gridSize < afterGridSize) {
+                continue;
+            }
+
+            for (int gameId : index.gridSize == afterGridSize ? index.games.tailSet(afterId, false) : index.games) {
+                if (listed == limit) {
+                    break;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                appendListEntry(gameList, gameId, index.gridSize);
+                listed++;
+            }
+        }
+        appendListFooter(gameList, listed, total);
+
+        return MessageBatch.encode(gameList.toString());
+    }
+
+    /**
+     * Starts a GAME_LIST line. The router of a cluster writes its merged lists with the same three methods.
+     *
+     * @param gameList the line being written
+     */
+    static void appendListHeader(StringBuilder gameList) {
+        gameList.append(GameServer.ServerCommand.GAME_LIST).append(" Game id    Grid Size ¦");
+    }
+
+    /**
+     * Adds a game to a GAME_LIST line.
+     *
+     * @param gameList the line being written
+     * @param gameId   the ID of the game
+     * @param gridSize the grid size of the game
+     */
+    static void appendListEntry(StringBuilder gameList, int gameId, int gridSize) {
+        gameList.append(String.format("%7d    %d ¦", gameId, gridSize));
+    }
+
+    /**
+     * Ends a GAME_LIST line with the number of games listed out of the games available.
+     *
+     * @param gameList the line being written
+     * @param listed   the number of games listed
+     * @param total    the number of games available
+     */
+    static void appendListFooter(StringBuilder gameList, int listed, int total) {
+        gameList.append(" ").append(listed).append(" of ").append(total).append(" games ¦");
+    }
+
+    /**
+     * Gets the index of a grid size.
+     *
+     * @param gridSize the grid size, 3, 5, 7 or 9
+     * @return the index
+     */
+    private Index index(int gridSize) {
+        return indexes[(gridSize - 3) / 2];
+    }
+
+    /**
+     * The games of one grid size waiting for an opponent, ordered by ID.
+     */
+    private static final class Index {
+        final int gridSize;
+        final ConcurrentSkipListSet<Integer> games = new ConcurrentSkipListSet<>();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong version = new AtomicLong();
+
+        Index(int gridSize) {
+            this.gridSize = gridSize;
+        }
+    }
+
+    /**
+     * A rendered page and the version of the lobby it was rendered from.
+     */
+    private static final class Page {
+        final long version;
+        final byte[] frame;
+
+        Page(long version, byte[] frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Pairs the clients asking for a QUICKMATCH, with one lock-free queue per grid size.
+ *
+ * Any thread can enqueue a ticket, then tries to become the drainer of the queue: the single drainer pairs the
+ * tickets in their arrival order, so the clients are matched first come, first served without polling the lobby.
+ * A client can cancel its ticket until it is paired.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class Matchmaker {
+    private static final int[] GRID_SIZES = {3, 5, 7, 9};
+
+    private final Queue[] queues = new Queue[GRID_SIZES.length];
+    private final BiConsumer<Ticket, Ticket> onMatch;
+
+    /**
+     * Instantiates a new Matchmaker.
+     *
+     * @param onMatch called by the drainer with the two tickets of each pair, the oldest first.
+     *                It must create the game and call {@link Ticket#complete} on both tickets.
+     */
+    Matchmaker(BiConsumer<Ticket, Ticket> onMatch) {
+        this.onMatch = onMatch;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new Queue();
+        }
+    }
+
+    /**
+     * Enqueues a client waiting for a game of the given grid size, and pairs the waiting clients if possible.
+     *
+     * @param clientId the ID of the client
+     * @param gridSize the grid size, 3, 5, 7 or 9
+     * @return the ticket of the client
+     */
+    Ticket enqueue(int clientId, int gridSize) {
+        Ticket ticket = new Ticket(clientId, gridSize);
+        Queue queue = queues[(gridSize - 3) / 2];
+        queue.tickets.add(ticket);
+        queue.drain();
+        return ticket;
+    }
+
+    /**
+     * The queue of the clients waiting for one grid size.
+     */
+    private final class Queue {
+        final ConcurrentLinkedQueue<Ticket> tickets = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        // The oldest waiting ticket, without partner yet, only used by the drainer
+        Ticket holder;
+
+        /**
+         * Pairs the waiting tickets, unless another thread is already doing it.
+         * The queue is checked again after giving up the drainer role, so a ticket enqueued meanwhile is never forgotten.
+         */
+        void drain() {
+            while (!tickets.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    Ticket ticket;
+                    while ((ticket = tickets.poll()) != null) {
+                        if (!ticket.claim()) {
+                            // Cancelled while waiting
+                            continue;
+                        }
+                        if (holder == null) {
+                            holder = ticket;
+                            holder.release();
+                            continue;
+                        }
+                        if (!holder.claim()) {
+                            holder = ticket;
+                            holder.release();
+                            continue;
+                        }
+
+                        Ticket first = holder;
+                        holder = null;
+                        onMatch.accept(first, ticket);
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * The place of one client in a queue.
+     */
+    static class Ticket {
+        private static final int WAITING = 0;
+        private static final int CLAIMED = 1;
+        private static final int MATCHED = 2;
+        private static final int CANCELLED = 3;
+
+        final int clientId;
+        final int gridSize;
+        final long enqueuedAt = System.nanoTime();
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private GameHandler game;
+        private int gameId;
+
+        private Ticket(int clientId, int gridSize) {
+            this.clientId = clientId;
+            this.gridSize = gridSize;
+        }
+
+        /**
+         * Cancels the ticket if it is still waiting. If the drainer is pairing it, waits for the outcome.
+         *
+         * @return true if the ticket was cancelled, false if it was already matched
+         */
+        boolean cancel() {
+            while (true) {
+                int current = state.get();
+                if (current == WAITING && state.compareAndSet(WAITING, CANCELLED)) {
+                    return true;
+                }
+                if (current == MATCHED || current == CANCELLED) {
+                    return current == CANCELLED;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Indicates whether the ticket was matched with an opponent.
+         *
+         * @return true if the game of the ticket is available
+         */
+        boolean isMatched() {
+            return state.get() == MATCHED;
+        }
+
+        /**
+         * Gets the game created for the ticket. Only meaningful once the ticket is matched.
+         *
+         * @return the game
+         */
+        GameHandler game() {
+            return game;
+        }
+
+        /**
+         * Gets the ID of the game created for the ticket. Only meaningful once the ticket is matched.
+         *
+         * @return the ID of the game
+         */
+        int gameId() {
+            return gameId;
+        }
+
+        /**
+         * Gives the game created for a pair to the ticket and marks it as matched.
+         *
+         * @param gameId the ID of the game
+         * @param game   the game
+         */
+        void complete(int gameId, GameHandler game) {
+            this.gameId = gameId;
+            this.game = game;
+            state.set(MATCHED);
+        }
+
+        private boolean claim() {
+            return state.compareAndSet(WAITING, CLAIMED);
+        }
+
+        private void release() {
+            state.set(WAITING);
+        }
+    }
+}
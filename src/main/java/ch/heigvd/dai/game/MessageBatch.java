@@ -0,0 +1,115 @@
+package ch.heigvd.dai.game;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A group of message lines for one recipient, encoded in UTF-8 and sent with a single write and flush.
+ * It is used for the FIRSTOFCHAIN...LASTOFCHAIN chains, so a chain leaves in one TCP segment
+ * instead of one segment per line.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class MessageBatch {
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * Instantiates a new empty Message batch.
+     */
+    MessageBatch() {
+        bytes = new byte[256];
+    }
+
+    /**
+     * Instantiates a new Message batch holding one message.
+     *
+     * @param message the message
+     */
+    MessageBatch(String message) {
+        byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+        bytes = Arrays.copyOf(encoded, encoded.length + 1);
+        bytes[encoded.length] = '\n';
+        length = bytes.length;
+    }
+
+    /**
+     * Instantiates a new Message batch holding one pre-encoded line.
+     * The line is shared, not copied, so it must never be modified afterwards.
+     *
+     * @param frame the encoded line, including its line delimiter
+     */
+    MessageBatch(byte[] frame) {
+        bytes = frame;
+        length = frame.length;
+    }
+
+    /**
+     * Encodes a message line once, so it can be shared by many batches.
+     *
+     * @param message the message to encode
+     * @return the encoded line, including its line delimiter
+     */
+    static byte[] encode(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a pre-encoded line to the batch. The line is copied, so it can be shared.
+     *
+     * @param frame the encoded line, including its line delimiter
+     * @return this batch
+     */
+    MessageBatch add(byte[] frame) {
+        ensureCapacity(frame.length);
+        System.arraycopy(frame, 0, bytes, length, frame.length);
+        length += frame.length;
+        return this;
+    }
+
+    /**
+     * Adds a message line to the batch. The line delimiter is added by the batch.
+     *
+     * @param message the message to add
+     * @return this batch
+     */
+    MessageBatch add(String message) {
+        byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(encoded.length + 1);
+        System.arraycopy(encoded, 0, bytes, length, encoded.length);
+        length += encoded.length;
+        bytes[length++] = '\n';
+        return this;
+    }
+
+    /**
+     * Gets the encoded bytes of the batch. Only the first {@link #length()} bytes are meaningful.
+     *
+     * @return the encoded bytes
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of encoded bytes in the batch.
+     *
+     * @return the number of bytes
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Grows the buffer so that the given number of bytes can be appended.
+     * A shared pre-encoded line is always full, so it is copied before anything is appended to it.
+     *
+     * @param extra the number of bytes to append
+     */
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * The append-only log of the game events, used to rebuild the games after a restart.
+ *
+ * The events are fixed size records written to segment files of about 64 MB. The game shards only copy their
+ * record into a memory buffer; a single writer thread swaps the buffer, writes it with one call and forces it to disk
+ * according to the durability mode, so one fsync covers every record appended meanwhile (group commit).
+ *
+ * The position of a record is the number of records appended before it, plus one. Each segment is named after the
+ * number of records before its first one, so a position is found without reading the segments before it, and the
+ * segments already covered by a snapshot can be deleted.
+ *
+ * Once a write or a force fails, the log refuses every new event and never acknowledges the events not yet on disk,
+ * and the failure is handed over to the server, which cannot keep its games durable anymore.
+ *
+ * Record layout, 22 bytes: type (1), game ID (4), player ID (4), argument (1), resume token (8),
+ * CRC32C of the first 18 bytes (4).
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class MoveLog implements AutoCloseable {
+    static final byte CREATE = 1;
+    static final byte JOIN = 2;
+    static final byte PLACE = 3;
+    static final byte QUIT = 4;
+    static final byte TIMEOUT = 5;
+
+    static final int RECORD_SIZE = 22;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Receives the events read from the log during the recovery.
+     */
+    interface Visitor {
+        /**
+         * Applies one event.
+         *
+         * @param position the position of the event in the log
+         * @param type     the type of the event, CREATE, JOIN, PLACE, QUIT or TIMEOUT
+         * @param gameId   the ID of the game
+         * @param playerId the ID of the player
+         * @param argument the grid size for CREATE, the cell for PLACE, 0 otherwise
+         * @param token    the resume token of the player for CREATE and JOIN, 0 otherwise
+         */
+        void apply(long position, byte type, int gameId, int playerId, int argument, long token);
+    }
+
+    private final Path directory;
+    private final ServerConfig.Durability durability;
+    private final long fsyncIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final CRC32C crc = new CRC32C();
+
+    // Guarded by the lock
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long appendedRecords;
+    private long durableRecords;
+    private boolean closed;
+
+    // Only used by the writer thread
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel segment;
+    private long writtenRecords;
+    private long segmentBytes;
+    private boolean dirty;
+    private long nextForceAt;
+
+    private final Thread writer;
+    private final Consumer<IOException> onFailure;
+    private volatile IOException failure;
+
+    private MoveLog(Path directory, ServerConfig.Durability durability, long fsyncInterval,
+                    long segmentFirst, long segmentBytes, Consumer<IOException> onFailure) throws IOException {
+        this.directory = directory;
+        this.onFailure = onFailure;
+        this.durability = durability;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncInterval);
+        this.writtenRecords = segmentFirst + segmentBytes / RECORD_SIZE;
+        this.appendedRecords = writtenRecords;
+        this.durableRecords = writtenRecords;
+        this.segmentBytes = segmentBytes;
+        this.segment = FileChannel.open(segmentPath(segmentFirst),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        writer = new Thread(this::writeLoop, "move-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replays the log of the given directory, then opens it to append new events.
+     * A record torn by a crash at the end of the log is discarded.
+     *
+     * @param directory     the directory of the segments, created if needed
+     * @param durability    when the appended events are forced to disk
+     * @param fsyncInterval the maximum time between two forces with the BATCHED durability, in milliseconds
+     * @param from          the position after which the events are replayed, 0 to replay the whole log
+     * @param visitor       receives the events after the given position, in order
+     * @param onFailure     receives the error once if the log cannot be written anymore, on the writer thread
+     * @return the log, ready to append
+     * @throws IOException if the log cannot be read or opened
+     */
+    static MoveLog open(Path directory, ServerConfig.Durability durability, long fsyncInterval,
+                        long from, Visitor visitor, Consumer<IOException> onFailure) throws IOException {
+        Files.createDirectories(directory);
+        List<Long> segments = segmentFirsts(directory);
+
+        long lastFirst = from;
+        long lastBytes = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            long first = segments.get(i);
+            if (i + 1 < segments.size() && segments.get(i + 1) <= from) {
+                // Every event of the segment is older than the given position
+                continue;
+            }
+
+            long validBytes = replaySegment(segmentPath(directory, first), first, from, visitor);
+            lastFirst = first;
+            lastBytes = validBytes;
+
+            if (validBytes < Files.size(segmentPath(directory, first))) {
+                // Torn or corrupted record: the log ends here
+                try (FileChannel channel = FileChannel.open(segmentPath(directory, first), StandardOpenOption.WRITE)) {
+                    channel.truncate(validBytes);
+                }
+                for (int j = i + 1; j < segments.size(); j++) {
+                    Files.delete(segmentPath(directory, segments.get(j)));
+                }
+                break;
+            }
+        }
+
+        return new MoveLog(directory, durability, fsyncInterval, lastFirst, lastBytes, onFailure);
+    }
+
+    /**
+     * Appends an event. With the PER_MOVE durability, the event is only acknowledged once {@link #awaitDurable}
+     * returned for its position.
+     *
+     * @param type     the type of the event
+     * @param gameId   the ID of the game
+     * @param playerId the ID of the player
+     * @param argument the grid size for CREATE, the cell for PLACE, 0 otherwise
+     * @param token    the resume token of the player for CREATE and JOIN, 0 otherwise
+     * @return the position of the event, 0 if the log is closed
+     * @throws UncheckedIOException if the log failed, the event is then not logged
+     */
+    long append(byte type, int gameId, int playerId, int argument, long token) {
+        long record;
+        lock.lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            while (active.remaining() < RECORD_SIZE && failure == null) {
+                notEmpty.signal();
+                notFull.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("the move log failed", failure);
+            }
+
+            int start = active.position();
+            active.put(type).putInt(gameId).putInt(playerId).put((byte) argument).putLong(token);
+            crc.reset();
+            crc.update(active.duplicate().position(start).limit(start + RECORD_SIZE - 4));
+            active.putInt((int) crc.getValue());
+
+            record = ++appendedRecords;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return record;
+    }
+
+    /**
+     * Waits until an event is forced to disk, with every event appended before it.
+     * Returns at once if the log is closed.
+     *
+     * @param position the position of the event
+     * @throws UncheckedIOException if the log failed before the event was forced to disk
+     */
+    void awaitDurable(long position) {
+        lock.lock();
+        try {
+            while (durableRecords < position && failure == null && !closed) {
+                durable.awaitUninterruptibly();
+            }
+            if (durableRecords < position && failure != null) {
+                throw new UncheckedIOException("the move log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the position of the last appended event.
+     * Every event at this position or before is already applied to its game.
+     *
+     * @return the position of the last appended event, 0 if the log is empty
+     */
+    long position() {
+        lock.lock();
+        try {
+            return appendedRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments whose events are all at the given position or before.
+     * The segment being written is never deleted.
+     *
+     * @param position the position up to which the events are no longer needed
+     * @throws IOException if a segment cannot be deleted
+     */
+    void discardUpTo(long position) throws IOException {
+        List<Long> segments = segmentFirsts(directory);
+        for (int i = 0; i + 1 < segments.size() && segments.get(i + 1) <= position; i++) {
+            Files.delete(segmentPath(segments.get(i)));
+        }
+    }
+
+    /**
+     * Writes and forces every appended event, then stops the writer.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writer.join();
+            segment.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the appended records in batches and forces them according to the durability mode.
+     */
+    private void writeLoop() {
+        try {
+            boolean closing;
+            do {
+                long batchRecords;
+                ByteBuffer batch;
+
+                lock.lock();
+                try {
+                    while (active.position() == 0 && !closed) {
+                        if (dirty && durability == ServerConfig.Durability.BATCHED) {
+                            long wait = nextForceAt - System.nanoTime();
+                            if (wait <= 0) {
+                                break;
+                            }
+                            notEmpty.awaitNanos(wait);
+                        } else {
+                            notEmpty.await();
+                        }
+                    }
+                    closing = closed;
+
+                    batch = active;
+                    active = spare;
+                    spare = batch;
+                    batchRecords = appendedRecords;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+
+                batch.flip();
+                if (batch.hasRemaining()) {
+                    write(batch);
+                }
+                batch.clear();
+                writtenRecords = batchRecords;
+
+                long now = System.nanoTime();
+                boolean force = switch (durability) {
+                    case PER_MOVE -> true;
+                    case BATCHED -> now - nextForceAt >= 0;
+                    case ASYNC -> false;
+                } || closing;
+                if (force && dirty) {
+                    segment.force(false);
+                    dirty = false;
+                }
+
+                lock.lock();
+                try {
+                    if (!dirty || durability != ServerConfig.Durability.PER_MOVE) {
+                        durableRecords = batchRecords;
+                        durable.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } while (!closing);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                failure = e;
+                // Wakes up the shards waiting for room or for the disk, which now get the failure
+                notFull.signalAll();
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            onFailure.accept(e);
+        }
+    }
+
+    /**
+     * Writes a batch to the current segment, starting a new segment when it is full.
+     *
+     * @param batch the records to write
+     * @throws IOException if the write fails
+     */
+    private void write(ByteBuffer batch) throws IOException {
+        if (segmentBytes > 0 && segmentBytes + batch.remaining() > SEGMENT_SIZE) {
+            if (durability != ServerConfig.Durability.ASYNC) {
+                segment.force(false);
+            }
+            segment.close();
+            segmentBytes = 0;
+            segment = FileChannel.open(segmentPath(writtenRecords),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        if (!dirty) {
+            nextForceAt = System.nanoTime() + fsyncIntervalNanos;
+        }
+        segmentBytes += batch.remaining();
+        while (batch.hasRemaining()) {
+            segment.write(batch);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Reads the records of one segment.
+     *
+     * @param path    the segment
+     * @param first   the number of records before the segment
+     * @param from    the position after which the records are given to the visitor
+     * @param visitor receives the valid records after the given position
+     * @return the number of bytes of valid records at the start of the segment
+     * @throws IOException if the segment cannot be read
+     */
+    private static long replaySegment(Path path, long first, long from, Visitor visitor) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % RECORD_SIZE);
+        long valid = 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE) {
+                    return valid;
+                }
+
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int start = buffer.position();
+                    crc.reset();
+                    crc.update(buffer.duplicate().limit(start + RECORD_SIZE - 4));
+
+                    byte type = buffer.get();
+                    int gameId = buffer.getInt();
+                    int playerId = buffer.getInt();
+                    int argument = buffer.get();
+                    long token = buffer.getLong();
+                    if (buffer.getInt() != (int) crc.getValue() || type < CREATE || type > TIMEOUT) {
+                        return valid;
+                    }
+
+                    valid += RECORD_SIZE;
+                    long position = first + valid / RECORD_SIZE;
+                    if (position > from) {
+                        visitor.apply(position, type, gameId, playerId, argument, token);
+                    }
+                }
+                buffer.compact();
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Lists the segments of a directory, in order.
+     *
+     * @param directory the directory
+     * @return the number of records before each segment
+     * @throws IOException if the directory cannot be read
+     */
+    private static List<Long> segmentFirsts(Path directory) throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                indexes.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        indexes.sort(null);
+        return indexes;
+    }
+
+    private Path segmentPath(long first) {
+        return segmentPath(directory, first);
+    }
+
+    private static Path segmentPath(Path directory, long first) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, first, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,535 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.heigvd.dai.game.GameServer.*;
+
+/**
+ * Serves the clients with non-blocking channels instead of one thread per socket.
+ *
+ * One acceptor thread accepts the connections and hands them out in turn to a small pool of event loops.
+ * Each event loop owns a Selector and runs the requests of its connections itself, so an idle connection
+ * only costs its channel and a few small objects, without any thread stack or per-connection buffer.
+ * A request using a game is handed over to the shard of the game, and the loop stops reading its connection
+ * until the shard resumes it, serving its other connections meanwhile.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class NioEngine {
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private final int PORT;
+    private final ServerConfig config;
+    private final EventLoop[] eventLoops;
+
+    /**
+     * Instantiates a new NIO engine.
+     *
+     * @param config the configuration of the server
+     */
+    NioEngine(ServerConfig config) {
+        this.PORT = config.getPort();
+        this.config = config;
+        this.eventLoops = new EventLoop[config.getEventLoops()];
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the server socket is closed.
+     */
+    void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(Selector.open(), config);
+                Thread loopThread = new LoopThread(eventLoops[i], "nio-event-loop-" + i);
+                loopThread.setDaemon(true);
+                loopThread.start();
+            }
+
+            ServerLog.log(ServerLog.Event.SERVER, "listening on port " + PORT
+                    + " (nio engine, " + eventLoops.length + " event loops, " + config.getShards() + " game shards)");
+
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                if (!admitConnection()) {
+                    // Refused before any buffer is given to the connection, the channel is still blocking
+                    try (channel) {
+                        channel.write(ByteBuffer.wrap(AdmissionControl.SERVER_FULL));
+                    } catch (IOException e) {
+                        // The client is gone already
+                    }
+                    continue;
+                }
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (Exception e) {
+            ServerLog.log(ServerLog.Event.EXCEPTION, e);
+        }
+    }
+
+    /**
+     * The thread running an event loop. Senders running on it must never wait for a slow client.
+     */
+    private static class LoopThread extends Thread {
+        LoopThread(Runnable eventLoop, String name) {
+            super(eventLoop, name);
+        }
+    }
+
+    /**
+     * Runs the requests of all the connections registered on one Selector.
+     */
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ServerConfig config;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // The requests are handled one at a time by the loop, so they share one parsed request
+        private final Request request = new Request();
+        private final ByteBuffer[] gatherBuffer = new ByteBuffer[MAX_GATHERED_BUFFERS];
+        private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<NioConnection> resumedConnections = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<NioConnection> localWrites = new ArrayDeque<>();
+        private Thread thread;
+
+        /**
+         * Instantiates a new Event loop.
+         *
+         * @param selector the selector owned by the loop
+         * @param config   the configuration of the server
+         */
+        EventLoop(Selector selector, ServerConfig config) {
+            this.selector = selector;
+            this.config = config;
+        }
+
+        /**
+         * Hands a newly accepted channel over to the loop.
+         *
+         * @param channel the accepted channel
+         */
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to flush the outbound messages of a connection.
+         * Connections of the loop itself are flushed once the current requests are processed,
+         * so the messages of one request leave in as few writes as possible.
+         *
+         * @param connection the connection to flush
+         */
+        void scheduleFlush(NioConnection connection) {
+            if (Thread.currentThread() == thread) {
+                localWrites.add(connection);
+            } else {
+                pendingWrites.add(connection);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Asks the loop to read a connection again, once the shard handled its request.
+         *
+         * @param connection the connection resumed
+         */
+        void scheduleResume(NioConnection connection) {
+            resumedConnections.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = newChannels.poll()) != null) {
+                        accept(channel);
+                    }
+
+                    NioConnection resumed;
+                    while ((resumed = resumedConnections.poll()) != null) {
+                        resumeReading(resumed);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    }
+
+                    NioConnection connection;
+                    while ((connection = pendingWrites.poll()) != null) {
+                        connection.flush();
+                    }
+                    while ((connection = localWrites.poll()) != null) {
+                        connection.flush();
+                    }
+                } catch (Exception e) {
+                    ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                }
+            }
+        }
+
+        /**
+         * Registers a new channel on the selector and opens its session.
+         *
+         * @param channel the accepted channel
+         */
+        private void accept(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(this, channel, config);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.handler = openSession(connection);
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+                releaseConnection();
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    // Nothing more to release
+                }
+            }
+        }
+
+        /**
+         * Reads the available bytes of a connection and runs every complete request line.
+         *
+         * @param connection the readable connection
+         */
+        private void read(NioConnection connection) {
+            int read;
+            try {
+                readBuffer.clear();
+                read = connection.channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+
+            if (read < 0) {
+                connection.close();
+                connection.releasePartial();
+                return;
+            }
+
+            handleLines(connection, readBuffer.array(), read);
+        }
+
+        /**
+         * Reads a connection again once the shard handled its request, starting with the bytes left unread.
+         *
+         * @param connection the resumed connection
+         */
+        private void resumeReading(NioConnection connection) {
+            connection.suspended = false;
+            if (!connection.channel.isOpen()) {
+                connection.releasePartial();
+                return;
+            }
+
+            byte[] unread = connection.unread;
+            if (unread != null) {
+                connection.unread = null;
+                handleLines(connection, unread, unread.length);
+            }
+            if (!connection.suspended && connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Runs every complete request line of the bytes received, and keeps the end of an incomplete one.
+         * Stops at a request sent to a shard, the bytes after it are kept until the connection is resumed.
+         *
+         * @param connection the connection
+         * @param bytes      the bytes received
+         * @param count      the number of bytes received
+         */
+        private void handleLines(NioConnection connection, byte[] bytes, int count) {
+            int start = 0;
+            for (int i = 0; i < count && connection.channel.isOpen(); i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+
+                byte[] line = bytes;
+                int offset = start;
+                int length = i - start;
+
+                // A line started by a previous read is completed in the partial buffer of the connection
+                if (connection.partialLength > 0) {
+                    connection.appendPartial(bytes, start, length);
+                    line = connection.partial;
+                    offset = 0;
+                    length = connection.partialLength;
+                    connection.releasePartial();
+                }
+
+                if (length > 0 && line[offset + length - 1] == '\r') {
+                    length--;
+                }
+                connection.handler.handleRequest(request.parse(line, offset, length));
+                start = i + 1;
+
+                if (connection.suspended) {
+                    if (start < count) {
+                        connection.unread = Arrays.copyOfRange(bytes, start, count);
+                    }
+                    return;
+                }
+            }
+
+            if (!connection.channel.isOpen()) {
+                // Closed by this loop or by another thread, the partial line is released here only
+                connection.releasePartial();
+            } else if (start < count) {
+                if (connection.partialLength == 0) {
+                    connection.partialSince = System.nanoTime();
+                }
+                connection.appendPartial(bytes, start, count - start);
+            }
+        }
+    }
+
+    /**
+     * A non-blocking connection owned by one event loop.
+     * Outbound messages can be queued from any thread, only the owning loop writes them to the channel.
+     * An event loop never waits for a full queue, so the BLOCK overflow policy closes the connection at once
+     * when the sender is an event loop.
+     * A connection closed while a shard handles its request keeps its session until the shard is done with it.
+     */
+    private static class NioConnection implements Connection {
+        private static final int IDLE = 0;
+        private static final int ON_SHARD = 1;
+        private static final int CLOSED = 2;
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final OutboundQueue outbound;
+        private final ServerConfig.OverflowPolicy overflowPolicy;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+        private ClientHandler handler;
+
+        // Buffers left over by a partial write, only allocated while the client is slow to read
+        private ArrayDeque<ByteBuffer> unwritten;
+
+        // Bytes of a request line not yet terminated, only allocated when a read ends mid-line, only touched by the loop
+        private byte[] partial;
+        private int partialLength;
+        // When the bytes of the partial line started to arrive, read by the reaper
+        private volatile long partialSince;
+
+        // Whether the loop stopped reading the connection, and the bytes received after the request sent to a shard
+        private boolean suspended;
+        private byte[] unread;
+
+        // Whether a shard is handling a request of the session, or the connection was closed meanwhile
+        private final AtomicInteger sessionState = new AtomicInteger(IDLE);
+
+        /**
+         * Instantiates a new NIO connection.
+         *
+         * @param loop    the event loop owning the connection
+         * @param channel the channel of the client
+         * @param config  the configuration of the server
+         */
+        NioConnection(EventLoop loop, SocketChannel channel, ServerConfig config) {
+            this.loop = loop;
+            this.channel = channel;
+            this.outbound = config.newOutboundQueue();
+            this.overflowPolicy = config.getOverflowPolicy();
+        }
+
+        @Override
+        public void send(MessageBatch batch) {
+            if (closed.get()) {
+                return;
+            }
+
+            // Neither an event loop nor a shard may wait for a slow client, they serve many others
+            boolean mayBlock = !(Thread.currentThread() instanceof LoopThread) && !GameShards.isShardThread();
+            if (outbound.offer(batch, mayBlock)) {
+                loop.scheduleFlush(this);
+            } else if (overflowPolicy != ServerConfig.OverflowPolicy.DROP) {
+                ServerMetrics.recordSlowConsumerDisconnect();
+                close();
+            }
+        }
+
+        @Override
+        public String remoteAddress() {
+            try {
+                InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+                return address.getAddress().getHostAddress() + ":" + address.getPort();
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        @Override
+        public long partialSince() {
+            return partialSince;
+        }
+
+        @Override
+        public boolean isLoopback() {
+            try {
+                return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().isLoopbackAddress();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void suspend() {
+            suspended = true;
+            sessionState.set(ON_SHARD);
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public void resume() {
+            if (sessionState.compareAndSet(ON_SHARD, IDLE)) {
+                loop.scheduleResume(this);
+            } else {
+                // Closed while the shard handled the request
+                handler.closeSession();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            }
+            outbound.clear();
+            // The session is cleaned up by the shard handling its request, if any
+            if (handler != null && sessionState.getAndSet(CLOSED) != ON_SHARD) {
+                handler.closeSession();
+            }
+        }
+
+        /**
+         * Writes as many queued messages as the channel accepts.
+         * The queued batches are gathered so that each write syscall sends all of them at once.
+         * Waits for the channel to be writable again when the socket buffer is full.
+         * Must only be called by the owning event loop.
+         */
+        private void flush() {
+            if (closed.get() || !key.isValid()) {
+                return;
+            }
+            try {
+                ByteBuffer[] gather = loop.gatherBuffer;
+                while (true) {
+                    int count = 0;
+
+                    // The leftovers of a previous partial write go first
+                    while (unwritten != null && !unwritten.isEmpty() && count < gather.length) {
+                        gather[count++] = unwritten.poll();
+                    }
+
+                    MessageBatch batch;
+                    while (count < gather.length && (batch = outbound.poll()) != null) {
+                        gather[count++] = ByteBuffer.wrap(batch.array(), 0, batch.length());
+                    }
+
+                    if (count == 0) {
+                        unwritten = null;
+                        key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
+                        return;
+                    }
+
+                    long written = channel.write(gather, 0, count);
+                    ServerMetrics.recordFlush((int) written);
+
+                    int first = 0;
+                    while (first < count && !gather[first].hasRemaining()) {
+                        first++;
+                    }
+
+                    if (first < count) {
+                        // The socket buffer is full, keep the rest until the channel is writable again
+                        if (unwritten == null) {
+                            unwritten = new ArrayDeque<>();
+                        }
+                        for (int i = count - 1; i >= first; i--) {
+                            unwritten.addFirst(gather[i]);
+                        }
+                        Arrays.fill(gather, 0, count, null);
+                        key.interestOps((suspended ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Keeps the bytes of a request line that is not terminated yet.
+         * Bytes beyond the maximum line length are dropped, one more is kept so the line is still rejected as too long.
+         *
+         * @param bytes  the buffer holding the bytes
+         * @param offset the offset of the first byte to keep
+         * @param length the number of bytes to keep
+         */
+        private void appendPartial(byte[] bytes, int offset, int length) {
+            length = Math.min(length, Request.MAX_LINE_LENGTH + 1 - partialLength);
+            if (partial == null) {
+                partial = new byte[Math.max(64, length)];
+            } else if (partialLength + length > partial.length) {
+                partial = Arrays.copyOf(partial, Math.min(Math.max(partial.length * 2, partialLength + length), Request.MAX_LINE_LENGTH + 1));
+            }
+            System.arraycopy(bytes, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        /**
+         * Releases the partial buffer once its line has been handled.
+         */
+        private void releasePartial() {
+            partial = null;
+            partialLength = 0;
+            partialSince = 0;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of the messages waiting to be written to one client.
+ *
+ * Any thread can offer messages, but only the writer of the connection drains the queue, so the thread
+ * handling a request never writes to another client's socket itself. When the queue is full,
+ * the configured overflow policy decides what happens to the message.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class OutboundQueue {
+    private final ConcurrentLinkedQueue<MessageBatch> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final ServerConfig.OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+
+    // Writer parked in take(), only used by the blocking engine
+    private volatile Thread parkedWriter;
+
+    // Senders waiting for free space, only used by the BLOCK policy
+    private final AtomicInteger blockedSenders = new AtomicInteger();
+    private ReentrantLock lock;
+    private Condition notFull;
+
+    /**
+     * Instantiates a new Outbound queue.
+     *
+     * @param capacity      the maximum number of batches waiting in the queue
+     * @param policy        the policy applied when the queue is full
+     * @param blockTimeout  the maximum time a sender waits with the BLOCK policy, in milliseconds
+     */
+    OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy, long blockTimeout) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+    }
+
+    /**
+     * Offers a batch to the queue and applies the overflow policy if the queue is full.
+     *
+     * @param batch    the batch to send
+     * @param mayBlock whether the calling thread is allowed to wait for free space
+     * @return true if the batch was queued, false if it overflowed and the policy must be applied by the caller
+     */
+    boolean offer(MessageBatch batch, boolean mayBlock) {
+        if (!reserve()) {
+            if (policy != ServerConfig.OverflowPolicy.BLOCK || !mayBlock || !awaitSpace()) {
+                ServerMetrics.recordOverflow();
+                return false;
+            }
+        }
+
+        queue.add(batch);
+        ServerMetrics.recordQueued(size.get());
+
+        Thread writer = parkedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the next batch, or returns null if the queue is empty.
+     * Must only be called by the writer of the connection.
+     *
+     * @return the next batch, or null
+     */
+    MessageBatch poll() {
+        MessageBatch batch = queue.poll();
+        if (batch != null) {
+            size.decrementAndGet();
+            ServerMetrics.recordDequeued();
+
+            if (blockedSenders.get() > 0) {
+                lock.lock();
+                try {
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the next batch, waiting until one is available.
+     * Must only be called by the writer of the connection.
+     *
+     * @return the next batch
+     * @throws InterruptedException if the writer is interrupted while waiting
+     */
+    MessageBatch take() throws InterruptedException {
+        MessageBatch batch;
+        while ((batch = poll()) == null) {
+            parkedWriter = Thread.currentThread();
+            if (queue.isEmpty()) {
+                LockSupport.park(this);
+            }
+            parkedWriter = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Indicates whether no batch is waiting.
+     *
+     * @return true if the queue is empty
+     */
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Discards every waiting batch, once the connection is closed.
+     */
+    void clear() {
+        while (poll() != null) {
+            // Keep draining so the depth metric stays exact
+        }
+    }
+
+    /**
+     * Reserves a place in the queue.
+     *
+     * @return true if a place was free
+     */
+    private boolean reserve() {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a place is free in the queue, at most the block timeout.
+     *
+     * @return true if a place was reserved, false if the timeout elapsed
+     */
+    private boolean awaitSpace() {
+        synchronized (this) {
+            if (lock == null) {
+                lock = new ReentrantLock();
+                notFull = lock.newCondition();
+            }
+        }
+
+        blockedSenders.incrementAndGet();
+        lock.lock();
+        try {
+            long remaining = blockTimeoutNanos;
+            while (!reserve()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+            blockedSenders.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A request line parsed directly from the bytes received, reused for every request of a connection.
+ *
+ * The command is found by comparing its bytes with the names of the commands, and each argument is kept as its
+ * position in the line, with its value when it is a number. Nothing is allocated and nothing is thrown for a
+ * malformed line: an unknown command or a line longer than {@link #MAX_LINE_LENGTH} leaves the command null.
+ * The request keeps a reference to the buffer of the line, which must not change until the request is handled.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class Request {
+    static final int MAX_LINE_LENGTH = 256;
+    static final int MAX_ARGUMENTS = 5;
+    static final int NOT_A_NUMBER = -1;
+
+    // The commands by the first letter of their name, with their names encoded once
+    private static final GameServer.ClientCommand[][] COMMANDS = new GameServer.ClientCommand[26][];
+    private static final byte[][] NAMES = new byte[GameServer.ClientCommand.values().length][];
+
+    static {
+        for (GameServer.ClientCommand command : GameServer.ClientCommand.values()) {
+            NAMES[command.ordinal()] = command.name().getBytes(StandardCharsets.US_ASCII);
+            int letter = command.name().charAt(0) - 'A';
+            GameServer.ClientCommand[] commands = COMMANDS[letter] == null ? new GameServer.ClientCommand[0] : COMMANDS[letter];
+            COMMANDS[letter] = Arrays.copyOf(commands, commands.length + 1);
+            COMMANDS[letter][commands.length] = command;
+        }
+    }
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private boolean tooLong;
+    private GameServer.ClientCommand command;
+
+    private int arguments;
+    private final int[] starts = new int[MAX_ARGUMENTS];
+    private final int[] lengths = new int[MAX_ARGUMENTS];
+    private final int[] numbers = new int[MAX_ARGUMENTS];
+
+    /**
+     * Parses a request line, without its line terminator.
+     *
+     * @param line   the buffer holding the line
+     * @param offset the offset of the line in the buffer
+     * @param length the length of the line, a length above MAX_LINE_LENGTH rejects the line without reading it
+     * @return this request
+     */
+    Request parse(byte[] line, int offset, int length) {
+        this.bytes = line;
+        this.offset = offset;
+        this.length = length;
+        this.tooLong = length > MAX_LINE_LENGTH;
+        this.command = null;
+        this.arguments = 0;
+        if (tooLong) {
+            return this;
+        }
+
+        int end = offset + length;
+        int position = offset;
+        while (position < end && line[position] != ' ') {
+            position++;
+        }
+        command = lookup(line, offset, position - offset);
+        if (command == null) {
+            return this;
+        }
+
+        while (position < end) {
+            // The arguments are separated by one or more spaces
+            while (position < end && line[position] == ' ') {
+                position++;
+            }
+            int start = position;
+            long number = 0;
+            while (position < end && line[position] != ' ') {
+                int digit = line[position] - '0';
+                number = digit >= 0 && digit <= 9 && number >= 0 ? number * 10 + digit : NOT_A_NUMBER;
+                if (number > Integer.MAX_VALUE) {
+                    number = NOT_A_NUMBER;
+                }
+                position++;
+            }
+            if (position == start) {
+                break;
+            }
+
+            if (arguments < MAX_ARGUMENTS) {
+                starts[arguments] = start;
+                lengths[arguments] = position - start;
+                numbers[arguments] = (int) number;
+            }
+            arguments++;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the command of the request.
+     *
+     * @return the command, null if it is unknown or the line is too long
+     */
+    GameServer.ClientCommand command() {
+        return command;
+    }
+
+    /**
+     * Indicates whether the line was rejected for being longer than MAX_LINE_LENGTH.
+     *
+     * @return true if the line is too long
+     */
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    /**
+     * Gets the length of the line, without its line terminator.
+     *
+     * @return the length, in bytes
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Writes the line of the request as it was received, followed by a newline.
+     * Must not be called for a line too long, whose bytes were not all kept.
+     *
+     * @param out the stream the line is written to
+     * @throws IOException if the line cannot be written
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, offset, length);
+        out.write('\n');
+    }
+
+    /**
+     * Gets the number of arguments after the command. Only the first MAX_ARGUMENTS can be read.
+     *
+     * @return the number of arguments
+     */
+    int argumentCount() {
+        return arguments;
+    }
+
+    /**
+     * Gets the value of an argument made of digits only.
+     *
+     * @param index the index of the argument, 0 for the first one after the command
+     * @return the value, NOT_A_NUMBER if the argument is missing, is not a number or does not fit in an int
+     */
+    int number(int index) {
+        return index < Math.min(arguments, MAX_ARGUMENTS) ? numbers[index] : NOT_A_NUMBER;
+    }
+
+    /**
+     * Gets a number argument, or a default value when the argument is missing.
+     *
+     * @param index        the index of the argument, 0 for the first one after the command
+     * @param defaultValue the value of a missing argument
+     * @return the value, NOT_A_NUMBER if the argument is present but is not a number
+     */
+    int number(int index, int defaultValue) {
+        return index < arguments ? number(index) : defaultValue;
+    }
+
+    /**
+     * Gets a number argument written with its unit right after it, for example "500ms".
+     *
+     * @param index the index of the argument, 0 for the first one after the command
+     * @param unit  the unit, in lowercase
+     * @return the value, NOT_A_NUMBER if the argument is missing or is not a number followed by the unit
+     */
+    int number(int index, String unit) {
+        int digits = index < Math.min(arguments, MAX_ARGUMENTS) ? lengths[index] - unit.length() : 0;
+        if (digits < 1 || digits > 9) {
+            return NOT_A_NUMBER;
+        }
+        int value = 0;
+        for (int i = 0; i < lengths[index]; i++) {
+            byte current = bytes[starts[index] + i];
+            if (i < digits && current >= '0' && current <= '9') {
+                value = value * 10 + current - '0';
+            } else if (i < digits || (current | 0x20) != unit.charAt(i - digits)) {
+                return NOT_A_NUMBER;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Gets an argument written as a hexadecimal number, in upper or lower case.
+     *
+     * @param index the index of the argument, 0 for the first one after the command
+     * @return the value, NOT_A_NUMBER if the argument is missing, is not hexadecimal or does not fit in a positive long
+     */
+    long hexNumber(int index) {
+        int digits = index < Math.min(arguments, MAX_ARGUMENTS) ? lengths[index] : 0;
+        if (digits < 1 || digits > 16) {
+            return NOT_A_NUMBER;
+        }
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            int digit = Character.digit(bytes[starts[index] + i], 16);
+            if (digit < 0) {
+                return NOT_A_NUMBER;
+            }
+            value = value << 4 | digit;
+        }
+        return value < 0 ? NOT_A_NUMBER : value;
+    }
+
+    /**
+     * Gets an argument made of a single letter, in upper case.
+     *
+     * @param index the index of the argument, 0 for the first one after the command
+     * @return the letter, 0 if the argument is missing or is not a single ASCII letter
+     */
+    char letter(int index) {
+        if (index >= Math.min(arguments, MAX_ARGUMENTS) || lengths[index] != 1) {
+            return 0;
+        }
+        int letter = bytes[starts[index]] & ~0x20;
+        return letter >= 'A' && letter <= 'Z' ? (char) letter : 0;
+    }
+
+    /**
+     * Compares an argument with a word, byte by byte.
+     *
+     * @param index the index of the argument, 0 for the first one after the command
+     * @param word  the expected ASCII word
+     * @return true if the argument is the word
+     */
+    boolean argumentEquals(int index, String word) {
+        if (index >= Math.min(arguments, MAX_ARGUMENTS) || lengths[index] != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (bytes[starts[index] + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the command whose name is the given bytes.
+     *
+     * @param line   the buffer holding the name
+     * @param offset the offset of the name
+     * @param length the length of the name
+     * @return the command, null if no command has this name
+     */
+    private static GameServer.ClientCommand lookup(byte[] line, int offset, int length) {
+        int letter = length == 0 ? -1 : line[offset] - 'A';
+        if (letter < 0 || letter >= COMMANDS.length || COMMANDS[letter] == null) {
+            return null;
+        }
+
+        for (GameServer.ClientCommand candidate : COMMANDS[letter]) {
+            byte[] name = NAMES[candidate.ordinal()];
+            if (name.length == length && Arrays.equals(name, 0, length, line, offset, offset + length)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
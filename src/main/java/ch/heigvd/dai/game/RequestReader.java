@@ -0,0 +1,103 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the bytes of a blocking stream into request lines, parsed in place in its buffer.
+ *
+ * Unlike BufferedReader.readLine, a line never grows beyond {@link Request#MAX_LINE_LENGTH}: the rest of a longer
+ * line is read and dropped until its end, and the line is handed out as too long.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class RequestReader {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Request request = new Request();
+    private int position;
+    private int limit;
+
+    // When the bytes of the current line started to arrive, read by the reaper
+    private volatile long partialSince;
+
+    /**
+     * Instantiates a new Request reader.
+     *
+     * @param in the stream of the client
+     */
+    RequestReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next request line, waiting for it if needed.
+     *
+     * @return the parsed request, valid until the next call, or null at the end of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    Request next() throws IOException {
+        int dropped = 0;
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    int start = position;
+                    position = i + 1;
+                    partialSince = 0;
+                    if (dropped > 0) {
+                        return request.parse(buffer, start, dropped + i - start);
+                    }
+                    int end = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    return request.parse(buffer, start, end - start);
+                }
+            }
+
+            if (limit - position > Request.MAX_LINE_LENGTH) {
+                // The line is already too long, its bytes are only counted
+                dropped += limit - position;
+                position = limit;
+            }
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+
+            if ((limit > 0 || dropped > 0) && partialSince == 0) {
+                partialSince = System.nanoTime();
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (limit == 0 && dropped == 0) {
+                    return null;
+                }
+                // The last line has no line terminator
+                position = limit;
+                partialSince = 0;
+                return request.parse(buffer, 0, dropped + limit);
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * Indicates whether bytes already received follow the last request line, so the next call may not wait.
+     *
+     * @return true if received bytes are left in the buffer
+     */
+    boolean hasBuffered() {
+        return position < limit;
+    }
+
+    /**
+     * Returns when the line being read started to arrive.
+     *
+     * @return the System.nanoTime of its first bytes, 0 if no line is incomplete
+     */
+    long partialSince() {
+        return partialSince;
+    }
+}
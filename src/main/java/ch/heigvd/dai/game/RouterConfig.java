@@ -0,0 +1,92 @@
+package ch.heigvd.dai.game;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The configuration of the router of a cluster, built from the options of the router command.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class RouterConfig {
+    private int port = 6433;
+    private List<InetSocketAddress> nodes = List.of(new InetSocketAddress("localhost", 6434));
+    private int connectTimeout = 2000;
+
+    /**
+     * Gets the port on which the router listens for the clients.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port on which the router listens for the clients.
+     *
+     * @param port the port
+     * @return this configuration
+     */
+    public RouterConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Gets the addresses of the nodes of the cluster, in the order of their node index.
+     *
+     * @return the addresses of the nodes
+     */
+    List<InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Sets the nodes of the cluster, as a list of host:port in the order of their node index, for example
+     * "localhost:6434,localhost:6435". Each node must be started with its index and the number of nodes of the list.
+     *
+     * @param nodes the list of nodes
+     * @return this configuration
+     * @throws IllegalArgumentException if an address is invalid or its host unknown
+     */
+    public RouterConfig setNodes(String nodes) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : nodes.split(",")) {
+            String[] parts = entry.trim().split(":", 2);
+            if (parts.length != 2 || parts[0].isEmpty() || !GameServer.isNumeric(parts[1])
+                    || Integer.parseInt(parts[1]) < 1 || Integer.parseInt(parts[1]) > 65535) {
+                throw new IllegalArgumentException("Invalid node '" + entry.trim() + "', it must be given as host:port.");
+            }
+            InetSocketAddress address = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Unknown host '" + parts[0] + "'.");
+            }
+            addresses.add(address);
+        }
+        this.nodes = List.copyOf(addresses);
+        return this;
+    }
+
+    /**
+     * Gets the time the router waits for a node to accept a connection, in milliseconds.
+     *
+     * @return the connect timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the time the router waits for a node to accept a connection, in milliseconds.
+     *
+     * @param connectTimeout the connect timeout
+     * @return this configuration
+     */
+    public RouterConfig setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(1, connectTimeout);
+        return this;
+    }
+}
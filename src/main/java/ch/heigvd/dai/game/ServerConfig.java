@@ -0,0 +1,672 @@
+package ch.heigvd.dai.game;
+
+/**
+ * Holds the settings used to launch a GameServer.
+ * Every setter returns the configuration itself so the settings can be chained.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+public class ServerConfig {
+    /**
+     * The engines available to serve the client connections.
+     * BLOCKING uses one virtual thread and blocking streams per socket.
+     * NIO uses a small pool of selector based event loops with non-blocking channels.
+     */
+    public enum Engine {
+        BLOCKING,
+        NIO
+    }
+
+    /**
+     * The policies applied when the outbound queue of a client is full.
+     * DROP discards the message, DISCONNECT closes the connection of the client,
+     * BLOCK waits for free space up to the overflow timeout, then closes the connection. The threads serving
+     * many clients, the game shards and the NIO event loops, never wait and close the connection at once.
+     */
+    public enum OverflowPolicy {
+        DROP,
+        DISCONNECT,
+        BLOCK
+    }
+
+    /**
+     * When the events of the move log are forced to disk.
+     * PER_MOVE acknowledges an event only once it is on disk, the events appended meanwhile sharing the same fsync.
+     * BATCHED acknowledges at once and forces the log at most one fsync interval later.
+     * ASYNC acknowledges at once and leaves the flushing to the operating system.
+     */
+    public enum Durability {
+        PER_MOVE,
+        BATCHED,
+        ASYNC
+    }
+
+    /**
+     * The levels of the server log, from the least to the most detailed. OFF writes nothing.
+     */
+    public enum LogLevel {
+        OFF,
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    /**
+     * The formats of the lines of the server log.
+     * TEXT is meant to be read in a terminal, KV writes key=value pairs and JSON one object per line.
+     */
+    public enum LogFormat {
+        TEXT,
+        KV,
+        JSON
+    }
+
+    private int port = 6433;
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int shards = Runtime.getRuntime().availableProcessors();
+    private int statsInterval = 0;
+    private int metricsPort = 0;
+    private int outboundQueueSize = 256;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private long overflowTimeout = 1000;
+    private String logDirectory = null;
+    private Durability durability = Durability.BATCHED;
+    private long fsyncInterval = 10;
+    private int snapshotInterval = 60;
+    private String archiveDirectory = null;
+    private LogLevel logLevel = LogLevel.INFO;
+    private LogFormat logFormat = LogFormat.TEXT;
+    private int heartbeatInterval = 30;
+    private int idleTimeout = 90;
+    private int readTimeout = 30;
+    private int resumeTimeout = 300;
+    private int maxConnections = 10000;
+    private int lobbyRate = 20;
+    private int moveRate = 20;
+    private int gamesPerMinute = 10;
+    private int nodeIndex = 0;
+    private int nodeCount = 1;
+    private int aiThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int aiMoveTime = 1000;
+
+    /**
+     * Gets the port on which the server listens.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port on which the server listens.
+     *
+     * @param port the port
+     * @return this configuration
+     */
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Gets the engine used to serve the connections.
+     *
+     * @return the engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the engine used to serve the connections.
+     *
+     * @param engine the engine
+     * @return this configuration
+     */
+    public ServerConfig setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Gets the number of event loops used by the NIO engine.
+     *
+     * @return the number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Sets the number of event loops used by the NIO engine.
+     * A value lower than 1 keeps one event loop per available processor.
+     *
+     * @param eventLoops the number of event loops
+     * @return this configuration
+     */
+    public ServerConfig setEventLoops(int eventLoops) {
+        if (eventLoops > 0) {
+            this.eventLoops = eventLoops;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the number of shards owning the games, each one running the requests of its games on its own thread.
+     *
+     * @return the number of shards
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Sets the number of shards owning the games.
+     * A value lower than 1 keeps one shard per available processor.
+     *
+     * @param shards the number of shards
+     * @return this configuration
+     */
+    public ServerConfig setShards(int shards) {
+        if (shards > 0) {
+            this.shards = shards;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the interval between two statistics reports, in seconds.
+     *
+     * @return the interval, 0 when the reports are disabled
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Sets the interval between two statistics reports, in seconds.
+     *
+     * @param statsInterval the interval, 0 to disable the reports
+     * @return this configuration
+     */
+    public ServerConfig setStatsInterval(int statsInterval) {
+        this.statsInterval = Math.max(0, statsInterval);
+        return this;
+    }
+
+    /**
+     * Gets the port of the metrics scrape endpoint, bound to the loopback interface.
+     *
+     * @return the port, 0 when the endpoint is disabled
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Sets the port of the metrics scrape endpoint, bound to the loopback interface.
+     *
+     * @param metricsPort the port, 0 to disable the endpoint
+     * @return this configuration
+     */
+    public ServerConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = Math.max(0, metricsPort);
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of message batches waiting to be written to one client.
+     *
+     * @return the capacity of the outbound queues
+     */
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of message batches waiting to be written to one client.
+     *
+     * @param outboundQueueSize the capacity of the outbound queues
+     * @return this configuration
+     */
+    public ServerConfig setOutboundQueueSize(int outboundQueueSize) {
+        this.outboundQueueSize = Math.max(1, outboundQueueSize);
+        return this;
+    }
+
+    /**
+     * Gets the policy applied when the outbound queue of a client is full.
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the policy applied when the outbound queue of a client is full.
+     *
+     * @param overflowPolicy the overflow policy
+     * @return this configuration
+     */
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Gets the maximum time a sender waits for free space with the BLOCK policy, in milliseconds.
+     *
+     * @return the overflow timeout
+     */
+    public long getOverflowTimeout() {
+        return overflowTimeout;
+    }
+
+    /**
+     * Sets the maximum time a sender waits for free space with the BLOCK policy, in milliseconds.
+     *
+     * @param overflowTimeout the overflow timeout
+     * @return this configuration
+     */
+    public ServerConfig setOverflowTimeout(long overflowTimeout) {
+        this.overflowTimeout = Math.max(0, overflowTimeout);
+        return this;
+    }
+
+    /**
+     * Gets the directory of the move log.
+     *
+     * @return the directory, null when the games are not logged
+     */
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * Sets the directory of the move log. The games found in the log are restored when the server starts.
+     *
+     * @param logDirectory the directory, null to disable the log
+     * @return this configuration
+     */
+    public ServerConfig setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+        return this;
+    }
+
+    /**
+     * Gets when the events of the move log are forced to disk.
+     *
+     * @return the durability
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets when the events of the move log are forced to disk.
+     *
+     * @param durability the durability
+     * @return this configuration
+     */
+    public ServerConfig setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * Gets the maximum time between two forces of the move log with the BATCHED durability, in milliseconds.
+     *
+     * @return the fsync interval
+     */
+    public long getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * Sets the maximum time between two forces of the move log with the BATCHED durability, in milliseconds.
+     *
+     * @param fsyncInterval the fsync interval
+     * @return this configuration
+     */
+    public ServerConfig setFsyncInterval(long fsyncInterval) {
+        this.fsyncInterval = Math.max(0, fsyncInterval);
+        return this;
+    }
+
+    /**
+     * Gets the interval between two snapshots of the games, in seconds.
+     *
+     * @return the interval, 0 when no snapshot is taken
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Sets the interval between two snapshots of the games, in seconds.
+     * The snapshots are only taken when the server keeps a move log.
+     *
+     * @param snapshotInterval the interval, 0 to disable the snapshots
+     * @return this configuration
+     */
+    public ServerConfig setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = Math.max(0, snapshotInterval);
+        return this;
+    }
+
+    /**
+     * Gets the directory of the archive of the finished games.
+     *
+     * @return the directory, null when the games are not archived
+     */
+    public String getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    /**
+     * Sets the directory of the archive of the finished games, which can be replayed with REPLAY and HISTORY.
+     *
+     * @param archiveDirectory the directory, null to disable the archive
+     * @return this configuration
+     */
+    public ServerConfig setArchiveDirectory(String archiveDirectory) {
+        this.archiveDirectory = archiveDirectory;
+        return this;
+    }
+
+    /**
+     * Gets the most detailed level written to the server log.
+     *
+     * @return the level
+     */
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Sets the most detailed level written to the server log.
+     *
+     * @param logLevel the level, OFF to write nothing
+     * @return this configuration
+     */
+    public ServerConfig setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    /**
+     * Gets the format of the lines of the server log.
+     *
+     * @return the format
+     */
+    public LogFormat getLogFormat() {
+        return logFormat;
+    }
+
+    /**
+     * Sets the format of the lines of the server log.
+     *
+     * @param logFormat the format
+     * @return this configuration
+     */
+    public ServerConfig setLogFormat(LogFormat logFormat) {
+        this.logFormat = logFormat;
+        return this;
+    }
+
+    /**
+     * Gets the time without any request after which the server sends a PING to a client, in seconds.
+     *
+     * @return the heartbeat interval, 0 when no PING is sent
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Sets the time without any request after which the server sends a PING to a client, in seconds.
+     * A live client answers with PONG, which keeps it under the idle timeout.
+     *
+     * @param heartbeatInterval the heartbeat interval, 0 to disable the heartbeats
+     * @return this configuration
+     */
+    public ServerConfig setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = Math.max(0, heartbeatInterval);
+        return this;
+    }
+
+    /**
+     * Gets the time without any request after which a client is disconnected, in seconds.
+     *
+     * @return the idle timeout, 0 when the idle clients are kept
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time without any request, PONG included, after which a client is disconnected, in seconds.
+     *
+     * @param idleTimeout the idle timeout, 0 to keep the idle clients
+     * @return this configuration
+     */
+    public ServerConfig setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+        return this;
+    }
+
+    /**
+     * Gets the time a request line may stay incomplete before the client is disconnected, in seconds.
+     *
+     * @return the read timeout, 0 when the incomplete lines are kept
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the time a request line may stay incomplete before the client is disconnected, in seconds.
+     * It catches the clients that send a request a few bytes at a time.
+     *
+     * @param readTimeout the read timeout, 0 to wait for the end of the lines forever
+     * @return this configuration
+     */
+    public ServerConfig setReadTimeout(int readTimeout) {
+        this.readTimeout = Math.max(0, readTimeout);
+        return this;
+    }
+
+    /**
+     * Gets the time a disconnected player has to take back a game in progress with RESUME, in seconds.
+     *
+     * @return the resume timeout, 0 when the games wait for their players forever
+     */
+    public int getResumeTimeout() {
+        return resumeTimeout;
+    }
+
+    /**
+     * Sets the time a disconnected player has to take back a game in progress with RESUME, in seconds.
+     * The player then loses the game by forfeit. Without a move log, a player leaves the game when disconnected.
+     *
+     * @param resumeTimeout the resume timeout, 0 to wait for the players forever
+     * @return this configuration
+     */
+    public ServerConfig setResumeTimeout(int resumeTimeout) {
+        this.resumeTimeout = Math.max(0, resumeTimeout);
+        return this;
+    }
+
+    /**
+     * Gets the largest number of connections open at the same time.
+     *
+     * @return the maximum number of connections, 0 when the connections are not limited
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the largest number of connections open at the same time. The connections above it are refused at once.
+     *
+     * @param maxConnections the maximum number of connections, 0 for no limit
+     * @return this configuration
+     */
+    public ServerConfig setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(0, maxConnections);
+        return this;
+    }
+
+    /**
+     * Gets the number of lobby requests a client may send per second: LIST, HISTORY, REPLAY, STATS, PROTOCOL,
+     * PING and the invalid requests.
+     *
+     * @return the lobby rate, 0 when it is not limited
+     */
+    public int getLobbyRate() {
+        return lobbyRate;
+    }
+
+    /**
+     * Sets the number of lobby requests a client may send per second, also the size of a burst.
+     *
+     * @param lobbyRate the lobby rate, 0 for no limit
+     * @return this configuration
+     */
+    public ServerConfig setLobbyRate(int lobbyRate) {
+        this.lobbyRate = Math.max(0, lobbyRate);
+        return this;
+    }
+
+    /**
+     * Gets the number of game requests a client may send per second: PLACE, SYNC and QUITGAME.
+     *
+     * @return the move rate, 0 when it is not limited
+     */
+    public int getMoveRate() {
+        return moveRate;
+    }
+
+    /**
+     * Sets the number of game requests a client may send per second, also the size of a burst.
+     *
+     * @param moveRate the move rate, 0 for no limit
+     * @return this configuration
+     */
+    public ServerConfig setMoveRate(int moveRate) {
+        this.moveRate = Math.max(0, moveRate);
+        return this;
+    }
+
+    /**
+     * Gets the number of games a client may enter per minute: CREATE, JOIN, QUICKMATCH, WATCH and RESUME.
+     *
+     * @return the games per minute, 0 when they are not limited
+     */
+    public int getGamesPerMinute() {
+        return gamesPerMinute;
+    }
+
+    /**
+     * Sets the number of games a client may enter per minute, also the size of a burst.
+     *
+     * @param gamesPerMinute the games per minute, 0 for no limit
+     * @return this configuration
+     */
+    public ServerConfig setGamesPerMinute(int gamesPerMinute) {
+        this.gamesPerMinute = Math.max(0, gamesPerMinute);
+        return this;
+    }
+
+    /**
+     * Gets the index of this server among the nodes of its cluster, from 0.
+     *
+     * @return the index of the node
+     */
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    /**
+     * Gets the number of nodes of the cluster of this server, each one owning a range of the game and client IDs.
+     *
+     * @return the number of nodes, 1 for a server alone
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Sets the place of this server in its cluster. Every node of a cluster must be given the same number of nodes.
+     *
+     * @param index the index of the node, from 0
+     * @param count the number of nodes, 1 for a server alone
+     * @return this configuration
+     * @throws IllegalArgumentException if the index is not one of the nodes
+     */
+    public ServerConfig setNode(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid node index " + index + ", it must be between 0 and " + (count - 1) + ".");
+        }
+        this.nodeIndex = index;
+        this.nodeCount = count;
+        return this;
+    }
+
+    /**
+     * Gets the number of threads searching the moves of the AI, shared by all the games against it.
+     *
+     * @return the number of AI threads
+     */
+    public int getAiThreads() {
+        return aiThreads;
+    }
+
+    /**
+     * Sets the number of threads searching the moves of the AI.
+     * A value lower than 1 keeps one thread per two available processors.
+     *
+     * @param aiThreads the number of AI threads
+     * @return this configuration
+     */
+    public ServerConfig setAiThreads(int aiThreads) {
+        if (aiThreads > 0) {
+            this.aiThreads = aiThreads;
+        }
+        return this;
+    }
+
+    /**
+     * Gets the longest time the AI takes to play a move, in milliseconds, also the time it takes by default.
+     *
+     * @return the time budget of a move of the AI
+     */
+    public int getAiMoveTime() {
+        return aiMoveTime;
+    }
+
+    /**
+     * Sets the longest time the AI takes to play a move, in milliseconds.
+     *
+     * @param aiMoveTime the time budget of a move of the AI, at least 1
+     * @return this configuration
+     */
+    public ServerConfig setAiMoveTime(int aiMoveTime) {
+        this.aiMoveTime = Math.max(1, aiMoveTime);
+        return this;
+    }
+
+    /**
+     * Creates an empty outbound queue following this configuration.
+     *
+     * @return the new outbound queue
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueSize, overflowPolicy, overflowTimeout);
+    }
+}
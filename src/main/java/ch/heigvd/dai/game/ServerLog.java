@@ -0,0 +1,460 @@
+package ch.heigvd.dai.game;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static ch.heigvd.dai.game.GameServer.*;
+
+/**
+ * The log of the server, written by a background thread so the request threads never wait for the console.
+ *
+ * Every message is an {@link Event} with a level and a template. The request threads only copy the event, its numbers
+ * and an optional detail into a slot of a lock-free ring buffer; the text is formatted by the drainer thread, which
+ * writes everything waiting with a single print. An event whose level is disabled returns after one comparison,
+ * without allocating anything. When the buffer is full the event is dropped and counted, rather than slowing the game.
+ *
+ * The lines are written as text, colored only when the output is a terminal, or as key=value pairs, or as JSON.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+final class ServerLog {
+    private static final int CAPACITY = 1 << 14;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /**
+     * The messages of the server. Each one has a level, a color for the text format, and a template whose
+     * placeholders are filled, in order, by the numbers given when logging it, then by the detail if it has one.
+     */
+    enum Event {
+        SERVER(ServerConfig.LogLevel.INFO, null, "{message}", true),
+        SERVER_WARNING(ServerConfig.LogLevel.WARN, ANSI_RED, "{message}", true),
+        SERVER_ERROR(ServerConfig.LogLevel.ERROR, ANSI_RED, "{message}", true),
+        EXCEPTION(ServerConfig.LogLevel.ERROR, ANSI_RED, "exception: {error}", true),
+        STATS(ServerConfig.LogLevel.INFO, null, "stats: {stats}", true),
+        CONNECTED(ServerConfig.LogLevel.INFO, ANSI_BLUE, "[Client {client}] new connection from {address}", true),
+        DISCONNECTED(ServerConfig.LogLevel.INFO, null, "[Client {client}] closing connection", false),
+        LIST(ServerConfig.LogLevel.INFO, ANSI_PURPLE, "[Client {client}] request game list", false),
+        CREATED(ServerConfig.LogLevel.INFO, ANSI_GREEN, "[Client {client}] created [Game {game}]", false),
+        JOINED(ServerConfig.LogLevel.INFO, ANSI_CYAN, "[Client {client}] join [Game {game}]", false),
+        MATCH_WAITING(ServerConfig.LogLevel.INFO, ANSI_GREEN, "[Client {client}] waiting for a match of size {size}", false),
+        MATCH_CANCELLED(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] stopped waiting for a match", false),
+        MATCHED(ServerConfig.LogLevel.INFO, ANSI_CYAN, "[Client {client}] and [Client {opponent}] matched in [Game {game}]", false),
+        WATCHING(ServerConfig.LogLevel.INFO, ANSI_CYAN, "[Client {client}] watch [Game {game}]", false),
+        WATCH_STOPPED(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] stopped watching [Game {game}]", false),
+        RESUMED(ServerConfig.LogLevel.INFO, ANSI_CYAN, "[Client {client}] resumed [Game {game}]", false),
+        REPLAY(ServerConfig.LogLevel.INFO, ANSI_PURPLE, "[Client {client}] replay [Game {game}]", false),
+        HISTORY(ServerConfig.LogLevel.INFO, ANSI_PURPLE, "[Client {client}] request the history of [Client {player}]", false),
+        MOVE(ServerConfig.LogLevel.DEBUG, null, "[Client {client}] placed at cell {cell} in [Game {game}]", false),
+        LEFT(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] left [Game {game}]", false),
+        REAPED(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] disconnected: {reason}", true),
+        ABANDONED(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] did not come back to [Game {game}]", false),
+        TIMED_OUT(ServerConfig.LogLevel.INFO, ANSI_YELLOW, "[Client {client}] ran out of time in [Game {game}]", false),
+        AI_MOVE(ServerConfig.LogLevel.DEBUG, null, "[AI] placed at cell {cell} in [Game {game}] after searching {depth} plies", false),
+        ARCHIVE_FAILED(ServerConfig.LogLevel.ERROR, ANSI_RED, "cannot archive [Game {game}]: {error}", true);
+
+        private final ServerConfig.LogLevel level;
+        private final String color;
+        private final String name;
+
+        // The template split around its placeholders: literals[i] comes before keys[i], the last literal ends it
+        private final String[] literals;
+        private final String[] keys;
+        private final boolean hasDetail;
+
+        Event(ServerConfig.LogLevel level, String color, String template, boolean hasDetail) {
+            this.level = level;
+            this.color = color;
+            this.name = name().toLowerCase();
+            this.hasDetail = hasDetail;
+
+            List<String> literals = new ArrayList<>();
+            List<String> keys = new ArrayList<>();
+            int from = 0;
+            int open;
+            while ((open = template.indexOf('{', from)) >= 0) {
+                int close = template.indexOf('}', open);
+                literals.add(template.substring(from, open));
+                keys.add(template.substring(open + 1, close));
+                from = close + 1;
+            }
+            literals.add(template.substring(from));
+            this.literals = literals.toArray(new String[0]);
+            this.keys = keys.toArray(new String[0]);
+        }
+
+        /**
+         * Gets the slot of the value of a placeholder: 0 to 2 for the numbers, 3 for the detail.
+         *
+         * @param placeholder the index of the placeholder in the template
+         * @return the slot of its value
+         */
+        private int slotOf(int placeholder) {
+            return hasDetail && placeholder == keys.length - 1 ? 3 : placeholder;
+        }
+    }
+
+    /**
+     * One event waiting to be written. The slots are reused, so the request threads do not allocate.
+     */
+    private static final class Slot {
+        Event event;
+        long time;
+        long first;
+        long second;
+        long third;
+        Object detail;
+    }
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+
+    // The sequence of each slot: its position when it is free, its position + 1 once an event is published in it
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static volatile boolean sleeping;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread drainer;
+
+    // Set once by configure, before the server starts its threads
+    private static int threshold = ServerConfig.LogLevel.INFO.ordinal();
+    private static volatile ServerConfig.LogFormat format = ServerConfig.LogFormat.TEXT;
+    private static volatile PrintStream out = System.out;
+    private static volatile boolean colors = false;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        drainer = new Thread(ServerLog::drainLoop, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Sets the level and the format of the log. Must be called before the server starts handling clients.
+     *
+     * @param level  the most detailed level written
+     * @param format the format of the lines
+     * @param output where the lines are written
+     * @param color  whether the text lines are colored, only when the output is a terminal
+     */
+    static void configure(ServerConfig.LogLevel level, ServerConfig.LogFormat format, PrintStream output, boolean color) {
+        threshold = level.ordinal();
+        ServerLog.format = format;
+        out = output;
+        colors = color;
+    }
+
+    /**
+     * Indicates whether an event is written, to skip preparing its detail when it is not.
+     *
+     * @param event the event
+     * @return true if the level of the event is enabled
+     */
+    static boolean isEnabled(Event event) {
+        return event.level.ordinal() <= threshold;
+    }
+
+    /**
+     * Logs an event whose only value is its detail.
+     *
+     * @param event  the event
+     * @param detail the detail, formatted by the drainer with its toString
+     */
+    static void log(Event event, Object detail) {
+        if (event.level.ordinal() <= threshold) {
+            publish(event, 0, 0, 0, detail);
+        }
+    }
+
+    /**
+     * Logs an event with one number.
+     *
+     * @param event the event
+     * @param first the first number of the template
+     */
+    static void log(Event event, long first) {
+        if (event.level.ordinal() <= threshold) {
+            publish(event, first, 0, 0, null);
+        }
+    }
+
+    /**
+     * Logs an event with one number and a detail.
+     *
+     * @param event  the event
+     * @param first  the first number of the template
+     * @param detail the detail, formatted by the drainer with its toString
+     */
+    static void log(Event event, long first, Object detail) {
+        if (event.level.ordinal() <= threshold) {
+            publish(event, first, 0, 0, detail);
+        }
+    }
+
+    /**
+     * Logs an event with two numbers.
+     *
+     * @param event  the event
+     * @param first  the first number of the template
+     * @param second the second number of the template
+     */
+    static void log(Event event, long first, long second) {
+        if (event.level.ordinal() <= threshold) {
+            publish(event, first, second, 0, null);
+        }
+    }
+
+    /**
+     * Logs an event with three numbers.
+     *
+     * @param event  the event
+     * @param first  the first number of the template
+     * @param second the second number of the template
+     * @param third  the third number of the template
+     */
+    static void log(Event event, long first, long second, long third) {
+        if (event.level.ordinal() <= threshold) {
+            publish(event, first, second, third, null);
+        }
+    }
+
+    /**
+     * Gets the number of events dropped because the buffer was full.
+     *
+     * @return the number of dropped events
+     */
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until the drainer wrote every event already published, at most the given time.
+     *
+     * @param millis the longest wait, in milliseconds
+     */
+    static void flush(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long target = tail.get();
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(drainer);
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Claims a slot of the ring buffer and publishes the event in it, or drops it if the buffer is full.
+     * Several threads can publish at the same time, the slot is claimed by moving the tail with a CAS.
+     */
+    private static void publish(Event event, long first, long second, long third, Object detail) {
+        long time = System.currentTimeMillis();
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.getAcquire(index(position));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The slot still holds an event of the previous lap, the buffer is full
+                dropped.increment();
+                return;
+            }
+        }
+
+        Slot slot = slots[index(position)];
+        slot.event = event;
+        slot.time = time;
+        slot.first = first;
+        slot.second = second;
+        slot.third = third;
+        slot.detail = detail;
+        sequences.setRelease(index(position), position + 1);
+
+        if (sleeping) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private static int index(long position) {
+        return (int) (position & (CAPACITY - 1));
+    }
+
+    /**
+     * Writes the events as they are published, and sleeps while there is none.
+     */
+    private static void drainLoop() {
+        StringBuilder lines = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+
+        while (true) {
+            long position = head;
+            while (sequences.getAcquire(index(position)) == position + 1) {
+                Slot slot = slots[index(position)];
+                format(lines, slot);
+                slot.detail = null;
+                sequences.setRelease(index(position), position + CAPACITY);
+                position++;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                lines.append("[Server ").append(SERVER_ID).append("] ").append(drops - reportedDrops)
+                        .append(" log event(s) dropped, the log buffer was full\n");
+                reportedDrops = drops;
+            }
+
+            if (!lines.isEmpty()) {
+                PrintStream output = out;
+                output.print(lines);
+                output.flush();
+                lines.setLength(0);
+                if (lines.capacity() > 1024 * 1024) {
+                    lines.trimToSize();
+                }
+            }
+            head = position;
+
+            if (sequences.getAcquire(index(position)) != position + 1) {
+                sleeping = true;
+                // Checked again after announcing the sleep, so a publication in between is not missed
+                if (sequences.getAcquire(index(position)) != position + 1) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Formats one event as a line, in the configured format.
+     */
+    private static void format(StringBuilder line, Slot slot) {
+        Event event = slot.event;
+        switch (format) {
+            case KV -> {
+                line.append("time=").append(Instant.ofEpochMilli(slot.time))
+                        .append(" level=").append(event.level)
+                        .append(" server=").append(SERVER_ID)
+                        .append(" event=").append(event.name);
+                for (int i = 0; i < event.keys.length; i++) {
+                    line.append(' ').append(event.keys[i]).append('=');
+                    int slotIndex = event.slotOf(i);
+                    if (slotIndex == 3) {
+                        appendQuoted(line, String.valueOf(slot.detail));
+                    } else {
+                        line.append(valueOf(slot, slotIndex));
+                    }
+                }
+            }
+            case JSON -> {
+                line.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.time))
+                        .append("\",\"level\":\"").append(event.level)
+                        .append("\",\"server\":").append(SERVER_ID)
+                        .append(",\"event\":\"").append(event.name).append('"');
+                for (int i = 0; i < event.keys.length; i++) {
+                    line.append(",\"").append(event.keys[i]).append("\":");
+                    int slotIndex = event.slotOf(i);
+                    if (slotIndex == 3) {
+                        appendJsonString(line, String.valueOf(slot.detail));
+                    } else {
+                        line.append(valueOf(slot, slotIndex));
+                    }
+                }
+                line.append('}');
+            }
+            default -> {
+                boolean colored = colors && event.color != null;
+                if (colored) {
+                    line.append(event.color);
+                }
+                line.append(LocalTime.ofInstant(Instant.ofEpochMilli(slot.time), ZoneId.systemDefault()).format(TIME))
+                        .append(' ').append(event.level).append(event.level.name().length() < 5 ? " " : "")
+                        .append(" [Server ").append(SERVER_ID).append("] ");
+                for (int i = 0; i < event.keys.length; i++) {
+                    line.append(event.literals[i]);
+                    int slotIndex = event.slotOf(i);
+                    if (slotIndex == 3) {
+                        line.append(slot.detail);
+                    } else {
+                        line.append(valueOf(slot, slotIndex));
+                    }
+                }
+                line.append(event.literals[event.keys.length]);
+                if (colored) {
+                    line.append(ANSI_RESET);
+                }
+            }
+        }
+        line.append('\n');
+    }
+
+    private static long valueOf(Slot slot, int index) {
+        return switch (index) {
+            case 0 -> slot.first;
+            case 1 -> slot.second;
+            default -> slot.third;
+        };
+    }
+
+    /**
+     * Appends a value of a key=value pair, quoted only if it contains a space, a quote or an equal sign.
+     */
+    private static void appendQuoted(StringBuilder line, String value) {
+        if (value.indexOf(' ') < 0 && value.indexOf('"') < 0 && value.indexOf('=') < 0 && !value.isEmpty()) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\');
+            }
+            line.append(c == '\n' ? ' ' : c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * Appends a JSON string, escaping the quotes, the backslashes and the control characters.
+     */
+    private static void appendJsonString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,443 @@
+package ch.heigvd.dai.game;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters describing the activity of the server.
+ * The counters are striped LongAdders, so the request threads never contend when updating them.
+ *
+ * The totals since the start of the server are exposed in the plain-text format of Prometheus, both by the STATS
+ * command and by a scrape endpoint bound to the loopback interface. The periodic report prints the difference with
+ * the previous report and only resets the peak queue depth, so both read the same latency histograms.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+final class ServerMetrics {
+    /**
+     * Payload of one TCP segment on a standard Ethernet link, used to estimate the packets sent.
+     */
+    private static final int SEGMENT_PAYLOAD = 1448;
+
+    static final LongAdder moves = new LongAdder();
+    static final LongAdder flushes = new LongAdder();
+    static final LongAdder packets = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder queuedBatches = new LongAdder();
+    static final AtomicInteger maxQueueDepth = new AtomicInteger();
+    static final LongAdder overflows = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    static final LatencyHistogram matchLatency = new LatencyHistogram();
+    static final LongAdder watchers = new LongAdder();
+    static final AtomicInteger peakWatchersPerGame = new AtomicInteger();
+    static final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder connections = new LongAdder();
+    static final LongAdder acceptedConnections = new LongAdder();
+    static final LongAdder unknownCommands = new LongAdder();
+    static final LongAdder idleDisconnects = new LongAdder();
+    static final LongAdder readTimeoutDisconnects = new LongAdder();
+    static final LongAdder abandonedGames = new LongAdder();
+    static final LongAdder refusedConnections = new LongAdder();
+    static final LongAdder aiMoves = new LongAdder();
+    static final LongAdder aiNodes = new LongAdder();
+    static final LongAdder aiSearchNanos = new LongAdder();
+    static final LatencyHistogram aiMoveLatency = new LatencyHistogram();
+
+    // Indexed by the ordinal of the AdmissionControl limits
+    private static final AdmissionControl.Limit[] LIMITS = AdmissionControl.Limit.values();
+    private static final LongAdder[] rateLimited = new LongAdder[LIMITS.length];
+
+    private static final GameServer.ClientCommand[] COMMANDS = GameServer.ClientCommand.values();
+    private static final LatencyHistogram[] commandLatency = new LatencyHistogram[COMMANDS.length];
+
+    // Indexed by the outcome codes of the GameArchive
+    private static final String[] OUTCOMES = {null, "x_wins", "o_wins", "draw", "x_left", "o_left", "x_timeout", "o_timeout"};
+    private static final LongAdder[] outcomes = new LongAdder[OUTCOMES.length];
+
+    static {
+        for (int i = 0; i < commandLatency.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 1; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+        for (int i = 0; i < rateLimited.length; i++) {
+            rateLimited[i] = new LongAdder();
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Records one flush of outbound bytes to a socket, which is one write syscall.
+     *
+     * @param bytes the number of bytes flushed
+     */
+    static void recordFlush(int bytes) {
+        flushes.increment();
+        packets.add(Math.max(1, (bytes + SEGMENT_PAYLOAD - 1) / SEGMENT_PAYLOAD));
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Records one batch added to an outbound queue.
+     *
+     * @param depth the depth of the queue after the batch was added
+     */
+    static void recordQueued(int depth) {
+        queuedBatches.increment();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    /**
+     * Records one batch removed from an outbound queue by its writer.
+     */
+    static void recordDequeued() {
+        queuedBatches.decrement();
+    }
+
+    /**
+     * Records one batch that did not fit in a full outbound queue.
+     */
+    static void recordOverflow() {
+        overflows.increment();
+    }
+
+    /**
+     * Records one client disconnected because it did not read its messages fast enough.
+     */
+    static void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /**
+     * Records one piece successfully placed.
+     */
+    static void recordMove() {
+        moves.increment();
+    }
+
+    /**
+     * Records the time a client waited in the matchmaker before being paired.
+     *
+     * @param nanos the waiting time, in nanoseconds
+     */
+    static void recordMatch(long nanos) {
+        matchLatency.record(nanos);
+    }
+
+    /**
+     * Records one client starting to watch a game.
+     *
+     * @param gameWatchers the number of watchers of the game, including the new one
+     */
+    static void recordWatcherAdded(int gameWatchers) {
+        watchers.increment();
+        if (gameWatchers > peakWatchersPerGame.get()) {
+            peakWatchersPerGame.accumulateAndGet(gameWatchers, Math::max);
+        }
+    }
+
+    /**
+     * Records one client no longer watching a game.
+     */
+    static void recordWatcherRemoved() {
+        watchers.decrement();
+    }
+
+    /**
+     * Records the time between the publication of a game update and its delivery to the queues of all the watchers.
+     *
+     * @param nanos the fan-out time, in nanoseconds
+     */
+    static void recordFanOut(long nanos) {
+        fanOutLatency.record(nanos);
+    }
+
+    /**
+     * Records one request line received from a client.
+     *
+     * @param bytes the length of the line, with its end of line
+     */
+    static void recordRequest(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Records the time taken to handle one command, from its reception until its responses are queued.
+     *
+     * @param command the command, null if it was not recognized
+     * @param nanos   the handling time, in nanoseconds
+     */
+    static void recordCommand(GameServer.ClientCommand command, long nanos) {
+        if (command == null) {
+            unknownCommands.increment();
+        } else {
+            commandLatency[command.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Records one new client connection.
+     */
+    static void recordConnectionOpened() {
+        acceptedConnections.increment();
+        connections.increment();
+    }
+
+    /**
+     * Records one client connection closed.
+     */
+    static void recordConnectionClosed() {
+        connections.decrement();
+    }
+
+    /**
+     * Records one client disconnected by the reaper.
+     *
+     * @param idle true if the client sent nothing during the idle timeout, false if a request line stayed incomplete
+     */
+    static void recordReaped(boolean idle) {
+        (idle ? idleDisconnects : readTimeoutDisconnects).increment();
+    }
+
+    /**
+     * Records one game left by a disconnected player, at once or after the resume timeout.
+     */
+    static void recordAbandonedGame() {
+        abandonedGames.increment();
+    }
+
+    /**
+     * Records one connection refused because the server is full.
+     */
+    static void recordRefusedConnection() {
+        refusedConnections.increment();
+    }
+
+    /**
+     * Records one request refused because its client sent too many of its class.
+     *
+     * @param limit the class of the request
+     */
+    static void recordRateLimited(AdmissionControl.Limit limit) {
+        rateLimited[limit.ordinal()].increment();
+    }
+
+    /**
+     * Records one move played by the AI.
+     *
+     * @param latency the time between the move of the player and the move of the AI, in nanoseconds
+     * @param nodes   the number of positions searched
+     * @param nanos   the time spent searching, in nanoseconds
+     */
+    static void recordAiMove(long latency, long nodes, long nanos) {
+        aiMoves.increment();
+        aiNodes.add(nodes);
+        aiSearchNanos.add(nanos);
+        aiMoveLatency.record(latency);
+    }
+
+    /**
+     * Records how a game ended.
+     *
+     * @param outcome the outcome code, as archived by the GameArchive
+     */
+    static void recordOutcome(int outcome) {
+        outcomes[outcome].increment();
+    }
+
+    /**
+     * Formats the totals since the start of the server in the plain-text format of Prometheus.
+     *
+     * @param games the number of games in progress or waiting for an opponent
+     * @param lobby the games waiting for an opponent
+     * @return the metrics, one per line
+     */
+    static String exposition(int games, Lobby lobby) {
+        StringBuilder out = new StringBuilder(8192);
+
+        type(out, "connections", "gauge").append("tictactoe_connections ").append(connections.sum()).append('\n');
+        counter(out, "connections_accepted_total", acceptedConnections.sum());
+        counter(out, "bytes_in_total", bytesIn.sum());
+        counter(out, "bytes_out_total", bytesOut.sum());
+        counter(out, "flushes_total", flushes.sum());
+        counter(out, "moves_total", moves.sum());
+        counter(out, "unknown_commands_total", unknownCommands.sum());
+        counter(out, "outbound_overflows_total", overflows.sum());
+        counter(out, "slow_consumer_disconnects_total", slowConsumerDisconnects.sum());
+        type(out, "reaped_connections_total", "counter");
+        out.append("tictactoe_reaped_connections_total{reason=\"idle\"} ").append(idleDisconnects.sum()).append('\n');
+        out.append("tictactoe_reaped_connections_total{reason=\"read_timeout\"} ").append(readTimeoutDisconnects.sum()).append('\n');
+        counter(out, "abandoned_games_total", abandonedGames.sum());
+        counter(out, "refused_connections_total", refusedConnections.sum());
+        type(out, "rate_limited_requests_total", "counter");
+        for (AdmissionControl.Limit limit : LIMITS) {
+            out.append("tictactoe_rate_limited_requests_total{class=\"").append(limit.name().toLowerCase())
+                    .append("\"} ").append(rateLimited[limit.ordinal()].sum()).append('\n');
+        }
+        counter(out, "log_dropped_total", ServerLog.dropped());
+        counter(out, "ai_moves_total", aiMoves.sum());
+        counter(out, "ai_nodes_total", aiNodes.sum());
+        type(out, "ai_search_seconds_total", "counter").append("tictactoe_ai_search_seconds_total ")
+                .append(String.format(Locale.ROOT, "%.6f", aiSearchNanos.sum() / 1e9)).append('\n');
+        type(out, "outbound_queued_batches", "gauge").append("tictactoe_outbound_queued_batches ").append(queuedBatches.sum()).append('\n');
+        type(out, "watchers", "gauge").append("tictactoe_watchers ").append(watchers.sum()).append('\n');
+        type(out, "games", "gauge").append("tictactoe_games ").append(games).append('\n');
+
+        type(out, "joinable_games", "gauge");
+        for (int gridSize = 3; gridSize <= 9; gridSize += 2) {
+            out.append("tictactoe_joinable_games{grid_size=\"").append(gridSize).append("\"} ").append(lobby.count(gridSize)).append('\n');
+        }
+
+        type(out, "game_outcomes_total", "counter");
+        for (int i = 1; i < outcomes.length; i++) {
+            out.append("tictactoe_game_outcomes_total{outcome=\"").append(OUTCOMES[i]).append("\"} ").append(outcomes[i].sum()).append('\n');
+        }
+
+        type(out, "command_latency_seconds", "summary");
+        for (GameServer.ClientCommand command : COMMANDS) {
+            LatencyHistogram.Snapshot latencies = commandLatency[command.ordinal()].snapshot();
+            for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+                out.append("tictactoe_command_latency_seconds{command=\"").append(command).append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(String.format(Locale.ROOT, "%.9f", latencies.percentile(quantile * 100) / 1e9)).append('\n');
+            }
+            out.append("tictactoe_command_latency_seconds_count{command=\"").append(command).append("\"} ").append(latencies.count()).append('\n');
+        }
+
+        summary(out, "match_latency_seconds", matchLatency.snapshot());
+        summary(out, "fan_out_latency_seconds", fanOutLatency.snapshot());
+        summary(out, "ai_move_latency_seconds", aiMoveLatency.snapshot());
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, LatencyHistogram.Snapshot latencies) {
+        type(out, name, "summary");
+        for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+            out.append("tictactoe_").append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(String.format(Locale.ROOT, "%.9f", latencies.percentile(quantile * 100) / 1e9)).append('\n');
+        }
+        out.append("tictactoe_").append(name).append("_count ").append(latencies.count()).append('\n');
+    }
+
+    private static StringBuilder type(StringBuilder out, String name, String type) {
+        return out.append("# TYPE tictactoe_").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        type(out, name, "counter").append("tictactoe_").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Starts the scrape endpoint of the metrics, answering GET /metrics on the loopback interface only.
+     *
+     * @param port       the port of the endpoint
+     * @param exposition gives the current metrics
+     * @throws IOException if the port cannot be bound
+     */
+    static void serve(int port, Supplier<String> exposition) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = exposition.get().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Periodically prints a summary of the counters for the last interval.
+     */
+    static class Reporter implements Runnable {
+        private long lastMoves;
+        private long lastFlushes;
+        private long lastPackets;
+        private long lastBytes;
+        private long lastAiMoves;
+        private long lastAiNodes;
+        private long lastAiNanos;
+        private LatencyHistogram.Snapshot lastMatches;
+        private LatencyHistogram.Snapshot lastFanOuts;
+
+        @Override
+        public void run() {
+            long totalMoves = moves.sum();
+            long totalFlushes = flushes.sum();
+            long totalPackets = packets.sum();
+            long totalBytes = bytesOut.sum();
+            long totalAiMoves = aiMoves.sum();
+            long totalAiNodes = aiNodes.sum();
+            long totalAiNanos = aiSearchNanos.sum();
+
+            long intervalMoves = totalMoves - lastMoves;
+            long intervalFlushes = totalFlushes - lastFlushes;
+            long intervalPackets = totalPackets - lastPackets;
+            long intervalBytes = totalBytes - lastBytes;
+            LatencyHistogram.Snapshot totalMatches = matchLatency.snapshot();
+            LatencyHistogram.Snapshot totalFanOuts = fanOutLatency.snapshot();
+            LatencyHistogram.Snapshot matches = lastMatches == null ? totalMatches : totalMatches.since(lastMatches);
+            LatencyHistogram.Snapshot fanOuts = lastFanOuts == null ? totalFanOuts : totalFanOuts.since(lastFanOuts);
+            long intervalAiNanos = totalAiNanos - lastAiNanos;
+
+            ServerLog.log(ServerLog.Event.STATS, "moves=" + intervalMoves
+                    + " flushes=" + intervalFlushes
+                    + " packets~" + intervalPackets
+                    + " bytesOut=" + intervalBytes
+                    + " flushes/move=" + perMove(intervalFlushes, intervalMoves)
+                    + " packets/move=" + perMove(intervalPackets, intervalMoves)
+                    + " queued=" + queuedBatches.sum()
+                    + " maxQueueDepth=" + maxQueueDepth.getAndSet(0)
+                    + " overflows=" + overflows.sum()
+                    + " slowDisconnects=" + slowConsumerDisconnects.sum()
+                    + " matchedClients=" + matches.count()
+                    + " " + matches.format("match")
+                    + " watchers=" + watchers.sum()
+                    + " peakWatchersPerGame=" + peakWatchersPerGame.get()
+                    + " fanOuts=" + fanOuts.count()
+                    + " " + fanOuts.format("fanOut")
+                    + " aiMoves=" + (totalAiMoves - lastAiMoves)
+                    + " aiNodes/s=" + (intervalAiNanos == 0 ? "-" : (totalAiNodes - lastAiNodes) * 1_000_000_000 / intervalAiNanos));
+
+            lastMoves = totalMoves;
+            lastFlushes = totalFlushes;
+            lastPackets = totalPackets;
+            lastBytes = totalBytes;
+            lastAiMoves = totalAiMoves;
+            lastAiNodes = totalAiNodes;
+            lastAiNanos = totalAiNanos;
+            lastMatches = totalMatches;
+            lastFanOuts = totalFanOuts;
+        }
+
+        /**
+         * Formats a counter divided by the number of moves.
+         *
+         * @param value the counter
+         * @param moves the number of moves
+         * @return the formatted ratio, or "-" when no move was played
+         */
+        private static String perMove(long value, long moves) {
+            return moves == 0 ? "-" : String.format("%.2f", (double) value / moves);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ch.heigvd.dai.game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Writes and loads the snapshots of the live games, so a restart only replays the end of the move log.
+ *
+ * A snapshot is written while the server keeps running: the games are collected from the registry, then copied by
+ * their shards a small chunk at a time. Every game also records the position of the last event of the log it contains, so
+ * the events replayed after the snapshot that a game already contains are skipped. The file is written under a
+ * temporary name, forced and renamed, so a crash never leaves a partial snapshot.
+ *
+ * File layout: magic, version, log position, then each game ({@link GameHandler#writeTo}), then a 0 game ID,
+ * the number of games and the CRC32C of everything before it.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class SnapshotStore {
+    private static final int MAGIC = 0x54545453;
+    private static final byte VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE = 256;
+    private static final int KEPT_SNAPSHOTS = 2;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+
+    /**
+     * Instantiates a new Snapshot store.
+     *
+     * @param directory the directory of the snapshots, shared with the move log
+     */
+    SnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes a snapshot of the games, then deletes the older snapshots except the previous one.
+     *
+     * @param position the position of the move log when the snapshot starts
+     * @param games    the live games
+     * @param shards   the shards owning the games, which copy them
+     * @return the number of games written
+     * @throws IOException if the snapshot cannot be written
+     */
+    int write(long position, IntRegistry<GameHandler> games, GameShards shards) throws IOException {
+        // Only the references are collected under the locks of the registry, grouped by the shard owning them
+        List<List<GameHandler>> handlers = new ArrayList<>(shards.size());
+        IntList[] ids = new IntList[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            handlers.add(new ArrayList<>(games.size() / shards.size() + 64));
+            ids[shard] = new IntList(games.size() / shards.size() + 64);
+        }
+        games.forEach((game, gameId) -> {
+            int shard = shards.shardOf(gameId);
+            handlers.get(shard).add(game);
+            ids[shard].add(gameId);
+        });
+
+        Path temporary = directory.resolve(PREFIX + "tmp");
+        CRC32C crc = new CRC32C();
+        int written = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(MAGIC).put(VERSION).putLong(position);
+
+            for (int shard = 0; shard < shards.size(); shard++) {
+                List<GameHandler> shardGames = handlers.get(shard);
+                IntList shardIds = ids[shard];
+                for (int first = 0; first < shardGames.size(); first += CHUNK_SIZE) {
+                    if (buffer.remaining() < CHUNK_SIZE * GameHandler.MAX_SNAPSHOT_SIZE + 12) {
+                        flush(channel, buffer, crc);
+                    }
+
+                    // The shard copies the chunk between two of its tasks, and waits for nothing meanwhile
+                    int from = first;
+                    int to = Math.min(first + CHUNK_SIZE, shardGames.size());
+                    written += shards.call(shardIds.get(from), () -> {
+                        int copied = 0;
+                        for (int i = from; i < to; i++) {
+                            if (shardGames.get(i).writeTo(buffer, shardIds.get(i))) {
+                                copied++;
+                            }
+                        }
+                        return copied;
+                    });
+                }
+            }
+
+            buffer.putInt(0).putInt(written);
+            flush(channel, buffer, crc);
+            buffer.putInt((int) crc.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(temporary, path(position), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+
+        List<Long> positions = positions();
+        for (int i = 0; i < positions.size() - KEPT_SNAPSHOTS; i++) {
+            Files.delete(path(positions.get(i)));
+        }
+        return written;
+    }
+
+    /**
+     * Gets the log position of the oldest snapshot kept. The events at this position or before are no longer needed.
+     *
+     * @return the position, 0 if there is no snapshot
+     * @throws IOException if the directory cannot be read
+     */
+    long oldestPosition() throws IOException {
+        List<Long> positions = positions();
+        return positions.isEmpty() ? 0 : positions.getFirst();
+    }
+
+    /**
+     * Loads the newest valid snapshot. A snapshot whose checksum does not match is skipped for the previous one.
+     *
+     * @param restore receives each game of the snapshot with its ID
+     * @return the position of the move log when the snapshot was taken, 0 if there is no valid snapshot
+     * @throws IOException if the directory or a snapshot cannot be read
+     */
+    long load(ObjIntConsumer<GameHandler> restore) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+
+        List<Long> positions = positions();
+        for (int i = positions.size() - 1; i >= 0; i--) {
+            try (FileChannel channel = FileChannel.open(path(positions.get(i)), StandardOpenOption.READ)) {
+                MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!isValid(snapshot)) {
+                    ServerLog.log(ServerLog.Event.SERVER_WARNING, "skipping the damaged snapshot " + path(positions.get(i)).getFileName());
+                    continue;
+                }
+
+                snapshot.position(5);
+                long position = snapshot.getLong();
+                int gameId;
+                while ((gameId = snapshot.getInt()) != 0) {
+                    restore.accept(GameHandler.readFrom(snapshot), gameId);
+                }
+                return position;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Checks the header, the trailer and the checksum of a snapshot.
+     *
+     * @param snapshot the content of the snapshot
+     * @return true if the snapshot is complete and intact
+     */
+    private static boolean isValid(ByteBuffer snapshot) {
+        int size = snapshot.limit();
+        if (size < HEADER_SIZE + 12 || snapshot.getInt(0) != MAGIC || snapshot.get(4) != VERSION) {
+            return false;
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(snapshot.duplicate().limit(size - 4));
+        return snapshot.getInt(size - 4) == (int) crc.getValue();
+    }
+
+    /**
+     * Writes the content of the buffer to the snapshot and adds it to the checksum.
+     *
+     * @param channel the snapshot being written
+     * @param buffer  the buffer, emptied afterwards
+     * @param crc     the checksum of the snapshot
+     * @throws IOException if the write fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer, CRC32C crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Forces the rename of the snapshot to disk. Not every platform can open a directory, which is then skipped.
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The rename is still atomic, only its durability depends on the platform
+        }
+    }
+
+    /**
+     * Lists the log positions of the snapshots, oldest first.
+     *
+     * @return the positions
+     * @throws IOException if the directory cannot be read
+     */
+    private List<Long> positions() throws IOException {
+        List<Long> positions = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                positions.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        positions.sort(null);
+        return positions;
+    }
+
+    private Path path(long position) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, position, SUFFIX));
+    }
+
+    /**
+     * A growable list of ints, to collect the IDs of the games without boxing them.
+     */
+    private static final class IntList {
+        private int[] values;
+        private int size;
+
+        IntList(int capacity) {
+            values = new int[capacity];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ch.heigvd.dai.game;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The clients watching one game.
+ *
+ * Each update of the game is encoded once for the watchers using the text protocol and once for those
+ * using the delta protocol, then the same bytes are queued to every watcher. The fan-out runs on a
+ * broadcaster thread, so the move of a player never waits for the watchers, and the updates of a game
+ * are always delivered in order.
+ *
+ * The watchers join and leave through the same queue as the updates, so a new watcher receives the board
+ * as it was when it asked to watch, then exactly the updates published after it.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class Spectators {
+    private static final ExecutorService broadcaster = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Set<GameServer.ClientHandler> watchers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Update> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean broadcasting = new AtomicBoolean();
+
+    // Number of watchers, including those whose join is still queued
+    private final AtomicInteger members = new AtomicInteger();
+
+    /**
+     * Adds a watcher. Must be called on the shard of the game,
+     * so that no move is published between the rendering of the welcome chain and the join.
+     *
+     * @param watcher the session of the watcher
+     * @param welcome the chain sent to the watcher when it joins, with the current board
+     */
+    void add(GameServer.ClientHandler watcher, MessageBatch welcome) {
+        ServerMetrics.recordWatcherAdded(members.incrementAndGet());
+        enqueue(new Update(watcher, true, welcome));
+    }
+
+    /**
+     * Removes a watcher that was added before.
+     *
+     * @param watcher the session of the watcher
+     */
+    void remove(GameServer.ClientHandler watcher) {
+        members.decrementAndGet();
+        ServerMetrics.recordWatcherRemoved();
+        enqueue(new Update(watcher, false, null));
+    }
+
+    /**
+     * Gets the number of watchers.
+     *
+     * @return the number of watchers
+     */
+    int size() {
+        return members.get();
+    }
+
+    /**
+     * Sends an update of the game to every watcher, from the broadcaster.
+     *
+     * @param message    the message describing the update, or null
+     * @param tableFrame the encoded GAME_TABLE line of the game after the update, or null if the board did not change
+     * @param moveFrame  the encoded MOVE line of the update, or null if the board did not change
+     */
+    void publish(String message, byte[] tableFrame, byte[] moveFrame) {
+        if (members.get() == 0) {
+            return;
+        }
+        enqueue(new Update(message, tableFrame, moveFrame));
+    }
+
+    /**
+     * Queues an update and starts the broadcaster of the game if it is not running.
+     *
+     * @param update the update
+     */
+    private void enqueue(Update update) {
+        updates.add(update);
+        if (broadcasting.compareAndSet(false, true)) {
+            broadcaster.execute(this::broadcast);
+        }
+    }
+
+    /**
+     * Fans out the waiting updates, then gives up the broadcaster role.
+     * The queue is checked again afterwards, so an update published meanwhile is never forgotten.
+     */
+    private void broadcast() {
+        do {
+            try {
+                Update update;
+                while ((update = updates.poll()) != null) {
+                    if (update.watcher != null) {
+                        if (update.joining) {
+                            watchers.add(update.watcher);
+                            update.watcher.send(update.welcome);
+                        } else {
+                            watchers.remove(update.watcher);
+                        }
+                        continue;
+                    }
+
+                    MessageBatch textChain = update.chain(update.tableFrame);
+                    MessageBatch deltaChain = update.chain(update.moveFrame);
+
+                    for (GameServer.ClientHandler watcher : watchers) {
+                        watcher.send(watcher.usesDeltaProtocol() ? deltaChain : textChain);
+                    }
+                    ServerMetrics.recordFanOut(System.nanoTime() - update.publishedAt);
+                }
+            } finally {
+                broadcasting.set(false);
+            }
+        } while (!updates.isEmpty() && broadcasting.compareAndSet(false, true));
+    }
+
+    /**
+     * One update of the game waiting to be fanned out, or a watcher joining or leaving.
+     */
+    private static final class Update {
+        final String message;
+        final byte[] tableFrame;
+        final byte[] moveFrame;
+        final long publishedAt = System.nanoTime();
+
+        final GameServer.ClientHandler watcher;
+        final boolean joining;
+        final MessageBatch welcome;
+
+        Update(String message, byte[] tableFrame, byte[] moveFrame) {
+            this.message = message;
+            this.tableFrame = tableFrame;
+            this.moveFrame = moveFrame;
+            this.watcher = null;
+            this.joining = false;
+            this.welcome = null;
+        }
+
+        Update(GameServer.ClientHandler watcher, boolean joining, MessageBatch welcome) {
+            this.message = null;
+            this.tableFrame = null;
+            this.moveFrame = null;
+            this.watcher = watcher;
+            this.joining = joining;
+            this.welcome = welcome;
+        }
+
+        /**
+         * Builds the chain sent to the watchers of one protocol.
+         * The chain is shared by all these watchers, so it must not be modified afterwards.
+         *
+         * @param boardFrame the line describing the board for the protocol, or null
+         * @return the chain
+         */
+        MessageBatch chain(byte[] boardFrame) {
+            MessageBatch chain = new MessageBatch().add(GameServer.ServerCommand.FIRSTOFCHAIN.name());
+            if (message != null) {
+                chain.add(GameServer.ServerCommand.STANDARD_MESSAGE + " " + message);
+            }
+            if (boardFrame != null) {
+                chain.add(boardFrame);
+            }
+            return chain.add(GameServer.ServerCommand.LASTOFCHAIN.name());
+        }
+    }
+}
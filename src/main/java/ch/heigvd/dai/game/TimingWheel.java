@@ -0,0 +1,212 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel, firing many timers from a single thread with the precision of one tick.
+ *
+ * The wheel is a ring of buckets, each one a doubly linked list of the timers due during a tick, and a timer due after
+ * more than one turn of the wheel waits in its bucket for its round. Arming, moving and cancelling a timer are O(1)
+ * whatever the number of timers, and a timer costs nothing until the wheel reaches its bucket.
+ *
+ * The buckets are only touched by the wheel thread. A timer armed again for a later deadline keeps its place and is
+ * moved when the wheel reaches it, so re-arming a clock after a move is a single volatile write. A timer armed for the
+ * first time or for an earlier deadline, or cancelled, is handed to the wheel thread through a lock-free queue.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class TimingWheel {
+    // The tick of a timer that is not in a bucket
+    private static final long NOT_PLACED = Long.MAX_VALUE;
+
+    private final long tickNanos;
+    private final Timer[] buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timer> pending = new ConcurrentLinkedQueue<>();
+
+    // The next tick to process, only used by the wheel thread
+    private long tick;
+
+    /**
+     * A timer of the wheel, armed again as often as needed. Its expiry runs on the wheel thread, so it must be short.
+     */
+    abstract static class Timer {
+        private final TimingWheel wheel;
+
+        // The System.nanoTime at which the timer expires, 0 when it is cancelled
+        private volatile long deadline;
+
+        // The tick of the bucket holding the timer, written by the wheel thread
+        private volatile long placedTick = NOT_PLACED;
+        private Timer previous;
+        private Timer next;
+
+        /**
+         * Instantiates a new Timer.
+         *
+         * @param wheel the wheel firing the timer
+         */
+        Timer(TimingWheel wheel) {
+            this.wheel = wheel;
+        }
+
+        /**
+         * Arms the timer, replacing its previous deadline.
+         *
+         * @param deadline the System.nanoTime at which the timer expires
+         */
+        final void schedule(long deadline) {
+            this.deadline = deadline == 0 ? 1 : deadline;
+            // A timer already placed for an earlier tick is moved by the wheel thread when it reaches it
+            if (wheel.tickOf(deadline) < placedTick) {
+                wheel.pending.add(this);
+            }
+        }
+
+        /**
+         * Cancels the timer. The wheel thread removes it from its bucket at the next tick, so a cancelled timer
+         * does not keep its owner reachable until the wheel reaches its bucket, up to a whole day later.
+         */
+        final void cancel() {
+            deadline = 0;
+            // Always handed over, the wheel thread may be placing the timer while it is cancelled
+            wheel.pending.add(this);
+        }
+
+        /**
+         * Called on the wheel thread once the deadline passed. The timer may have been armed again meanwhile,
+         * so the owner checks its own state before acting.
+         */
+        abstract void expire();
+    }
+
+    /**
+     * Instantiates a new Timing wheel and starts its thread.
+     *
+     * @param name    the name of the wheel thread
+     * @param tick    the duration of a tick, the precision of the timers
+     * @param unit    the unit of the tick
+     * @param buckets the number of buckets, rounded up to a power of two
+     */
+    TimingWheel(String name, long tick, TimeUnit unit, int buckets) {
+        this.tickNanos = unit.toNanos(tick);
+        this.buckets = new Timer[Integer.highestOneBit(Math.max(1, buckets - 1)) << 1];
+        this.mask = this.buckets.length - 1;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the tick during which a deadline falls.
+     *
+     * @param deadline the System.nanoTime of the deadline
+     * @return the tick, never negative
+     */
+    private long tickOf(long deadline) {
+        return Math.max(0, (deadline - startTime) / tickNanos);
+    }
+
+    /**
+     * Processes the ticks as they end: the timers handed over are placed, then the bucket of the tick is expired.
+     */
+    private void run() {
+        while (true) {
+            long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+
+            Timer timer;
+            while ((timer = pending.poll()) != null) {
+                if (timer.placedTick != NOT_PLACED) {
+                    unlink(timer);
+                }
+                long deadline = timer.deadline;
+                if (deadline != 0) {
+                    place(timer, deadline);
+                }
+            }
+
+            expireBucket(System.nanoTime());
+            tick++;
+        }
+    }
+
+    /**
+     * Expires the timers of the current tick, and moves the ones armed again for later.
+     *
+     * @param now the current System.nanoTime
+     */
+    private void expireBucket(long now) {
+        Timer next;
+        for (Timer timer = buckets[(int) (tick & mask)]; timer != null; timer = next) {
+            next = timer.next;
+            if (timer.placedTick > tick) {
+                // Due in a later turn of the wheel
+                continue;
+            }
+
+            unlink(timer);
+            // Read after leaving the bucket, a timer armed meanwhile sees it is not placed and is handed over again
+            long deadline = timer.deadline;
+            if (deadline == 0) {
+                continue;
+            }
+            if (deadline - now > 0) {
+                place(timer, deadline);
+                continue;
+            }
+
+            try {
+                timer.expire();
+            } catch (RuntimeException e) {
+                ServerLog.log(ServerLog.Event.EXCEPTION, e);
+            }
+        }
+    }
+
+    /**
+     * Adds a timer to the bucket of its deadline, or of the current tick if it already passed.
+     *
+     * @param timer    the timer, not in a bucket
+     * @param deadline its deadline
+     */
+    private void place(Timer timer, long deadline) {
+        long target = Math.max(tick, tickOf(deadline));
+        int index = (int) (target & mask);
+
+        timer.previous = null;
+        timer.next = buckets[index];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        buckets[index] = timer;
+        timer.placedTick = target;
+    }
+
+    /**
+     * Removes a timer from its bucket.
+     *
+     * @param timer the timer, in a bucket
+     */
+    private void unlink(Timer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            buckets[(int) (timer.placedTick & mask)] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.placedTick = NOT_PLACED;
+    }
+}
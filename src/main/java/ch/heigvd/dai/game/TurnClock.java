@@ -0,0 +1,120 @@
+package ch.heigvd.dai.game;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time controls of one game: a limit for each move, a limit for all the moves of each player, or both.
+ *
+ * Only the player to move has a running clock, whose deadline is a timer of a shared timing wheel, armed again
+ * after each move. The clock is driven by its game and must only be used on the shard of the game.
+ *
+ * @author Alex Berberat
+ * @author Lisa Gorgerat
+ */
+class TurnClock extends TimingWheel.Timer {
+    /**
+     * The largest time control, in seconds.
+     */
+    static final int MAX_SECONDS = 86400;
+
+    private final int moveSeconds;
+    private final int gameSeconds;
+    private final Runnable onTimeout;
+
+    // The time left to player1 [X] and player2 [O] for the rest of the game, in nanoseconds
+    private final long[] remaining = new long[2];
+    private int turn;
+    private long turnStartedAt;
+    private boolean running;
+
+    /**
+     * Instantiates a new Turn clock.
+     *
+     * @param wheel       the wheel firing the timeouts
+     * @param moveSeconds the time allowed for each move, 0 for no limit
+     * @param gameSeconds the time allowed to each player for the whole game, 0 for no limit
+     * @param onTimeout   called on the wheel thread when the deadline of the player to move passed, must not touch the game
+     */
+    TurnClock(TimingWheel wheel, int moveSeconds, int gameSeconds, Runnable onTimeout) {
+        super(wheel);
+        this.moveSeconds = moveSeconds;
+        this.gameSeconds = gameSeconds;
+        this.onTimeout = onTimeout;
+        remaining[0] = remaining[1] = TimeUnit.SECONDS.toNanos(gameSeconds);
+    }
+
+    /**
+     * Starts the clock of player1 [X], when the opponent joins.
+     *
+     * @param now the current System.nanoTime
+     */
+    void start(long now) {
+        turn = 0;
+        turnStartedAt = now;
+        running = true;
+        schedule(deadline());
+    }
+
+    /**
+     * Stops the clock of the player who just moved and starts the clock of the opponent.
+     *
+     * @param now the current System.nanoTime
+     */
+    void switchTurn(long now) {
+        if (!running) {
+            return;
+        }
+        remaining[turn] -= now - turnStartedAt;
+        turn ^= 1;
+        turnStartedAt = now;
+        schedule(deadline());
+    }
+
+    /**
+     * Stops the clock for good, when the game ends.
+     */
+    void stop() {
+        running = false;
+        cancel();
+    }
+
+    /**
+     * Indicates whether the player to move ran out of time.
+     *
+     * @param now the current System.nanoTime
+     * @return true if the deadline of the player to move passed
+     */
+    boolean isExpired(long now) {
+        return running && now - deadline() >= 0;
+    }
+
+    /**
+     * Describes the time controls, for the players.
+     *
+     * @return the description
+     */
+    String describe() {
+        if (moveSeconds > 0 && gameSeconds > 0) {
+            return moveSeconds + " s per move, " + gameSeconds + " s per player";
+        }
+        return moveSeconds > 0 ? moveSeconds + " s per move" : gameSeconds + " s per player";
+    }
+
+    /**
+     * Returns the time at which the player to move runs out of time.
+     *
+     * @return the System.nanoTime of the deadline
+     */
+    private long deadline() {
+        long allowed = moveSeconds > 0 ? TimeUnit.SECONDS.toNanos(moveSeconds) : Long.MAX_VALUE;
+        if (gameSeconds > 0) {
+            allowed = Math.min(allowed, Math.max(0, remaining[turn]));
+        }
+        return turnStartedAt + allowed;
+    }
+
+    @Override
+    void expire() {
+        onTimeout.run();
+    }
+}